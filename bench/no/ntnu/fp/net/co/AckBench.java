@@ -0,0 +1,101 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Time and allocation of sending an ack with
+ * {@link AbstractConnection#sendAck(KtnDatagram, boolean)}, over a link that
+ * drops every packet, so only the connection layer's own work is measured.
+ * For comparison the same is done with a new packet from
+ * {@link AbstractConnection#constructInternalPacket(Flag)} per ack, which is
+ * how acks used to be sent.<br>
+ * <br>
+ * Bytes per ack are taken from the JVM's count of bytes allocated by the
+ * thread (com.sun.management.ThreadMXBean), after the warmup. On a JVM
+ * without it only the times are shown. Logging is off.
+ *
+ * <pre>
+ * java -cp bin:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.AckBench
+ * </pre>
+ */
+public class AckBench {
+
+    /** Acks sent to count the allocation over. */
+    private static final int ACKS = Integer.getInteger("bench.acks", 1000000);
+
+    public static void main(String[] args) throws Exception {
+        // Logging an ack costs more than sending it; measure without.
+        PacketLog.setLevel(LogLevel.OFF);
+        final ConnectionImpl conn = new ConnectionImpl(7001, new DropLink());
+        conn.setRemote(Endpoint.of("127.0.0.1", 7000));
+        final KtnDatagram data = conn.constructDataPacket("hello");
+
+        Bench.Op sendAck = new Bench.Op() {
+            public Object run() throws Exception {
+                conn.sendAck(data, false);
+                return null;
+            }
+        };
+        Bench.Op newPacket = new Bench.Op() {
+            public Object run() throws Exception {
+                KtnDatagram ack = conn.constructInternalPacket(Flag.ACK);
+                ack.setAck(data.getSeq_nr());
+                conn.simplySendPacket(ack);
+                return ack;
+            }
+        };
+
+        Bench.measure("ack.sendAck", sendAck);
+        allocation("ack.sendAck", sendAck);
+        Bench.measure("ack.newPacket", newPacket);
+        allocation("ack.newPacket", newPacket);
+    }
+
+    /** Run the operation ACKS times and report the bytes allocated per run. */
+    private static void allocation(String name, Bench.Op op) throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            Bench.report(name, "allocation not measurable on this JVM");
+            return;
+        }
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+        if (!mx.isThreadAllocatedMemorySupported()) {
+            Bench.report(name, "allocation not measurable on this JVM");
+            return;
+        }
+        mx.setThreadAllocatedMemoryEnabled(true);
+        long id = Thread.currentThread().getId();
+        long before = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < ACKS; i++) {
+            op.run();
+        }
+        long bytes = mx.getThreadAllocatedBytes(id) - before;
+        Bench.report(name, String.format(Locale.US, "%12.1f bytes/op  %14d bytes in %d acks",
+                (double) bytes / ACKS, bytes, ACKS));
+    }
+
+    /** A link that loses every packet sent on it. */
+    private static class DropLink implements Link {
+
+        public void send(KtnDatagram packet) throws ClException, IOException {
+        }
+
+        public KtnDatagram receive(int port, long timeout) throws IOException {
+            return null;
+        }
+
+        public Clock getClock() {
+            return SystemClock.INSTANCE;
+        }
+
+        public boolean keepsChecksum() {
+            return true;
+        }
+    }
+}
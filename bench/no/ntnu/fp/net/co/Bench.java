@@ -0,0 +1,103 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Locale;
+
+/**
+ * A small benchmark harness for the classes in this source folder. Each
+ * benchmark is warmed up, so the JIT has compiled it, and then run for a few
+ * timed rounds; the result is the mean and spread over the rounds.<br>
+ * <br>
+ * Settings, as system properties:
+ * <ul>
+ * <li>bench.warmup - warmup time in millis (default 2000)
+ * <li>bench.rounds - number of timed rounds (default 5)
+ * <li>bench.round - length of a round in millis (default 1000)
+ * </ul>
+ * Results go to standard output prefixed with "BENCH", one line each, so they
+ * can be grepped out of the connection layer's own output.
+ */
+public final class Bench {
+
+    /** One operation to measure. */
+    public interface Op {
+        /**
+         * @return anything computed, so the JIT can't remove the work.
+         */
+        public Object run() throws Exception;
+    }
+
+    static final long WARMUP = Long.getLong("bench.warmup", 2000);
+    static final int ROUNDS = Integer.getInteger("bench.rounds", 5);
+    static final long ROUND = Long.getLong("bench.round", 1000);
+
+    /** Keeps the results of Op.run() alive. */
+    private static volatile int sink;
+
+    private Bench() {
+    }
+
+    /** Run an operation for the warmup and timed rounds, and print ns/op. */
+    public static void measure(String name, Op op) throws Exception {
+        runFor(op, WARMUP * 1000000L);
+        double[] nsPerOp = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            long ops = runFor(op, ROUND * 1000000L);
+            nsPerOp[i] = (double) (System.nanoTime() - start) / ops;
+        }
+        double mean = 0;
+        for (double v : nsPerOp) {
+            mean += v;
+        }
+        mean /= ROUNDS;
+        double var = 0;
+        for (double v : nsPerOp) {
+            var += (v - mean) * (v - mean);
+        }
+        double stddev = ROUNDS > 1 ? Math.sqrt(var / (ROUNDS - 1)) : 0;
+        report(name, String.format(Locale.US, "%12.1f ns/op  +- %8.1f  %14.0f ops/s", mean,
+                stddev, 1e9 / mean));
+    }
+
+    /** Print one result line. */
+    public static void report(String name, String result) {
+        System.out.println(String.format("BENCH %-40s %s", name, result));
+    }
+
+    /** Run batches of the operation until the time is up, return ops done. */
+    private static long runFor(Op op, long nanos) throws Exception {
+        long end = System.nanoTime() + nanos;
+        long ops = 0;
+        int batch = 1;
+        int h = 0;
+        while (System.nanoTime() < end) {
+            for (int i = 0; i < batch; i++) {
+                Object result = op.run();
+                h += result == null ? 0 : System.identityHashCode(result);
+            }
+            ops += batch;
+            if (batch < 1024) batch <<= 1;
+        }
+        sink = h;
+        return ops;
+    }
+
+    /** A string of the given length, for payloads. */
+    public static String text(int length) {
+        StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            b.append((char) ('a' + i % 26));
+        }
+        return b.toString();
+    }
+
+    /** Message sizes to run with, from bench.sizes (default 16,256,4096). */
+    public static int[] sizes() {
+        String[] parts = System.getProperty("bench.sizes", "16,256,4096").split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        return sizes;
+    }
+}
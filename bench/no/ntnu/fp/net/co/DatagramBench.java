@@ -0,0 +1,86 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Benchmarks of a datagram's life outside the network: setting the payload
+ * (serializing it and computing the checksum), checking the checksum the
+ * old way and with {@link PacketChecksum}'s header mode, and
+ * encoding and decoding the whole datagram the way ClSocket sends it.
+ *
+ * <pre>
+ * java -cp bin:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.DatagramBench
+ * </pre>
+ */
+public class DatagramBench {
+
+    public static void main(String[] args) throws Exception {
+        for (int size : Bench.sizes()) {
+            final String payload = Bench.text(size);
+            final KtnDatagram packet = datagram(payload);
+            final byte[] payloadBytes = packet.getPayloadAsBytes();
+            final byte[] encoded = Util.toByteArray(packet);
+
+            Bench.measure("datagram.setPayload/" + size, new Bench.Op() {
+                public Object run() {
+                    KtnDatagram p = new KtnDatagram();
+                    p.setPayload(payload);
+                    return p;
+                }
+            });
+            Bench.measure("datagram.setPayloadAsBytes/" + size, new Bench.Op() {
+                public Object run() {
+                    KtnDatagram p = new KtnDatagram();
+                    p.setPayloadAsBytes(payloadBytes);
+                    p.setChecksum(p.calculateChecksum());
+                    return p;
+                }
+            });
+            Bench.measure("datagram.calculateChecksum/" + size, new Bench.Op() {
+                public Object run() {
+                    return packet.calculateChecksum();
+                }
+            });
+            final PacketChecksum headerChecksum = new PacketChecksum();
+            headerChecksum.setHeaderMode(true);
+            headerChecksum.sign(packet);
+            Bench.measure("datagram.headerChecksum.verify/" + size, new Bench.Op() {
+                public Object run() {
+                    return headerChecksum.verify(packet);
+                }
+            });
+            packet.setChecksum(packet.calculateChecksum());
+            Bench.measure("datagram.encode/" + size, new Bench.Op() {
+                public Object run() {
+                    return Util.toByteArray(packet);
+                }
+            });
+            Bench.measure("datagram.decode/" + size, new Bench.Op() {
+                public Object run() {
+                    return Util.toObject(encoded);
+                }
+            });
+            Bench.measure("datagram.toString/" + size, new Bench.Op() {
+                public Object run() {
+                    return packet.toString();
+                }
+            });
+            Bench.report("datagram.encodedSize/" + size, encoded.length + " bytes");
+        }
+    }
+
+    static KtnDatagram datagram(String payload) {
+        KtnDatagram packet = new KtnDatagram();
+        packet.setSrc_addr("127.0.0.1");
+        packet.setSrc_port(4001);
+        packet.setDest_addr("127.0.0.1");
+        packet.setDest_port(4000);
+        packet.setSeq_nr(1234);
+        packet.setAck(-1);
+        packet.setFlag(Flag.NONE);
+        packet.setPayload(payload);
+        return packet;
+    }
+}
@@ -0,0 +1,198 @@
+package no.ntnu.fp.net.co;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.util.Locale;
+
+import no.ntnu.fp.net.admin.Log;
+
+/**
+ * Benchmarks of {@link ConnectionImpl} over loopback, with a server and a
+ * client in this JVM:
+ * <ul>
+ * <li>send - send() throughput and send-to-ack latency for each size in
+ * bench.sizes, bench.messages messages each (default 50) after
+ * bench.warmupMessages (default 10)
+ * <li>handshake - connect()/accept() rate over bench.handshakes connections
+ * (default 5)
+ * </ul>
+ * Without arguments both run. Needs settings.xml in the working directory,
+ * like the test client and server; run it where they run.
+ *
+ * <pre>
+ * java -cp bin:lib/jdom.jar:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.LoopbackBench [send] [handshake]
+ * </pre>
+ */
+public class LoopbackBench {
+
+    private static final int SERVER_PORT = Integer.getInteger("bench.port", 5600);
+    private static final int CLIENT_PORT = SERVER_PORT + 1000;
+    /** Max millis to wait for a close, which may not finish. */
+    private static final long CLOSE_TIMEOUT = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Log.setLogName("Bench");
+        PacketLog.configure("Bench");
+        boolean all = args.length == 0;
+        int port = CLIENT_PORT;
+        if (all || contains(args, "send")) {
+            send(port++);
+        }
+        if (all || contains(args, "handshake")) {
+            handshake(port);
+        }
+        // Connections that never finished closing would keep us alive.
+        System.exit(0);
+    }
+
+    private static void send(int clientPort) throws Exception {
+        final ConnectionImpl listener = new ConnectionImpl(SERVER_PORT);
+        Thread server = new Thread("BenchServer") {
+            public void run() {
+                try {
+                    drain(listener.accept());
+                }
+                catch (IOException e) {
+                    System.err.println("LoopbackBench: Server failed: " + e);
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        ConnectionImpl client = new ConnectionImpl(clientPort);
+        connect(client, SERVER_PORT);
+        int warmup = Integer.getInteger("bench.warmupMessages", 10);
+        int messages = Integer.getInteger("bench.messages", 50);
+        for (int size : Bench.sizes()) {
+            String payload = Bench.text(size);
+            for (int i = 0; i < warmup; i++) {
+                client.send(payload);
+            }
+            LatencyHistogram latency = new LatencyHistogram();
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                long t = System.nanoTime();
+                client.send(payload);
+                latency.recordNanos(System.nanoTime() - t);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            LatencyHistogram.Snapshot s = latency.snapshot();
+            Bench.report("loopback.send/" + size, String.format(Locale.US,
+                    "%8.1f msg/s  mean %d us  p50 %d us  p99 %d us  max %d us", messages / seconds,
+                    s.getMean(), s.getPercentile(50), s.getPercentile(99), s.getMax()));
+        }
+        Bench.report("loopback.send.retransmits", String.valueOf(client.getMetrics()
+                .getRetransmits()));
+        closeWithin(client);
+    }
+
+    private static void handshake(int firstClientPort) throws Exception {
+        final ConnectionImpl listener = new ConnectionImpl(SERVER_PORT + 1);
+        final int handshakes = Integer.getInteger("bench.handshakes", 5);
+        Thread server = new Thread("BenchServer") {
+            public void run() {
+                try {
+                    for (int i = 0; i < handshakes; i++) {
+                        final Connection conn = listener.accept();
+                        Thread t = new Thread() {
+                            public void run() {
+                                drain(conn);
+                            }
+                        };
+                        t.setDaemon(true);
+                        t.start();
+                    }
+                }
+                catch (IOException e) {
+                    System.err.println("LoopbackBench: Server failed: " + e);
+                }
+            }
+        };
+        server.setDaemon(true);
+        server.start();
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long start = System.nanoTime();
+        for (int i = 0; i < handshakes; i++) {
+            ConnectionImpl client = new ConnectionImpl(firstClientPort + i);
+            latency.recordNanos(connect(client, SERVER_PORT + 1));
+            closeWithin(client);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LatencyHistogram.Snapshot s = latency.snapshot();
+        Bench.report("loopback.handshake", String.format(Locale.US,
+                "%8.2f conn/s (with close)  connect mean %d us  max %d us", handshakes / seconds,
+                s.getMean(), s.getMax()));
+    }
+
+    /**
+     * Connect, retrying while the server is not yet listening.
+     *
+     * @return nanos taken by the connect() that succeeded.
+     */
+    private static long connect(ConnectionImpl client, int port) throws IOException {
+        for (int tries = 1;; tries++) {
+            long start = System.nanoTime();
+            try {
+                client.connect(InetAddress.getLocalHost(), port);
+                return System.nanoTime() - start;
+            }
+            catch (ConnectException e) {
+                if (tries == 50) throw e;
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException ie) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /** Receive until the other side closes, then close. */
+    private static void drain(Connection conn) {
+        try {
+            while (true) {
+                conn.receive();
+            }
+        }
+        catch (EOFException e) {
+            closeWithin(conn);
+        }
+        catch (IOException e) {
+            System.err.println("LoopbackBench: Receive failed: " + e);
+        }
+    }
+
+    private static void closeWithin(final Connection conn) {
+        Thread t = new Thread("BenchClose") {
+            public void run() {
+                try {
+                    conn.close();
+                }
+                catch (IOException e) {
+                    // The other side may have closed first.
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+        try {
+            t.join(CLOSE_TIMEOUT);
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+        if (t.isAlive()) System.err.println("LoopbackBench: close() did not finish.");
+    }
+
+    private static boolean contains(String[] args, String name) {
+        for (String arg : args) {
+            if (arg.equals(name)) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,41 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.Util;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Benchmarks of building packets in {@link AbstractConnection}: data packets
+ * from a String and from an already serialized payload, and internal packets
+ * (acks). No network is used.
+ *
+ * <pre>
+ * java -cp bin:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.PacketBench
+ * </pre>
+ */
+public class PacketBench {
+
+    public static void main(String[] args) throws Exception {
+        final ConnectionImpl conn = new ConnectionImpl(7001);
+        conn.setRemote(Endpoint.of("127.0.0.1", 7000));
+
+        Bench.measure("packet.constructInternalPacket", new Bench.Op() {
+            public Object run() {
+                return conn.constructInternalPacket(Flag.ACK);
+            }
+        });
+        for (int size : Bench.sizes()) {
+            final String payload = Bench.text(size);
+            final byte[] encoded = Util.toByteArray(payload);
+            Bench.measure("packet.constructDataPacket(String)/" + size, new Bench.Op() {
+                public Object run() {
+                    return conn.constructDataPacket(payload);
+                }
+            });
+            Bench.measure("packet.constructDataPacket(byte[])/" + size, new Bench.Op() {
+                public Object run() {
+                    return conn.constructDataPacket(encoded);
+                }
+            });
+        }
+    }
+}
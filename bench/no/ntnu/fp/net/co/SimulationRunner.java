@@ -0,0 +1,210 @@
+package no.ntnu.fp.net.co;
+
+import java.io.EOFException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a client and a server {@link ConnectionImpl} against each other on a
+ * {@link SimulatedLink}, once per seed, and checks that every message
+ * arrives once and in order. Time is virtual, so the protocol's second-long
+ * sleeps and timeouts cost about a millisecond each; a scenario that passes
+ * takes some 80 ms of real time for several seconds of virtual time, about
+ * 12 scenarios a second. One that fails waits for its threads in real time
+ * (-timeout). A failing seed replays the same packets, losses and timing
+ * when run again with -from seed -seeds 1.
+ *
+ * <pre>
+ * java -cp bin:lib/jdom.jar:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.SimulationRunner [options]
+ *   -seeds n         number of scenarios (default 100)
+ *   -from s          first seed (default 1)
+ *   -messages n      messages per scenario (default 5)
+ *   -loss p          loss probability (default 0.05)
+ *   -duplicate p     duplication probability (default 0.02)
+ *   -corrupt p       corruption probability (default 0.02)
+ *   -reorder p       reorder probability (default 0)
+ *   -latency ms      base latency (default 5)
+ *   -jitter ms       max extra latency (default 5)
+ *   -bandwidth b     bytes per second, 0 for no limit (default 0)
+ *   -timeout ms      real millis before a scenario is given up (default 20000)
+ *   -quiet us        real micros without activity before virtual time jumps
+ *                    (default 1000); shorter may break replay, see
+ *                    {@link VirtualClock#getQuietPeriod()}
+ * </pre>
+ *
+ * Packet logging is off unless ktn.log.level is set.
+ */
+public class SimulationRunner {
+
+    private static final int SERVER_PORT = 5600;
+    private static final int CLIENT_PORT = 6600;
+
+    private long from = 1;
+    private int seeds = 100;
+    private int messages = 5;
+    private double loss = 0.05, duplicate = 0.02, corrupt = 0.02, reorder = 0;
+    private long latency = 5, jitter = 5, bandwidth = 0;
+    private long timeout = 20000;
+    private long quiet = VirtualClock.DEFAULT_QUIET_PERIOD;
+
+    public static void main(String[] args) throws Exception {
+        if (System.getProperty("ktn.log.level") == null) {
+            PacketLog.setLevel(LogLevel.OFF);
+        }
+        else {
+            PacketLog.configure("Simulation");
+        }
+        SimulationRunner runner = new SimulationRunner();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String value = args[++i];
+                if (args[i - 1].equals("-seeds")) runner.seeds = Integer.parseInt(value);
+                else if (args[i - 1].equals("-from")) runner.from = Long.parseLong(value);
+                else if (args[i - 1].equals("-messages")) runner.messages = Integer.parseInt(value);
+                else if (args[i - 1].equals("-loss")) runner.loss = Double.parseDouble(value);
+                else if (args[i - 1].equals("-duplicate")) runner.duplicate = Double.parseDouble(value);
+                else if (args[i - 1].equals("-corrupt")) runner.corrupt = Double.parseDouble(value);
+                else if (args[i - 1].equals("-reorder")) runner.reorder = Double.parseDouble(value);
+                else if (args[i - 1].equals("-latency")) runner.latency = Long.parseLong(value);
+                else if (args[i - 1].equals("-jitter")) runner.jitter = Long.parseLong(value);
+                else if (args[i - 1].equals("-bandwidth")) runner.bandwidth = Long.parseLong(value);
+                else if (args[i - 1].equals("-timeout")) runner.timeout = Long.parseLong(value);
+                else if (args[i - 1].equals("-quiet")) runner.quiet = Long.parseLong(value) * 1000;
+                else throw new IllegalArgumentException(args[i - 1]);
+            }
+        }
+        catch (RuntimeException e) {
+            System.err.println("SimulationRunner: Bad option: " + e.getMessage());
+            System.exit(1);
+        }
+        int failed = runner.run();
+        // Connections that never finished closing would keep us alive.
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /** @return number of failed scenarios. */
+    int run() {
+        List<Long> failed = new ArrayList<Long>();
+        long virtualMillis = 0;
+        long start = System.nanoTime();
+        for (long seed = from; seed < from + seeds; seed++) {
+            Scenario s = new Scenario(seed);
+            String result = s.run();
+            virtualMillis += s.virtualMillis;
+            if (result != null) {
+                failed.add(seed);
+                System.out.println("FAIL seed " + seed + ": " + result + "  " + s.link);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Bench.report("simulation", String.format(Locale.US,
+                "%d scenarios, %d failed, %.1f scenarios/s, %.0fx real time", seeds, failed.size(),
+                seeds / seconds, virtualMillis / 1000.0 / seconds));
+        if (!failed.isEmpty()) {
+            Collections.sort(failed);
+            Bench.report("simulation.failed", failed.toString());
+        }
+        return failed.size();
+    }
+
+    /** One client sending to one server. */
+    private class Scenario {
+        final long seed;
+        final VirtualClock clock = new VirtualClock();
+        final SimulatedLink link;
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        volatile String error;
+        long virtualMillis;
+
+        Scenario(long seed) {
+            this.seed = seed;
+            clock.setQuietPeriod(quiet);
+            link = new SimulatedLink(seed, clock).setLoss(loss).setDuplicate(duplicate)
+                    .setCorrupt(corrupt).setReorder(reorder, 4 * latency + 1)
+                    .setLatency(latency, jitter).setBandwidth(bandwidth);
+        }
+
+        /** @return null if all messages arrived in order, else what went wrong. */
+        String run() {
+            Thread server = new Thread("SimServer-" + seed) {
+                public void run() {
+                    serve();
+                }
+            };
+            Thread client = new Thread("SimClient-" + seed) {
+                public void run() {
+                    send();
+                }
+            };
+            server.setDaemon(true);
+            client.setDaemon(true);
+            // Time would run on while a thread is still starting up.
+            clock.attend(server);
+            clock.attend(client);
+            server.start();
+            client.start();
+            try {
+                client.join(timeout);
+                server.join(Math.max(1, timeout / 4));
+            }
+            catch (InterruptedException e) {
+                return "interrupted";
+            }
+            virtualMillis = clock.currentTimeMillis();
+            clock.stop();
+
+            List<String> got = new ArrayList<String>(received);
+            for (int i = 0; i < got.size(); i++) {
+                if (!got.get(i).equals(message(i))) return "got " + got + " (order/duplicates)";
+            }
+            if (got.size() < messages) {
+                String why = error != null ? error : client.isAlive() ? "timed out" : "lost";
+                return got.size() + "/" + messages + " messages, " + why;
+            }
+            return null;
+        }
+
+        void serve() {
+            try {
+                Connection conn = new ConnectionImpl(SERVER_PORT, link).accept();
+                try {
+                    while (true) {
+                        String message = conn.receive();
+                        if (message == null) {
+                            error = "server: receive() gave up";
+                            return;
+                        }
+                        received.add(message);
+                    }
+                }
+                catch (EOFException e) {
+                    conn.close();
+                }
+            }
+            catch (Exception e) {
+                if (received.size() < messages) error = "server: " + e;
+            }
+        }
+
+        void send() {
+            try {
+                ConnectionImpl conn = new ConnectionImpl(CLIENT_PORT, link);
+                conn.connect(InetAddress.getByName("127.0.0.1"), SERVER_PORT);
+                for (int i = 0; i < messages; i++) {
+                    conn.send(message(i));
+                }
+                conn.close();
+            }
+            catch (Exception e) {
+                if (error == null) error = "client: " + e;
+            }
+        }
+    }
+
+    private static String message(int i) {
+        return "message " + i;
+    }
+}
@@ -0,0 +1,81 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Locale;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Datagram rate of {@link UdpLink} over loopback, below the connection
+ * layer: bench.senders threads (default 4) send acks as fast as they can to
+ * one port, and one thread receives them. Run once with batches of 1 and once
+ * with {@link UdpLink#DEFAULT_BATCH}, bench.packets datagrams per sender
+ * each (default 200000).<br>
+ * <br>
+ * UDP may drop datagrams when the receiver falls behind; the rate counts
+ * those received, and the loss is shown.
+ *
+ * <pre>
+ * java -cp bin:lib/jdom.jar:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.co.UdpBench
+ * </pre>
+ */
+public class UdpBench {
+
+    private static final int PORT = Integer.getInteger("bench.port", 5700);
+    private static final int SENDERS = Integer.getInteger("bench.senders", 4);
+    private static final int PACKETS = Integer.getInteger("bench.packets", 200000);
+
+    public static void main(String[] args) throws Exception {
+        run("udp.batch1", 1, PORT);
+        run("udp.batch" + UdpLink.DEFAULT_BATCH, UdpLink.DEFAULT_BATCH, PORT + 1);
+    }
+
+    private static void run(String name, int batch, final int port) throws Exception {
+        final UdpLink link = new UdpLink().setSendBatch(batch).setReceiveBatch(batch);
+        // Bind the port before anything is sent to it.
+        link.receive(port, 1);
+
+        Thread[] senders = new Thread[SENDERS];
+        for (int i = 0; i < SENDERS; i++) {
+            final int src = port + 100 + i;
+            senders[i] = new Thread("UdpBench sender " + i) {
+                public void run() {
+                    KtnDatagram packet = new KtnDatagram();
+                    packet.setSrc_addr("127.0.0.1");
+                    packet.setSrc_port(src);
+                    packet.setDest_addr("127.0.0.1");
+                    packet.setDest_port(port);
+                    packet.setFlag(Flag.ACK);
+                    try {
+                        for (int n = 0; n < PACKETS; n++) {
+                            packet.setSeq_nr(n);
+                            link.send(packet);
+                        }
+                    }
+                    catch (Exception e) {
+                        System.err.println("UdpBench: Send failed: " + e);
+                    }
+                }
+            };
+        }
+
+        long start = System.nanoTime();
+        for (Thread sender : senders) {
+            sender.start();
+        }
+        long received = 0;
+        long total = (long) SENDERS * PACKETS;
+        // Stop when all have arrived, or nothing came for a while.
+        while (received < total && link.receive(port, 500) != null) {
+            received++;
+        }
+        long nanos = System.nanoTime() - start;
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        link.close();
+
+        Bench.report(name, String.format(Locale.US, "%14.0f datagrams/s  %5.1f%% lost",
+                received * 1e9 / nanos, 100.0 * (total - received) / total));
+    }
+}
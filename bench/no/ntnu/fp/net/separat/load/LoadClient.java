@@ -0,0 +1,193 @@
+package no.ntnu.fp.net.separat.load;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.BitSet;
+import java.util.Random;
+
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.SimpleConnection;
+
+/**
+ * One simulated chat client: logs in with "Hello:" like ChatClient, sends
+ * timestamped messages at a fixed rate, renames itself now and then, and
+ * records the latency of every timestamped message it receives. Remembers
+ * which messages it got from each client, so those that never arrived, and
+ * copies of ones that did, can be counted. Runs on two threads, one sending
+ * and one receiving.
+ */
+class LoadClient {
+
+    /** Start of a load test message: "lt:client:seq:nanoTime:padding". */
+    static final String MARK = "lt:";
+
+    private final int id;
+    private final LoadTest.Config config;
+    private final LoadTest.Results results;
+    private final Random random;
+    private final int localPort;
+    private Connection conn;
+    private String name;
+    private volatile boolean receiving = true;
+    private Thread receiver;
+    /** Messages sent, numbered 0 to sent - 1. */
+    private volatile int sent = 0;
+    /** Per sending client, the seq numbers received. Guarded by this. */
+    private final BitSet[] seen;
+
+    LoadClient(int id, LoadTest.Config config, LoadTest.Results results) {
+        this.id = id;
+        this.config = config;
+        this.results = results;
+        // Same seed, same send times and renames in every run.
+        random = new Random(config.seed * 31 + id);
+        localPort = config.clientPort + id;
+        name = "load" + id;
+        seen = new BitSet[config.clients];
+    }
+
+    /**
+     * Connect and log in, retrying until the connect timeout.
+     *
+     * @return false if it could not connect.
+     */
+    boolean login() {
+        long deadline = System.currentTimeMillis() + config.connectTimeout;
+        while (true) {
+            try {
+                conn = config.simpleConnection ? new SimpleConnection(localPort)
+                        : new ConnectionImpl(localPort);
+                conn.connect(InetAddress.getByName(config.host), config.port);
+                conn.send("Hello:" + name);
+                break;
+            }
+            catch (IOException e) {
+                // The server may not be listening yet, or be busy with the
+                // handshake of another client.
+                if (System.currentTimeMillis() > deadline) {
+                    System.err.println("LoadClient " + id + ": Could not log in: " + e);
+                    results.connectErrors.incrementAndGet();
+                    return false;
+                }
+                sleep(200 + random.nextInt(200));
+            }
+        }
+        receiver = new Thread("LoadClient-" + id) {
+            public void run() {
+                receive();
+            }
+        };
+        receiver.setDaemon(true);
+        receiver.start();
+        return true;
+    }
+
+    /** Send until the end time, then stop. */
+    void run(long endMillis) {
+        String padding = LoadTest.text(Math.max(0, config.size - 40));
+        long interval = (long) (1000000000L / config.rate);
+        long next = System.nanoTime() + (long) (random.nextDouble() * interval);
+        int seq = 0;
+        while (System.currentTimeMillis() < endMillis) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) sleep(wait / 1000000);
+            next += interval;
+            try {
+                if (config.renameEvery > 0 && seq > 0 && seq % config.renameEvery == 0
+                        && random.nextBoolean()) {
+                    name = "load" + id + "_" + seq;
+                    conn.send("/newName: " + name);
+                    results.renames.incrementAndGet();
+                }
+                conn.send(MARK + id + ":" + seq + ":" + System.nanoTime() + ":" + padding);
+                results.sent.incrementAndGet();
+                seq++;
+                sent = seq;
+            }
+            catch (IOException e) {
+                results.sendErrors.incrementAndGet();
+                if (e instanceof EOFException) return;
+            }
+        }
+    }
+
+    /** How many of the messages a client sent never arrived here. */
+    synchronized int missing(LoadClient sender) {
+        BitSet got = seen[sender.id];
+        return sender.sent - (got == null ? 0 : got.get(0, sender.sent).cardinality());
+    }
+
+    /** Stop receiving and close the connection. */
+    void disconnect(long timeoutMillis) {
+        receiving = false;
+        Thread closer = new Thread("LoadClose-" + id) {
+            public void run() {
+                try {
+                    conn.send(name + " is closing");
+                    conn.close();
+                }
+                catch (IOException e) {
+                    results.closeErrors.incrementAndGet();
+                }
+            }
+        };
+        closer.setDaemon(true);
+        closer.start();
+        try {
+            closer.join(timeoutMillis);
+        }
+        catch (InterruptedException e) {
+            return;
+        }
+        if (closer.isAlive()) results.closeErrors.incrementAndGet();
+    }
+
+    private void receive() {
+        while (receiving) {
+            String message;
+            try {
+                message = conn.receive();
+            }
+            catch (EOFException e) {
+                return;
+            }
+            catch (IOException e) {
+                if (receiving) results.receiveErrors.incrementAndGet();
+                continue;
+            }
+            long now = System.nanoTime();
+            if (message == null || !message.startsWith(MARK)) continue;
+            // "lt", client, seq, nanoTime, padding
+            String[] fields = message.split(":", 5);
+            try {
+                int sender = Integer.parseInt(fields[1]);
+                int seq = Integer.parseInt(fields[2]);
+                long sentAt = Long.parseLong(fields[3]);
+                if (firstCopy(sender, seq)) results.received(now - sentAt);
+                else results.duplicates.incrementAndGet();
+            }
+            catch (RuntimeException e) {
+                results.receiveErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /** Note a message as received, false if it was already. */
+    private synchronized boolean firstCopy(int sender, int seq) {
+        if (seen[sender] == null) seen[sender] = new BitSet();
+        if (seen[sender].get(seq)) return false;
+        seen[sender].set(seq);
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            // Go on.
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package no.ntnu.fp.net.separat.load;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.co.PacketLog;
+import no.ntnu.fp.net.separat.server.ChatServer;
+
+/**
+ * Load test for {@link ChatServer}: runs a number of {@link LoadClient}s
+ * against a server and reports throughput, end-to-end latency and errors.
+ * By default the server is started in this JVM, headless, so everything runs
+ * on loopback and one clock measures both ends of a message.<br>
+ * <br>
+ * A message's latency is the time from the sender calling send() until a
+ * client in the same room gets it from receive(). Every client is in the
+ * lobby, so each message is counted once per client, the sender included.
+ * Each connected client should get every message sent: the ones that never
+ * arrive are counted as missing, and extra copies as duplicates, neither of
+ * which counts as received.
+ *
+ * <pre>
+ * java -cp bin:lib/jdom.jar:lib/ktn_admin_and_a2.jar no.ntnu.fp.net.separat.load.LoadTest [options]
+ *   -clients n        number of clients (5)
+ *   -duration s       seconds of sending once everybody is logged in (30)
+ *   -rate r           messages per second per client (2)
+ *   -size n           message size in characters (64)
+ *   -renameEvery n    consider a rename every n messages (20, 0 for never)
+ *   -seed n           seed for send times and renames (1)
+ *   -host h -port p   use a running server instead of starting one
+ *   -clientPort p     first local port for the clients (7000)
+ *   -simple           use SimpleConnection instead of ConnectionImpl
+ *   -format csv|json  report format (csv)
+ *   -o file           append the report to a file instead of printing it
+ * </pre>
+ */
+public class LoadTest {
+
+    static class Config {
+        int clients = 5;
+        long duration = 30;
+        double rate = 2;
+        int size = 64;
+        int renameEvery = 20;
+        long seed = 1;
+        String host = "localhost";
+        int port = 5700;
+        boolean startServer = true;
+        int clientPort = 7000;
+        boolean simpleConnection = false;
+        String format = "csv";
+        String output = null;
+        long connectTimeout = 120000;
+        long drainTime = 3000;
+        long closeTimeout = 10000;
+    }
+
+    /** Counters shared by all clients. */
+    static class Results {
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        final AtomicLong missing = new AtomicLong();
+        final AtomicLong duplicates = new AtomicLong();
+        final AtomicLong renames = new AtomicLong();
+        final AtomicLong connectErrors = new AtomicLong();
+        final AtomicLong sendErrors = new AtomicLong();
+        final AtomicLong receiveErrors = new AtomicLong();
+        final AtomicLong closeErrors = new AtomicLong();
+        private long[] latencies = new long[1024];
+        private int count = 0;
+
+        synchronized void received(long nanos) {
+            received.incrementAndGet();
+            if (count == latencies.length) latencies = Arrays.copyOf(latencies, count * 2);
+            latencies[count++] = nanos;
+        }
+
+        /** Latencies in nanos, sorted. */
+        synchronized long[] sortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = parse(args);
+        if (config == null) {
+            System.err.println("Usage: LoadTest [-clients n] [-duration s] [-rate r] [-size n] "
+                    + "[-renameEvery n] [-seed n] [-host h -port p] [-clientPort p] [-simple] "
+                    + "[-format csv|json] [-o file]");
+            System.exit(1);
+        }
+        Log.setLogName("LoadTest");
+        PacketLog.configure("LoadTest");
+
+        if (config.startServer) {
+            ChatServer.HEADLESS = true;
+            ChatServer.SIMPLE_CONNECTION = config.simpleConnection;
+            ChatServer.HISTORY_DIRECTORY = null;
+            new ChatServer(config.port).startServer();
+        }
+
+        // The server accepts one connection at a time, so log in one at a
+        // time rather than have the handshakes time out on each other.
+        final Results results = new Results();
+        List<LoadClient> ready = new ArrayList<LoadClient>();
+        long loginStart = System.currentTimeMillis();
+        for (int i = 0; i < config.clients; i++) {
+            LoadClient client = new LoadClient(i, config, results);
+            if (client.login()) ready.add(client);
+        }
+        long loginMillis = System.currentTimeMillis() - loginStart;
+
+        final long end = System.currentTimeMillis() + config.duration * 1000;
+        long start = System.nanoTime();
+        List<Thread> senders = new ArrayList<Thread>();
+        for (final LoadClient client : ready) {
+            Thread t = new Thread("LoadSend") {
+                public void run() {
+                    client.run(end);
+                }
+            };
+            t.start();
+            senders.add(t);
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Let the last messages through before closing.
+        Thread.sleep(config.drainTime);
+        for (LoadClient client : ready) {
+            client.disconnect(config.closeTimeout);
+        }
+        for (LoadClient receiver : ready) {
+            for (LoadClient sender : ready) {
+                results.missing.addAndGet(receiver.missing(sender));
+            }
+        }
+
+        String report = config.format.equals("json") ? json(config, results, ready.size(),
+                loginMillis, seconds) : csv(config, results, ready.size(), loginMillis, seconds);
+        if (config.output == null) {
+            System.out.println(report);
+        }
+        else {
+            PrintWriter out = new PrintWriter(new FileWriter(config.output, true));
+            out.println(report);
+            out.close();
+        }
+        // Connections that never finished closing would keep us alive.
+        System.exit(0);
+    }
+
+    private static final String[] FIELDS = { "clients", "connected", "duration_s", "rate",
+            "size", "seed", "login_ms", "sent", "received", "send_per_s", "receive_per_s",
+            "latency_mean_ms", "latency_p50_ms", "latency_p90_ms", "latency_p99_ms",
+            "latency_max_ms", "renames", "connect_errors", "send_errors", "receive_errors",
+            "close_errors", "missing", "duplicates" };
+
+    private static String[] values(Config c, Results r, int connected, long loginMillis,
+            double seconds) {
+        long[] lat = r.sortedLatencies();
+        long sum = 0;
+        for (long l : lat) {
+            sum += l;
+        }
+        return new String[] { String.valueOf(c.clients), String.valueOf(connected),
+                number(seconds), number(c.rate), String.valueOf(c.size), String.valueOf(c.seed),
+                String.valueOf(loginMillis), String.valueOf(r.sent.get()),
+                String.valueOf(r.received.get()), number(r.sent.get() / seconds),
+                number(r.received.get() / seconds),
+                millis(lat.length == 0 ? 0 : sum / lat.length), millis(percentile(lat, 50)),
+                millis(percentile(lat, 90)), millis(percentile(lat, 99)),
+                millis(lat.length == 0 ? 0 : lat[lat.length - 1]),
+                String.valueOf(r.renames.get()), String.valueOf(r.connectErrors.get()),
+                String.valueOf(r.sendErrors.get()), String.valueOf(r.receiveErrors.get()),
+                String.valueOf(r.closeErrors.get()), String.valueOf(r.missing.get()),
+                String.valueOf(r.duplicates.get()) };
+    }
+
+    static String csv(Config c, Results r, int connected, long loginMillis, double seconds) {
+        StringBuilder b = new StringBuilder();
+        for (int i = 0; i < FIELDS.length; i++) {
+            b.append(i == 0 ? "" : ",").append(FIELDS[i]);
+        }
+        b.append('\n');
+        String[] values = values(c, r, connected, loginMillis, seconds);
+        for (int i = 0; i < values.length; i++) {
+            b.append(i == 0 ? "" : ",").append(values[i]);
+        }
+        return b.toString();
+    }
+
+    static String json(Config c, Results r, int connected, long loginMillis, double seconds) {
+        StringBuilder b = new StringBuilder("{");
+        String[] values = values(c, r, connected, loginMillis, seconds);
+        for (int i = 0; i < values.length; i++) {
+            b.append(i == 0 ? "" : ", ").append('"').append(FIELDS[i]).append("\": ")
+                    .append(values[i]);
+        }
+        return b.append('}').toString();
+    }
+
+    /** Nearest-rank percentile of sorted values, 0 if there are none. */
+    static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int rank = (int) Math.ceil(sorted.length * p / 100.0);
+        return sorted[Math.max(0, Math.min(rank, sorted.length) - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return number(nanos / 1e6);
+    }
+
+    private static String number(double d) {
+        return String.format(Locale.US, "%.2f", d);
+    }
+
+    static String text(int length) {
+        StringBuilder b = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            b.append((char) ('a' + i % 26));
+        }
+        return b.toString();
+    }
+
+    private static Config parse(String[] args) {
+        Config c = new Config();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String a = args[i];
+                if (a.equals("-clients")) c.clients = Integer.parseInt(args[++i]);
+                else if (a.equals("-duration")) c.duration = Long.parseLong(args[++i]);
+                else if (a.equals("-rate")) c.rate = Double.parseDouble(args[++i]);
+                else if (a.equals("-size")) c.size = Integer.parseInt(args[++i]);
+                else if (a.equals("-renameEvery")) c.renameEvery = Integer.parseInt(args[++i]);
+                else if (a.equals("-seed")) c.seed = Long.parseLong(args[++i]);
+                else if (a.equals("-host")) {
+                    c.host = args[++i];
+                    c.startServer = false;
+                }
+                else if (a.equals("-port")) c.port = Integer.parseInt(args[++i]);
+                else if (a.equals("-clientPort")) c.clientPort = Integer.parseInt(args[++i]);
+                else if (a.equals("-simple")) c.simpleConnection = true;
+                else if (a.equals("-format")) c.format = args[++i];
+                else if (a.equals("-o")) c.output = args[++i];
+                else return null;
+            }
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+        if (c.clients < 1 || c.rate <= 0) return null;
+        if (!c.format.equals("csv") && !c.format.equals("json")) return null;
+        return c;
+    }
+}
@@ -9,14 +9,10 @@ import java.net.ConnectException;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Timer;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
-import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
-import no.ntnu.fp.net.co.ClSocketReceiver;
 import no.ntnu.fp.net.co.Connection;
 
 /**
@@ -51,6 +47,9 @@ public abstract class AbstractConnection implements Connection {
      */
     protected static int TIMEOUT = 3 * RETRANSMIT + (RETRANSMIT / 2);
 
+    /** Returned by receiveOnce() when nothing was received for the caller yet. */
+    private static final KtnDatagram RECEIVE_AGAIN = new KtnDatagram();
+
     /**
      * To prevent more than one thread to concurrently execute certain parts of
      * doReceive(). DO NOT alter the value of this variable unless you KNOW what
@@ -73,28 +72,102 @@ public abstract class AbstractConnection implements Connection {
     private List<KtnDatagram> externalQueue;
 
     /**
-     * Identifies the state of the connection.
+     * Identifies the state of the connection. Volatile, as the keep-alive
+     * timer and {@link ConnectionImpl#abort()} change it from other threads.
      */
-    protected State state;
+    protected volatile State state;
 
     /** Local and remote ip-address. */
     protected String myAddress, remoteAddress;
     /** Local and remote port number. */
     protected int myPort, remotePort;
+    /**
+     * Local and remote endpoint, made once; the fields above are set from
+     * them, see {@link #setLocal(Endpoint)} and {@link #setRemote(Endpoint)}.
+     */
+    protected Endpoint local, remote;
     /** Reference to the last packet received. */
     protected KtnDatagram lastValidPacketReceived;
     /** Reference to the last data packet sent. */
     protected KtnDatagram lastDataPacketSent;
-    /** The current sequence number used in packets to be sent. */
+    /**
+     * The current sequence number used in packets to be sent. Acks are sent
+     * without the connection's lock, so it is changed holding
+     * {@link #sequenceLock}, see {@link #takeSequenceNo()}.
+     */
     protected int nextSequenceNo;
+    /** Guards {@link #nextSequenceNo}. */
+    protected final Object sequenceLock = new Object();
 
     /** The sequence number used in disconnection. */
     protected int disconnectSeqNo;
      /** If a FIN has been received, it is stored in disconnectRequest. */
-     protected KtnDatagram disconnectRequest;
+     protected volatile KtnDatagram disconnectRequest;
+
+    /** When a packet last arrived on this connection's port, on the clock. */
+    protected volatile long lastHeardFrom;
+
+    /**
+     * Max millis an application's receive waits on the link before it
+     * checks whether the connection has been closed under it; 0 to wait
+     * until a packet arrives.
+     */
+    protected volatile long receivePoll = 0;
+
+    /** Statistics for this connection. */
+    protected final ConnectionMetrics metrics;
+
+    /** Signs packets when they are sent, and checks received ones. */
+    protected final PacketChecksum checksum;
+
+    /**
+     * The packet every ack of this connection is sent in, see
+     * {@link #sendAck(KtnDatagram, boolean)}. A link doesn't keep a packet
+     * after sending it, and sendAck holds this packet's lock, so one is
+     * enough and acks don't allocate.
+     */
+    private final KtnDatagram ackPacket;
+
+    /** The network packets are sent and received on. */
+    protected final Link link;
+    /** Time for timeouts, sleeps and retransmits; the link's clock. */
+    protected final Clock clock;
 
-    /** Initialize variables to default values. */
+    /**
+     * Link for connections created without one: a {@link UdpLink} with the
+     * impairments of settings.xml when run with -Dktn.link=udp, else
+     * {@link ClSocketLink}.
+     */
+    private static volatile Link defaultLink = initialLink();
+
+    private static Link initialLink() {
+        if ("udp".equals(System.getProperty("ktn.link"))) {
+            try {
+                return UdpLink.fromSettings();
+            }
+            catch (IOException e) {
+                System.err.println("AbstractConnection: Could not open UDP link, using ClSocket: "
+                        + e.getMessage());
+            }
+        }
+        return ClSocketLink.INSTANCE;
+    }
+
+    /** Initialize variables to default values, on the default link. */
     public AbstractConnection() {
+        this(defaultLink);
+    }
+
+    /**
+     * Initialize variables to default values.
+     * 
+     * @param link
+     *            the network to use, see {@link SimulatedLink}.
+     */
+    public AbstractConnection(Link link) {
+        if (link == null) throw new IllegalArgumentException("Link can not be null.");
+        this.link = link;
+        clock = link.getClock();
         internalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
         externalQueue = Collections.synchronizedList(new LinkedList<KtnDatagram>());
         isReceiving = false;
@@ -103,6 +176,66 @@ public abstract class AbstractConnection implements Connection {
         lastDataPacketSent = null;
         lastValidPacketReceived = null;
         state = State.CLOSED;
+        lastHeardFrom = clock.currentTimeMillis();
+        metrics = new ConnectionMetrics(this);
+        checksum = new PacketChecksum();
+        ackPacket = new KtnDatagram();
+    }
+
+    /**
+     * Set the link used by connections created without one, e.g. a
+     * {@link SimulatedLink} to run unchanged application code on a simulated
+     * network. Connections that exist keep their link.
+     */
+    public static void setDefaultLink(Link link) {
+        if (link == null) throw new IllegalArgumentException("Link can not be null.");
+        defaultLink = link;
+    }
+
+    public static Link getDefaultLink() {
+        return defaultLink;
+    }
+
+    /** The network this connection uses. */
+    public Link getLink() {
+        return link;
+    }
+
+    /** Statistics for this connection, see {@link TransportMetrics} for totals. */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Number of received packets waiting in the internal and external queue. */
+    int getQueueDepth() {
+        return internalQueue.size() + externalQueue.size();
+    }
+
+    /** Set the local endpoint, and myAddress and myPort to its address and port. */
+    protected void setLocal(Endpoint local) {
+        this.local = local;
+        myAddress = local.getAddress();
+        myPort = local.getPort();
+    }
+
+    /**
+     * Set the remote endpoint, and remoteAddress and remotePort to its address
+     * and port.
+     */
+    protected void setRemote(Endpoint remote) {
+        this.remote = remote;
+        remoteAddress = remote.getAddress();
+        remotePort = remote.getPort();
+    }
+
+    /** The local endpoint, null before it is set. */
+    public Endpoint getLocalEndpoint() {
+        return local;
+    }
+
+    /** The remote endpoint, null when not connected. */
+    public Endpoint getRemoteEndpoint() {
+        return remote;
     }
 
     /**
@@ -140,12 +273,38 @@ public abstract class AbstractConnection implements Connection {
         packet.setSrc_addr(myAddress);
         packet.setSrc_port(myPort);
         packet.setFlag(Flag.NONE);
-        packet.setSeq_nr(nextSequenceNo++);
+        packet.setSeq_nr(takeSequenceNo());
         packet.setPayload(payload);
 
         return packet;
     }
 
+    /**
+     * Construct a datagram carrying payload bytes as they are, without
+     * serializing them again. Sets the same fields as
+     * {@link #constructDataPacket(String)}. The checksum is set when the
+     * packet is sent.
+     *
+     * @param payload
+     *            Payload bytes for packet, can not be null.
+     * @return Initialised datagram.
+     * @see #constructDataPacket(String)
+     */
+    protected KtnDatagram constructDataPacket(byte[] payload) {
+        if (payload == null) throw new IllegalArgumentException("Payload can not be null.");
+
+        KtnDatagram packet = new KtnDatagram();
+        packet.setDest_port(remotePort);
+        packet.setDest_addr(remoteAddress);
+        packet.setSrc_addr(myAddress);
+        packet.setSrc_port(myPort);
+        packet.setFlag(Flag.NONE);
+        packet.setSeq_nr(takeSequenceNo());
+        packet.setPayloadAsBytes(payload);
+
+        return packet;
+    }
+
     /**
      * Construct a datagram with the given flag. <br>
      * <br>
@@ -175,21 +334,36 @@ public abstract class AbstractConnection implements Connection {
      * @return Initialised flagged datagram.
      */
     protected KtnDatagram constructInternalPacket(Flag flag) {
+        return initInternalPacket(new KtnDatagram(), flag);
+    }
 
-        KtnDatagram packet = new KtnDatagram();
+    /**
+     * Set the fields {@link #constructInternalPacket(Flag)} sets on a packet
+     * that may have been used before. Increments the sequenceNo. The ack
+     * number is left as it is, as setAck can't set it back to none.
+     */
+    private KtnDatagram initInternalPacket(KtnDatagram packet, Flag flag) {
         packet.setDest_port(remotePort);
         packet.setDest_addr(remoteAddress);
         packet.setSrc_addr(myAddress);
         packet.setSrc_port(myPort);
         packet.setFlag(flag);
-        packet.setSeq_nr(nextSequenceNo++);
-        packet.setPayload(null);
+        packet.setSeq_nr(takeSequenceNo());
+        // setPayload(null) leaves an old payload in place.
+        packet.setPayloadAsBytes(null);
 
         return packet;
     }
 
+    /** The sequence number for a new packet; increments the sequenceNo. */
+    protected int takeSequenceNo() {
+        synchronized (sequenceLock) {
+            return nextSequenceNo++;
+        }
+    }
+
     /**
-     * Sends a packet. Hides the underlying ClSocket from the students, and is
+     * Sends a packet. Hides the underlying {@link Link} from the students, and is
      * there to clearify that there are not only the other send-methods that
      * exists.
      * 
@@ -197,16 +371,17 @@ public abstract class AbstractConnection implements Connection {
      *            The {@link KtnDatagram} to send.
      * @throws IOException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link Link#send(KtnDatagram)}.
      * @throws ClException
      *             If thrown by the underlying
-     *             {@link ClSocket#send(KtnDatagram)}.
+     *             {@link Link#send(KtnDatagram)}.
      * @see #sendDataPacketWithRetransmit(KtnDatagram)
      * @see #sendAck(KtnDatagram, boolean)
-     * @see ClSocket#send(KtnDatagram)
+     * @see Link#send(KtnDatagram)
      */
     protected synchronized void simplySendPacket(KtnDatagram packet) throws ClException, IOException {
-        new ClSocket().send(packet);
+        checksum.sign(packet);
+        link.send(packet);
     }
 
     /**
@@ -215,7 +390,12 @@ public abstract class AbstractConnection implements Connection {
      * is reached). <br>
      * <br>
      * This method sets the {@link #lastDataPacketSent} variable. This method
-     * can only be used in the Established state, see {@link State}.
+     * can only be used in the Established state, or Close_wait when the
+     * other side has closed only its sending half, see {@link State}.<br>
+     * <br>
+     * It doesn't hold the connection's lock while waiting for the ack, so
+     * acks and the application's receive go on meanwhile. Callers make sure
+     * only one data packet is sent at a time.
      * 
      * @param packet
      *            the packet to be sent.
@@ -223,12 +403,12 @@ public abstract class AbstractConnection implements Connection {
      *         null)
      * @throws IOException
      *             thrown if unable to send packet.
-     * @see no.ntnu.fp.net.cl.ClSocket#send(KtnDatagram)
+     * @see Link#send(KtnDatagram)
      */
-    protected synchronized KtnDatagram sendDataPacketWithRetransmit(KtnDatagram packet)
+    protected KtnDatagram sendDataPacketWithRetransmit(KtnDatagram packet)
             throws IOException {
-        if (state != State.ESTABLISHED)
-            throw new IllegalStateException("Should only be used in ESTABLISHED state.");
+        if (!sendsData())
+            throw new IllegalStateException("Should only be used in ESTABLISHED or CLOSE_WAIT state.");
         if (packet.getFlag() != Flag.NONE)
             throw new IllegalArgumentException("Packet must be a data packet.");
         /*
@@ -239,11 +419,12 @@ public abstract class AbstractConnection implements Connection {
          */
 
         lastDataPacketSent = packet;
+        // Once, not for every retransmit.
+        checksum.sign(packet);
 
         // Create a timer that sends the packet and retransmits every
         // RETRANSMIT milliseconds until cancelled.
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new SendTimer(new ClSocket(), packet), 0, RETRANSMIT);
+        Clock.Task timer = clock.schedule(new SendTimer(link, packet, metrics), 0, RETRANSMIT);
 
         KtnDatagram ack = receiveAck();
         timer.cancel();
@@ -256,6 +437,10 @@ public abstract class AbstractConnection implements Connection {
      * If the send fails, there is no retransmission of the ack-packet: Just
      * wait for the other side to retransmit the original packet.<br>
      * <br>
+     * The ack is sent in the same packet object every time, so nothing is
+     * allocated here; on a link that allocates itself, like
+     * {@link ClSocketLink}, that is all that's left.<br>
+     * <br>
      * This method relies on
      * {@link #constructInternalPacket(Flag)}, i.e. myAddress,
      * myPort, remoteAddress, remotePort and sequenceNo must be initialized
@@ -270,7 +455,7 @@ public abstract class AbstractConnection implements Connection {
      *             Thrown if unable to send packet.
      * @see #constructInternalPacket(Flag)
      */
-    protected synchronized void sendAck(KtnDatagram packetToAck, boolean synAck)
+    protected void sendAck(KtnDatagram packetToAck, boolean synAck)
             throws IOException, ConnectException {
     
         /*
@@ -279,39 +464,55 @@ public abstract class AbstractConnection implements Connection {
          * failed - and write this to the Log.
          */
     
-        int tries = 3;
-        boolean sent = false;
+        // Not the connection's lock, which a send waiting for its ack may
+        // hold: acks go out meanwhile.
+        synchronized (ackPacket) {
+            int tries = 3;
+            boolean sent = false;
     
-        KtnDatagram ackToSend = constructInternalPacket(synAck ? Flag.SYN_ACK : Flag.ACK);
-        ackToSend.setAck(packetToAck.getSeq_nr());
+            KtnDatagram ackToSend = initInternalPacket(ackPacket,
+                    synAck ? Flag.SYN_ACK : Flag.ACK);
+            ackToSend.setAck(packetToAck.getSeq_nr());
+            if (synAck && checksum.isHeaderMode()) {
+                // Tell the other side we use the header checksum too.
+                ackToSend.setPayloadAsBytes(PacketChecksum.ACCEPT);
+            }
+            checksum.sign(ackToSend);
     
-        // Send the ack, trying at most `tries' times.
-        Log.writeToLog(ackToSend, "Sending Ack: " + ackToSend.getAck(), "AbstractConnection");
+            // Send the ack, trying at most `tries' times.
+            PacketLog.packet(LogLevel.INFO, "AbstractConnection", ackToSend, "Sending Ack: {}",
+                    ackToSend.getAck());
     
-        do {
-            try {
-                new ClSocket().send(ackToSend);
-                sent = true;
-            }
-            catch (ClException e) {
-                Log.writeToLog(ackToSend, "CLException: Could not establish a "
-                        + "connection to the specified address/port!", "AbstractConnection");
-            }
-            catch (ConnectException e) {
-                // Silently ignore: Maybe recipient was processing and didn't
-                // manage to call receiveAck() before we were ready to send.
+            do {
                 try {
-                    Thread.sleep(100);
+                    link.send(ackToSend);
+                    sent = true;
+                    metrics.ackSent();
                 }
-                catch (InterruptedException ex) {
+                catch (ClException e) {
+                    PacketLog.packet(LogLevel.WARN, "AbstractConnection", ackToSend,
+                            "CLException: Could not establish a connection to the "
+                                    + "specified address/port!");
+                }
+                catch (ConnectException e) {
+                    // Silently ignore: Maybe recipient was processing and didn't
+                    // manage to call receiveAck() before we were ready to send.
+                    try {
+                        clock.sleep(100);
+                    }
+                    catch (InterruptedException ex) {
+                    }
                 }
             }
-        }
-        while (!sent && (tries-- > 0));
+            while (!sent && (tries-- > 0));
     
-        if (!sent) {
-            nextSequenceNo--;
-            throw new ConnectException("Unable to send ACK.");
+            if (!sent) {
+                synchronized (sequenceLock) {
+                    // Unless a packet sent meanwhile has the next one.
+                    if (nextSequenceNo == ackToSend.getSeq_nr() + 1) nextSequenceNo--;
+                }
+                throw new ConnectException("Unable to send ACK.");
+            }
         }
     }
 
@@ -335,6 +536,19 @@ public abstract class AbstractConnection implements Connection {
      *             state.
      */
     protected KtnDatagram receivePacket(boolean internal) throws IOException, EOFException {
+        KtnDatagram packet;
+        do {
+            packet = receiveOnce(internal);
+        } while (packet == RECEIVE_AGAIN);
+        return packet;
+    }
+
+    /**
+     * One try of {@link #receivePacket(boolean)}, which returns
+     * {@link #RECEIVE_AGAIN} when it should try again. A loop, not
+     * recursion, as an idle connection polls without end.
+     */
+    private KtnDatagram receiveOnce(boolean internal) throws IOException, EOFException {
         /*
          * Acquire monitor for this instance, and see if another thread runs
          * receive on our port. If so, see if that thread gets the packet that
@@ -343,16 +557,16 @@ public abstract class AbstractConnection implements Connection {
         synchronized (this) {
             long before, after;
     
-            before = System.currentTimeMillis();
+            before = clock.currentTimeMillis();
             while (isReceiving) {
                 try {
                     if (internal)
-                        wait(TIMEOUT); // wait with timeout
+                        clock.waitOn(this, TIMEOUT); // wait with timeout
                     else wait(); // wait (potentially) forever
                 }
                 catch (InterruptedException e) { /* do nothing */
                 }
-                after = System.currentTimeMillis();
+                after = clock.currentTimeMillis();
     
                 // If a packet for us has arrived, return it.
                 if (internal) {
@@ -380,7 +594,8 @@ public abstract class AbstractConnection implements Connection {
             isReceiving = true;
         }
     
-        Log.writeToLog("Waiting for incoming packet in doReceive()", "AbstractConnection");
+        PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                "Waiting for incoming packet in doReceive()");
     
         KtnDatagram incomingPacket;
     
@@ -390,21 +605,13 @@ public abstract class AbstractConnection implements Connection {
          */
         if (internal) {
             // We are waiting for an internal packet, ie. a packet with a flag
-            long start = System.currentTimeMillis();
-            while (System.currentTimeMillis() - start < TIMEOUT) {
-                ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-                receiver.start();
-                // Wait at most what is left of the TIMEOUT period for thread to
-                // die, but never less than 1 millisecond
-                try {
-                    long timeout  = TIMEOUT - (System.currentTimeMillis() - start);
-                    receiver.join(Math.max(timeout, 1));
-                }
-                catch (InterruptedException e) { /* do nothing */
-                }
-    
-                receiver.stopReceive();
-                incomingPacket = receiver.getPacket();
+            long start = clock.currentTimeMillis();
+            while (clock.currentTimeMillis() - start < TIMEOUT) {
+                // Wait at most what is left of the TIMEOUT period, but never
+                // less than 1 millisecond
+                long timeout  = TIMEOUT - (clock.currentTimeMillis() - start);
+                incomingPacket = link.receive(myPort, Math.max(timeout, 1));
+                heard(incomingPacket);
                 if (incomingPacket == null) {
                     // No packet was received
                     synchronized (this) {
@@ -417,8 +624,8 @@ public abstract class AbstractConnection implements Connection {
                     // We have a packet
                     if (incomingPacket.getFlag() != Flag.NONE) {
                         // Packet is internal
-                        Log.writeToLog("Received an internal packet in doReceive",
-                                "AbstractConnection");
+                        PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                                "Received an internal packet in doReceive");
     
                         if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
                             // A FIN-packet has arrived in established state,
@@ -443,8 +650,8 @@ public abstract class AbstractConnection implements Connection {
                     else {
                         // Packet was meant for the application, continue
                         // listening until timeout.
-                        Log.writeToLog("Received an external packet in doReceive",
-                                "AbstractConnection");
+                        PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                                "Received an external packet in doReceive");
     
                         synchronized (this) {
                             synchronized (this) {
@@ -466,26 +673,35 @@ public abstract class AbstractConnection implements Connection {
         else {
             // We are waiting for a packet to an external application, ie. a
             // packet with no flags. Can possibly wait forever.
-            incomingPacket = new ClSocket().receive(myPort);
+            incomingPacket = link.receive(myPort, receivePoll);
+            heard(incomingPacket);
             if (incomingPacket == null) {
                 // We should get a packet, try again.
                 synchronized (this) {
                     isReceiving = false;
                     notifyAll();
                 }
-                return receivePacket(internal);
+                if (state == State.CLOSED) {
+                    throw new ConnectException("Connection closed.");
+                }
+                return RECEIVE_AGAIN;
             }
             else {
                 // We have a packet
                 if (incomingPacket.getFlag() != Flag.NONE) {
                     // Packet is internal
-                    Log.writeToLog("Received an internal packet in doReceive", "AbstractConnection");
+                    PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                            "Received an internal packet in doReceive");
     
-                    if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
-                        // A FIN-packet has arrived in established state,
-                        // stop receiving and throw and exception
+                    if (incomingPacket.getFlag() == Flag.FIN && receivesData()) {
+                        // A FIN-packet has arrived while the other side may
+                        // still send, stop receiving and throw and exception
                         disconnectRequest = incomingPacket;
                         synchronized (this) {
+                            if (state != State.ESTABLISHED) {
+                                // Half-closed: the close handshake waits for it.
+                                internalQueue.add(incomingPacket);
+                            }
                             isReceiving = false;
                             notifyAll();
                             throw new EOFException("FIN packet received.");
@@ -498,12 +714,13 @@ public abstract class AbstractConnection implements Connection {
                             isReceiving = false;
                             notifyAll();
                         }
-                        return receivePacket(internal);
+                        return RECEIVE_AGAIN;
                     }
                 }
                 else {
                     // Packet was meant for the application, yei!
-                    Log.writeToLog("Received an external packet in doReceive", "AbstractConnection");
+                    PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                            "Received an external packet in doReceive");
     
                     synchronized (this) {
                         isReceiving = false;
@@ -515,6 +732,29 @@ public abstract class AbstractConnection implements Connection {
         }
     }
 
+    /**
+     * Whether the other side may still send data: the connection is
+     * established, or only this side's sending half is closed.
+     */
+    private boolean receivesData() {
+        State now = state;
+        return now == State.ESTABLISHED || now == State.FIN_WAIT_1 || now == State.FIN_WAIT_2;
+    }
+
+    /**
+     * Whether this side may still send data: the connection is established,
+     * or only the other side's sending half is closed.
+     */
+    protected boolean sendsData() {
+        State now = state;
+        return now == State.ESTABLISHED || now == State.CLOSE_WAIT;
+    }
+
+    /** Note the time if a packet arrived, see {@link #lastHeardFrom}. */
+    private void heard(KtnDatagram packet) {
+        if (packet != null) lastHeardFrom = clock.currentTimeMillis();
+    }
+
     /**
      * Waits for an ACK or SYN_ACK. Blocks until the ack is recieved. Returns
      * null if no ack recieved after the specified time, see
@@ -543,25 +783,26 @@ public abstract class AbstractConnection implements Connection {
         synchronized (this) {
             long before, after;
 
-            before = System.currentTimeMillis();
+            before = clock.currentTimeMillis();
             while (isReceiving) {
                 try {
-                    wait(TIMEOUT); // wait with timeout
+                    clock.waitOn(this, TIMEOUT); // wait with timeout
                 }
                 catch (InterruptedException e) { /* do nothing */
                 }
-                after = System.currentTimeMillis();
+                after = clock.currentTimeMillis();
 
-                // If an ack for us has arrived, return it.
+                // If an ack for us has arrived, return it. It may be behind
+                // a FIN kept for the close handshake.
                 // check internalQueue
-                if (!internalQueue.isEmpty()) {
-                    KtnDatagram packet = internalQueue.get(0);
-                    if (packet.getFlag() == Flag.ACK || packet.getFlag() == Flag.SYN_ACK) {
-                        return internalQueue.remove(0);
+                for (int i = 0; i < internalQueue.size(); i++) {
+                    Flag flag = internalQueue.get(i).getFlag();
+                    if (flag == Flag.ACK || flag == Flag.SYN_ACK) {
+                        return internalQueue.remove(i);
                     }
                 }
                 // If no packet arrived, see if timeout has expired.
-                else if ((after - before) > TIMEOUT) {
+                if ((after - before) > TIMEOUT) {
                     return null;
                 }
             }
@@ -571,25 +812,19 @@ public abstract class AbstractConnection implements Connection {
             isReceiving = true;
         }
 
-        Log.writeToLog("Waiting for incoming packet in receiveAck()", "AbstractConnection");
+        PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                "Waiting for incoming packet in receiveAck()");
 
         KtnDatagram incomingPacket;
 
         // We are waiting for an ack or syn_ack packet
-        long start = System.currentTimeMillis();
-        while (System.currentTimeMillis() - start < TIMEOUT) {
-            ClSocketReceiver receiver = new ClSocketReceiver(myPort);
-            receiver.start();
-            // Wait at most what is left of the TIMEOUT period for thread to
-            // die, but never less than 1 millisecond
-            try {
-                receiver.join(Math.max(TIMEOUT - (System.currentTimeMillis() - start), 1));
-            }
-            catch (InterruptedException e) { /* do nothing */
-            }
-
-            receiver.stopReceive();
-            incomingPacket = receiver.getPacket();
+        long start = clock.currentTimeMillis();
+        while (clock.currentTimeMillis() - start < TIMEOUT) {
+            // Wait at most what is left of the TIMEOUT period, but never less
+            // than 1 millisecond
+            incomingPacket = link.receive(myPort,
+                    Math.max(TIMEOUT - (clock.currentTimeMillis() - start), 1));
+            heard(incomingPacket);
             if (incomingPacket == null) {
                 // No packet was received
                 synchronized (this) {
@@ -602,8 +837,8 @@ public abstract class AbstractConnection implements Connection {
                 // We have a packet
                 if (incomingPacket.getFlag() != Flag.NONE) {
                     // Packet is internal
-                    Log.writeToLog("Received an internal packet in receiveAck",
-                            "AbstractConnection");
+                    PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                            "Received an internal packet in receiveAck");
 
                     if (incomingPacket.getFlag() == Flag.FIN && state == State.ESTABLISHED) {
                         // A FIN-packet has arrived in established state,
@@ -637,8 +872,8 @@ public abstract class AbstractConnection implements Connection {
                 else {
                     // Packet was meant for the application, continue
                     // listening until timeout.
-                    Log.writeToLog("Received an external packet in receiveAck",
-                            "AbstractConnection");
+                    PacketLog.message(LogLevel.DEBUG, "AbstractConnection",
+                            "Received an external packet in receiveAck");
 
                     synchronized (this) {
                         synchronized (this) {
@@ -0,0 +1,192 @@
+package no.ntnu.fp.net.co;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * A sink that takes logging off the protocol threads. An entry is copied into
+ * a preallocated slot of a ring buffer ({@link LogEvent}), which takes a
+ * compare-and-set and a few field writes but no lock, and a background thread
+ * formats and writes the entries in batches.<br>
+ * <br>
+ * Several threads may log at once. A slot is claimed by advancing the
+ * claim counter, filled, and then published by storing its sequence number;
+ * the writer consumes slots strictly in sequence. If the ring is full the
+ * entry is dropped and counted rather than making the protocol wait, see
+ * {@link #getDropped()}.
+ */
+public class AsyncLogSink implements LogSink {
+
+    /** Default number of slots in the ring buffer. */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** Max entries written between two flushes. */
+    private static final int MAX_BATCH = 512;
+
+    private final LogEvent[] ring;
+    private final int mask;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed;
+    private volatile long consumed;
+    private final AtomicLong dropped;
+
+    private final LogEventWriter writer;
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    /**
+     * Log as text to a file, in the layout of the files in Log/.
+     *
+     * @throws IOException
+     *             if the file can not be created.
+     */
+    public AsyncLogSink(File file) throws IOException {
+        this(new TextEventWriter(file), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *            number of slots, rounded up to a power of two.
+     */
+    AsyncLogSink(LogEventWriter writer, int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        ring = new LogEvent[size];
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            ring[i] = new LogEvent();
+            published.set(i, -1);
+        }
+        mask = size - 1;
+        claimed = new AtomicLong();
+        consumed = 0;
+        dropped = new AtomicLong();
+        this.writer = writer;
+        closed = false;
+        writerThread = new Thread("AsyncLogSink") {
+            public void run() {
+                drain();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * A sink writing to Log/&lt;timestamp&gt;_&lt;name&gt;_packets.txt, next to
+     * the files written by {@link no.ntnu.fp.net.admin.Log}.
+     */
+    public static AsyncLogSink inLogDirectory(String name) throws IOException {
+        File directory = new File("Log");
+        directory.mkdirs();
+        return new AsyncLogSink(new File(directory, System.currentTimeMillis() + "_" + name
+                + "_packets.txt"));
+    }
+
+    /**
+     * A sink writing a binary trace to Log/&lt;timestamp&gt;_&lt;name&gt;.ktnt,
+     * see {@link BinaryTraceWriter} and {@link TraceTool}.
+     *
+     * @param payloadBytes
+     *            bytes of payload text kept per packet, 0 for none.
+     */
+    public static AsyncLogSink binaryTrace(String name, int payloadBytes) throws IOException {
+        File directory = new File("Log");
+        directory.mkdirs();
+        File file = new File(directory, System.currentTimeMillis() + "_" + name + ".ktnt");
+        return new AsyncLogSink(new BinaryTraceWriter(file, payloadBytes), DEFAULT_CAPACITY);
+    }
+
+    public void packet(KtnDatagram packet, String comment, String component) {
+        offer(packet, comment, component);
+    }
+
+    public void message(String comment, String component) {
+        offer(null, comment, component);
+    }
+
+    /** Number of entries dropped because the ring buffer was full. */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Number of entries waiting to be written. */
+    public int getBacklog() {
+        return (int) (claimed.get() - consumed);
+    }
+
+    /** Write what has been logged so far, and stop the writer. */
+    public void close() {
+        if (closed) return;
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(5000);
+        }
+        catch (InterruptedException e) { /* give up waiting */
+        }
+    }
+
+    private void offer(KtnDatagram packet, String comment, String component) {
+        if (closed) return;
+        long seq;
+        do {
+            seq = claimed.get();
+            if (seq - consumed >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+        while (!claimed.compareAndSet(seq, seq + 1));
+
+        int index = (int) seq & mask;
+        ring[index].set(System.currentTimeMillis(), packet, comment, component);
+        published.lazySet(index, seq);
+    }
+
+    private void drain() {
+        int inBatch = 0;
+        while (true) {
+            long next = consumed;
+            int index = (int) next & mask;
+            if (published.get(index) == next) {
+                LogEvent event = ring[index];
+                try {
+                    writer.write(event);
+                }
+                catch (IOException e) {
+                    dropped.incrementAndGet();
+                }
+                event.clear();
+                consumed = next + 1;
+                if (++inBatch < MAX_BATCH) continue;
+            }
+            if (inBatch > 0) {
+                flush();
+                inBatch = 0;
+                continue;
+            }
+            if (closed && claimed.get() == next) break;
+            LockSupport.parkNanos(1000000);
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e) {
+            System.err.println("AsyncLogSink: Could not close log: " + e.getMessage());
+        }
+    }
+
+    private void flush() {
+        try {
+            writer.flush();
+        }
+        catch (IOException e) {
+            System.err.println("AsyncLogSink: Could not write log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package no.ntnu.fp.net.co;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes log entries as a binary trace: a small file header followed by
+ * fixed-size records, with nothing to pad or format but the comment. With
+ * the default 16 payload bytes a record is 125 bytes, about three fifths of
+ * the 205 or so of a packet's line in the text log. Use {@link TraceTool} to
+ * read a trace, or to convert it to the text layout of Log/.<br>
+ * <br>
+ * File header: magic "KTNT", version (short), payload bytes per record
+ * (short). Record:
+ * <ol>
+ * <li>time (long, millis)
+ * <li>flag (byte, {@link no.ntnu.fp.net.cl.KtnDatagram.Flag} ordinal or -1
+ * for a comment without a packet)
+ * <li>source address (int, IPv4), source port (int)
+ * <li>destination address (int, IPv4), destination port (int)
+ * <li>sequence number (int), ack number (int)
+ * <li>checksum (long)
+ * <li>component ({@value #COMPONENT_BYTES} bytes, zero padded)
+ * <li>comment ({@value #COMMENT_BYTES} bytes, zero padded)
+ * <li>start of the payload as text (payload bytes from the header, zero
+ * padded)
+ * </ol>
+ * Strings are ISO-8859-1 and cut to fit.
+ */
+class BinaryTraceWriter implements LogEventWriter {
+
+    static final int MAGIC = 0x4b544e54; // "KTNT"
+    static final short VERSION = 1;
+    static final int COMPONENT_BYTES = 20;
+    static final int COMMENT_BYTES = 48;
+    /** Size of a record without the payload. */
+    static final int FIXED_BYTES = 8 + 1 + 4 * 6 + 8 + COMPONENT_BYTES + COMMENT_BYTES;
+
+    private final DataOutputStream out;
+    private final int payloadBytes;
+    private final byte[] scratch;
+
+    /**
+     * @param payloadBytes
+     *            bytes of payload text kept per record, 0 for none.
+     */
+    BinaryTraceWriter(File file, int payloadBytes) throws IOException {
+        if (payloadBytes < 0 || payloadBytes > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Bad payload size: " + payloadBytes);
+        }
+        this.payloadBytes = payloadBytes;
+        scratch = new byte[Math.max(COMMENT_BYTES, payloadBytes)];
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(payloadBytes);
+    }
+
+    public void write(LogEvent event) throws IOException {
+        out.writeLong(event.time);
+        out.writeByte(event.flag);
+        out.writeInt(ipv4(event.srcAddr));
+        out.writeInt(event.srcPort);
+        out.writeInt(ipv4(event.destAddr));
+        out.writeInt(event.destPort);
+        out.writeInt(event.seq);
+        out.writeInt(event.ack);
+        out.writeLong(event.checksum);
+        writeFixed(event.component, COMPONENT_BYTES);
+        writeFixed(event.comment, COMMENT_BYTES);
+        if (payloadBytes > 0) {
+            writeFixed(event.isPacket() ? TextEventWriter.payloadStart(event.payload) : null,
+                    payloadBytes);
+        }
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Read the file header.
+     *
+     * @return payload bytes per record.
+     * @throws IOException
+     *             if this is not a trace file.
+     */
+    static int readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("Not a KTN trace file.");
+        short version = in.readShort();
+        if (version != VERSION) throw new IOException("Unknown trace version " + version + ".");
+        return in.readShort();
+    }
+
+    /**
+     * Read the next record into an event. The payload text is put in
+     * {@link LogEvent#payloadText}.
+     *
+     * @return false at the end of the trace.
+     */
+    static boolean read(DataInputStream in, int payloadBytes, LogEvent event) throws IOException {
+        try {
+            event.time = in.readLong();
+        }
+        catch (EOFException e) {
+            return false;
+        }
+        event.flag = in.readByte();
+        event.srcAddr = ipv4(in.readInt());
+        event.srcPort = in.readInt();
+        event.destAddr = ipv4(in.readInt());
+        event.destPort = in.readInt();
+        event.seq = in.readInt();
+        event.ack = in.readInt();
+        event.checksum = in.readLong();
+        byte[] buf = new byte[Math.max(COMMENT_BYTES, payloadBytes)];
+        event.component = readFixed(in, buf, COMPONENT_BYTES);
+        event.comment = readFixed(in, buf, COMMENT_BYTES);
+        event.payload = null;
+        event.payloadText = payloadBytes > 0 ? readFixed(in, buf, payloadBytes) : "";
+        return true;
+    }
+
+    private void writeFixed(String s, int length) throws IOException {
+        int n = 0;
+        if (s != null) {
+            n = Math.min(s.length(), length);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                scratch[i] = (byte) (c < 256 ? c : '?');
+            }
+        }
+        for (int i = n; i < length; i++) {
+            scratch[i] = 0;
+        }
+        out.write(scratch, 0, length);
+    }
+
+    private static String readFixed(DataInputStream in, byte[] buf, int length) throws IOException {
+        in.readFully(buf, 0, length);
+        int n = 0;
+        while (n < length && buf[n] != 0) {
+            n++;
+        }
+        return new String(buf, 0, n, "ISO-8859-1");
+    }
+
+    /** Dotted IPv4 address to int, 0 if it isn't one. */
+    static int ipv4(String address) {
+        if (address == null) return 0;
+        int value = 0, part = 0, dots = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c == '.') {
+                if (++dots > 3 || part > 255) return 0;
+                value = (value << 8) | part;
+                part = 0;
+            }
+            else if (c >= '0' && c <= '9') {
+                part = part * 10 + (c - '0');
+                if (part > 255) return 0;
+            }
+            else {
+                return 0;
+            }
+        }
+        if (dots != 3) return 0;
+        return (value << 8) | part;
+    }
+
+    static String ipv4(int address) {
+        return ((address >>> 24) & 0xff) + "." + ((address >>> 16) & 0xff) + "."
+                + ((address >>> 8) & 0xff) + "." + (address & 0xff);
+    }
+}
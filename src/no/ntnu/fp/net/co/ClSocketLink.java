@@ -0,0 +1,58 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.ClSocket;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The link the connection layer has always used: every send and receive goes
+ * through a new {@link ClSocket}, with the errors and delays of
+ * {@link no.ntnu.fp.net.cl.FailureController}, in real time.
+ */
+public final class ClSocketLink implements Link {
+
+    public static final ClSocketLink INSTANCE = new ClSocketLink();
+
+    private ClSocketLink() {
+    }
+
+    /**
+     * Sends a copy: the connectionless layer keeps the datagram it is given
+     * to send a delayed one later, and its errors change the header in
+     * place.
+     */
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        new ClSocket().send(SimulatedLink.copy(packet));
+    }
+
+    /**
+     * Receives in a {@link ClSocketReceiver} thread when there is a timeout,
+     * as ClSocket can only be cancelled from another thread.
+     */
+    public KtnDatagram receive(int port, long timeout) throws IOException {
+        if (timeout <= 0) return new ClSocket().receive(port);
+        ClSocketReceiver receiver = new ClSocketReceiver(port);
+        receiver.start();
+        try {
+            receiver.join(timeout);
+        }
+        catch (InterruptedException e) { /* do nothing */
+        }
+        receiver.stopReceive();
+        return receiver.getPacket();
+    }
+
+    public Clock getClock() {
+        return SystemClock.INSTANCE;
+    }
+
+    /**
+     * No: the connectionless layer sets every datagram's checksum to that of
+     * its payload, and sends acks without payload.
+     */
+    public boolean keepsChecksum() {
+        return false;
+    }
+}
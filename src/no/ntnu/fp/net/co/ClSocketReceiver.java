@@ -2,7 +2,6 @@ package no.ntnu.fp.net.co;
 
 import java.io.IOException;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 
@@ -37,7 +36,8 @@ class ClSocketReceiver extends Thread {
             connection = null;
         }
         catch (Exception e) {
-            Log.writeToLog("Exception while receiving: " + e.getMessage(), "ClSocketReceiver");
+            PacketLog.message(LogLevel.WARN, "ClSocketReceiver", "Exception while receiving: {}",
+                    e.getMessage());
             e.printStackTrace();
         }
     }
@@ -0,0 +1,48 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Time as seen by the connection layer. Timeouts, sleeps and retransmit
+ * timers go through a clock instead of System and java.util.Timer, so a
+ * connection on a {@link SimulatedLink} can run on a {@link VirtualClock}.
+ *
+ * @see Link#getClock()
+ */
+public interface Clock {
+
+    /** A scheduled task, see {@link Clock#schedule(Runnable, long, long)}. */
+    public interface Task {
+        /** Stop the task. A run that has already started completes. */
+        public void cancel();
+    }
+
+    public long currentTimeMillis();
+
+    /** For measuring elapsed time, like {@link System#nanoTime()}. */
+    public long nanoTime();
+
+    public void sleep(long millis) throws InterruptedException;
+
+    /**
+     * Wait on a monitor the caller holds, like {@link Object#wait(long)}.
+     * May return early; callers check their condition and the time, as they
+     * must with wait() anyway.
+     *
+     * @param millis
+     *            max time to wait, 0 to wait until notified.
+     */
+    public void waitOn(Object monitor, long millis) throws InterruptedException;
+
+    /**
+     * Run a task after a delay, and then every period.
+     *
+     * @param period
+     *            millis between runs, 0 to run once.
+     */
+    public Task schedule(Runnable task, long delay, long period);
+
+    /**
+     * Tell the clock about a thread that will use it, before the thread is
+     * started. A virtual clock doesn't move on while the thread starts up.
+     */
+    public void attend(Thread thread);
+}
@@ -1,6 +1,7 @@
 package no.ntnu.fp.net.co;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 /**
  * Interface that defines the methods a Connection implementation must support.
@@ -59,6 +60,63 @@ public interface Connection {
      */
     public String receive() throws java.net.ConnectException, java.io.IOException;
 
+    /**
+     * Send a binary message to a remote instance. The bytes are sent as they
+     * are, and the remote instance should receive them with
+     * {@link #receiveBytes()} or {@link #receive(ByteBuffer)}.
+     * 
+     * @param data
+     *            the message to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(byte[] data) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Send the remaining bytes of a buffer as one binary message, see
+     * {@link #send(byte[])}. The buffer's position is moved to its limit.
+     * 
+     * @param data
+     *            the message to be sent
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when sending
+     */
+    public void send(ByteBuffer data) throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Synchronous receive of a binary message from remote instance. Blocks
+     * until a message is received.
+     * 
+     * @return the received message
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public byte[] receiveBytes() throws java.net.ConnectException, java.io.IOException;
+
+    /**
+     * Synchronous receive of a binary message into a buffer, from its
+     * position. Blocks until a message is received.
+     * 
+     * @param dst
+     *            the buffer to put the message in
+     * @return the number of bytes received
+     * @throws java.nio.BufferOverflowException
+     *             if the message doesn't fit in the remaining space. Nothing
+     *             is put in the buffer, and the message is returned by the
+     *             next receive.
+     * @throws java.net.ConnectException
+     *             if no remote instance is connected
+     * @throws java.io.IOException
+     *             if an I/O error occurs when receiving
+     */
+    public int receive(ByteBuffer dst) throws java.net.ConnectException, java.io.IOException;
+
     /**
      * Closes this connection
      * 
@@ -2,18 +2,26 @@ package no.ntnu.fp.net.co;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import no.ntnu.fp.net.cl.ClException;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
 import no.ntnu.fp.net.cl.KtnDatagram.Flag;
 
 /**
@@ -33,8 +41,71 @@ public class ConnectionImpl extends AbstractConnection {
 
 	/** Keeps track of the used ports for each server port. */
     private static Map<Integer, Boolean> usedPorts = Collections.synchronizedMap(new HashMap<Integer, Boolean>());
-    private static boolean sendingPacket;
+    /** Established connections by session id, for the listener to resume. */
+    private static Map<String, ConnectionImpl> sessions = Collections.synchronizedMap(new HashMap<String, ConnectionImpl>());
+    /** Guards {@link #sendingPacket}, see {@link #waitForSendTurn()}. */
+    private final Object sendTurn = new Object();
+    private boolean sendingPacket;
+    /** The session id, see {@link #resume()}; null if the peer didn't start one. */
+    private volatile String session;
+    /** The server's listening endpoint, where resumes go. Client side only. */
+    private Endpoint listener;
+    /** The last data packet sent that got no ack; {@link #resume()} sends it again. */
+    private volatile KtnDatagram unacked;
+    /** Keep-alive settings, see {@link #setKeepAlive(long, long)}; 0 for none. */
+    private volatile long keepAliveIdle, keepAliveTimeout;
+    /** When the last keep-alive probe was sent. Keep-alive timer only. */
+    private long lastProbe;
+    private volatile DeadPeerListener deadPeerListener;
+    /** Messages waiting to be sent. Its thread is started on the first send. */
+    private final SendQueue queue;
+    /** The close handshake once started, see {@link #closeAsync(long)}. */
+    private Future<Void> closing;
+    /** When the close started, for {@link TransportMetrics}. */
+    private long closeStart;
+    /** Closed for receiving, by {@link #closeAsync(long)}. */
+    private volatile boolean inputShutdown;
+    /** The close handshake ran past its deadline and was aborted. */
+    private volatile boolean timedOut;
+    /** A message that didn't fit in the buffer given to receive(ByteBuffer). */
+    private byte[] pendingPayload;
     private final int MAX_TRIES = 10;
+    /** Default capacity of the send queue, see {@link #setSendQueue(int, OverflowPolicy, long)}. */
+    public static final int SEND_QUEUE_CAPACITY = 64;
+    /** Millis {@link #close()} may take, see {@link #close(long)}. */
+    public static final long CLOSE_TIMEOUT = 20000;
+    /**
+     * Millis the port of a connection closed from this side stays reserved
+     * after the close, for packets still on their way: twice the time a
+     * packet is waited for.
+     */
+    public static final long TIME_WAIT_MILLIS = 2L * TIMEOUT;
+    /** SYNs sent by {@link #resume()} before giving up. */
+    private static final int RESUME_TRIES = 3;
+    /**
+     * Sequence number of a keep-alive that answers a probe. No connection
+     * uses 0, and the connectionless layer doesn't keep the ack number of a
+     * data packet, so the answer can't be told apart by that.
+     */
+    private static final int KEEPALIVE_ANSWER = 0;
+
+    static {
+        TransportMetrics.registerGauge("ports.inUse", new Gauge() {
+            public long value() {
+                return usedPorts.size();
+            }
+        });
+        TransportMetrics.registerGauge("sessions", new Gauge() {
+            public long value() {
+                return sessions.size();
+            }
+        });
+        TransportMetrics.registerGauge("ports.timeWait", new Gauge() {
+            public long value() {
+                return Teardown.getTimeWaiting();
+            }
+        });
+    }
 
     /**
      * Initialize initial sequence number and setup state machine.
@@ -43,18 +114,28 @@ public class ConnectionImpl extends AbstractConnection {
      *            - the local port to associate with this connection
      */
     public ConnectionImpl(int myPort) {
-    	super();
+    	this(myPort, getDefaultLink());
+    }
+
+    /**
+     * A connection on the given link instead of the default.
+     * 
+     * @param myPort
+     *            - the local port to associate with this connection
+     * @param link
+     *            - the network to use, e.g. a {@link SimulatedLink}
+     */
+    public ConnectionImpl(int myPort, Link link) {
+    	super(link);
     	ConnectionImpl.usedPorts.put(myPort, true);
-        this.myAddress = getIPv4Address();
-        this.myPort = myPort;
+        setLocal(Endpoint.local(myPort));
+        queue = new SendQueue(SEND_QUEUE_CAPACITY, OverflowPolicy.BLOCK, 0, clock,
+        		String.valueOf(myPort));
     }
 
+    /** The local address; looked up once, see {@link Endpoint#localAddress()}. */
     public String getIPv4Address() {
-        try {
-            return InetAddress.getLocalHost().getHostAddress();
-        } catch (UnknownHostException e) {
-            return "127.0.0.1";
-        }
+        return Endpoint.localAddress();
     }
 
     /**
@@ -74,15 +155,20 @@ public class ConnectionImpl extends AbstractConnection {
     	if (state != State.CLOSED) {
     		throw new IllegalStateException("Must be in closed state.");
     	}
-    	this.remoteAddress = remoteAddress.getHostAddress();
-        this.remotePort = remotePort;
+    	long start = clock.nanoTime();
+        setRemote(Endpoint.of(remoteAddress, remotePort));
+        listener = remote;
+        String nonce = Handshake.newNonce();
+        String offer = Handshake.option(Handshake.SESSION, nonce);
         KtnDatagram syn = constructInternalPacket(Flag.SYN);
+        syn.setPayloadAsBytes(PacketChecksum.offered(link)
+        		? Handshake.payload(PacketChecksum.OFFER, offer) : Handshake.payload(offer));
         
         try {
 			simplySendPacket(syn);
 		} catch(ClException e) {
 			try {
-				Thread.sleep(5000);
+				clock.sleep(5000);
 			} catch(InterruptedException ie) {
 				//
 			}
@@ -97,16 +183,248 @@ public class ConnectionImpl extends AbstractConnection {
         if (!isValid(synack)) {
         	throw new IOException("Not valid synack received.");
         }
-        this.remotePort = synack.getSrc_port();
+        setRemote(remote.withPort(synack.getSrc_port()));
         lastValidPacketReceived = synack;
+        checksum.setHeaderMode(PacketChecksum.offered(link) && PacketChecksum.isOffer(synack));
         
         try {
-        	Thread.sleep(1000);
+        	clock.sleep(1000);
         } catch(InterruptedException e) {
         	//
         }
         sendAck(synack, false);
         state = State.ESTABLISHED;
+        session = Handshake.sessionId(nonce, synack.getSeq_nr());
+        TransportMetrics.opened(metrics, clock.nanoTime() - start);
+    }
+
+    /**
+     * Continue this connection after the network failed, e.g. when this host
+     * got a new address, in one round trip instead of a new connect(): a SYN
+     * with the session id goes to the server's listening port, and the
+     * server moves its end of the connection to where the SYN came from and
+     * answers with a SYN_ACK from it. Sequence numbers go on where they were,
+     * and the message that got no ack, if any, is sent again before this
+     * returns. The application on the other side notices nothing.<br>
+     * <br>
+     * Only for a connection made with {@link #connect(InetAddress, int)},
+     * to a server that is in {@link #accept()}.
+     * 
+     * @throws SocketTimeoutException
+     *             If the server didn't answer; it may not know the session
+     *             any more. Connect anew then.
+     * @throws IOException
+     *             If the message that got no ack still gets none.
+     * @throws IllegalStateException
+     *             If there is no session, or the connection isn't
+     *             established.
+     */
+    public void resume() throws IOException {
+    	if (session == null || listener == null) {
+    		throw new IllegalStateException("No session to resume.");
+    	}
+    	if (state != State.ESTABLISHED) {
+    		throw new IllegalStateException("Must be in established state.");
+    	}
+    	KtnDatagram syn = resumePacket(Flag.SYN);
+    	syn.setDest_addr(listener.getAddress());
+    	syn.setDest_port(listener.getPort());
+    	syn.setPayloadAsBytes(Handshake.payload(Handshake.option(Handshake.RESUME, session)));
+    	for (int tries = 0; tries < RESUME_TRIES; tries++) {
+    		try {
+    			simplySendPacket(syn);
+    		} catch(ClException e) {
+    			try {
+    				clock.sleep(RETRANSMIT);
+    			} catch(InterruptedException ie) {
+    				//
+    			}
+    			continue;
+    		}
+    		KtnDatagram synack = receiveAck();
+    		if (synack != null && synack.getFlag() == Flag.SYN_ACK
+    				&& synack.getAck() == syn.getSeq_nr() && isValid(synack)) {
+    			setRemote(listener.withPort(synack.getSrc_port()));
+    			if (synack.getSeq_nr() > lastValidPacketReceived.getSeq_nr()) {
+    				lastValidPacketReceived = synack;
+    			}
+    			PacketLog.message(LogLevel.INFO, "ConnectionImpl", "Session {} resumed at {}",
+    					session, remote);
+    			resendUnacked();
+    			return;
+    		}
+    	}
+    	throw new SocketTimeoutException("Session " + session + " was not resumed.");
+    }
+
+    /**
+     * Probe the peer when nothing has been heard from it for a while, and
+     * close the connection if it stays silent. A probe is a data packet
+     * without payload, which the peer answers from its receive() and which
+     * the application never sees. So the peer needs to be receiving, as
+     * chat clients and servers always are, and so does this side: packets
+     * are only heard while something receives on the connection.<br>
+     * <br>
+     * A connection closed this way is CLOSED at once, without a FIN: its
+     * port is free, a receive() waiting on it throws a ConnectException
+     * within idleMillis, and the {@link DeadPeerListener} is told. All
+     * connections on a clock share one timer.
+     * 
+     * @param idleMillis
+     *            probe after this long without hearing from the peer, and
+     *            again every idleMillis. 0 turns keep-alive off.
+     * @param timeoutMillis
+     *            close the connection after this long without hearing from
+     *            the peer. Should leave room for a few probes.
+     */
+    public void setKeepAlive(long idleMillis, long timeoutMillis) {
+    	if (idleMillis < 0 || timeoutMillis < 0 || (idleMillis > 0 && timeoutMillis < idleMillis)) {
+    		throw new IllegalArgumentException("Timeout must be at least the idle time.");
+    	}
+    	keepAliveIdle = idleMillis;
+    	keepAliveTimeout = timeoutMillis;
+    	receivePoll = idleMillis;
+    	if (idleMillis > 0) {
+    		lastHeardFrom = clock.currentTimeMillis();
+    		KeepAlive.add(this, clock);
+    	} else {
+    		KeepAlive.remove(this, clock);
+    	}
+    }
+
+    public void setDeadPeerListener(DeadPeerListener listener) {
+    	deadPeerListener = listener;
+    }
+
+    /** Probe or close, see {@link #setKeepAlive(long, long)}. Keep-alive timer only. */
+    void keepAlive(long now) {
+    	if (state != State.ESTABLISHED) {
+    		return;
+    	}
+    	long silent = now - lastHeardFrom;
+    	if (silent >= keepAliveTimeout) {
+    		peerDead(silent);
+    	} else if (silent >= keepAliveIdle && now - lastProbe >= keepAliveIdle) {
+    		lastProbe = now;
+    		int last;
+    		synchronized (sequenceLock) {
+    			last = nextSequenceNo - 1;
+    		}
+    		sendKeepAlive(last);
+    	}
+    }
+
+    private void peerDead(long silent) {
+    	PacketLog.message(LogLevel.WARN, "ConnectionImpl", "Nothing heard from {} in {} ms, closing.",
+    			remote, silent);
+    	state = State.CLOSED;
+    	release(false);
+    	TransportMetrics.closed(metrics, 0);
+    	DeadPeerListener listener = deadPeerListener;
+    	if (listener != null) {
+    		listener.peerDead(this, silent);
+    	}
+    }
+
+    /**
+     * Send a keep-alive: a data packet without payload. It has no sequence
+     * number of its own; a probe has the last one used, an answer
+     * {@link #KEEPALIVE_ANSWER}. Sent on the link as it is, so the shared
+     * keep-alive timer never waits for a connection's lock.
+     */
+    private void sendKeepAlive(int seq) {
+    	KtnDatagram packet = new KtnDatagram();
+    	packet.setSrc_addr(myAddress);
+    	packet.setSrc_port(myPort);
+    	packet.setDest_addr(remoteAddress);
+    	packet.setDest_port(remotePort);
+    	packet.setFlag(Flag.NONE);
+    	packet.setSeq_nr(seq);
+    	checksum.sign(packet);
+    	try {
+    		link.send(packet);
+    	} catch(ClException e) {
+    		PacketLog.packet(LogLevel.DEBUG, "ConnectionImpl", packet, "Keep-alive not sent");
+    	} catch(IOException e) {
+    		PacketLog.packet(LogLevel.DEBUG, "ConnectionImpl", packet, "Keep-alive not sent");
+    	}
+    }
+
+    private boolean isKeepAlive(KtnDatagram packet) {
+    	return packet.getFlag() == Flag.NONE && packet.getPayloadAsBytes() == null && isValid(packet);
+    }
+
+    /** The session id, or null if the connection has no session. */
+    public String getSession() {
+    	return session;
+    }
+
+    private void resendUnacked() throws IOException {
+    	waitForSendTurn();
+    	try {
+    		KtnDatagram pending = unacked;
+    		if (pending != null) {
+    			readdress(pending);
+    			sendDataPacket(pending);
+    		}
+    	} finally {
+    		endSendTurn();
+    	}
+    }
+
+    /**
+     * A SYN or SYN_ACK for a resume. It doesn't use up a sequence number:
+     * it has the last one the other side should have got from us, so the
+     * packet sent next, or the unacked one sent again, comes in order.
+     */
+    private KtnDatagram resumePacket(Flag flag) {
+    	synchronized (sequenceLock) {
+    		KtnDatagram packet = constructInternalPacket(flag);
+    		nextSequenceNo--;
+    		KtnDatagram pending = unacked;
+    		packet.setSeq_nr(pending != null ? pending.getSeq_nr() - 1 : nextSequenceNo - 1);
+    		return packet;
+    	}
+    }
+
+    /** Send a packet that was addressed to the old endpoint to the current one. */
+    private void readdress(KtnDatagram packet) {
+    	packet.setDest_addr(remoteAddress);
+    	packet.setDest_port(remotePort);
+    	checksum.sign(packet);
+    }
+
+    /**
+     * The peer of this session has moved to where the resume SYN came from.
+     * Called by the listener that got the SYN. A send going on keeps
+     * retransmitting, to the new endpoint; one the application was already
+     * told failed is not sent again from this side.
+     */
+    private void resumeFrom(KtnDatagram syn) throws IOException {
+    	setRemote(Endpoint.of(syn.getSrc_addr(), syn.getSrc_port()));
+    	if (lastValidPacketReceived == null || syn.getSeq_nr() > lastValidPacketReceived.getSeq_nr()) {
+    		lastValidPacketReceived = syn;
+    	}
+    	synchronized (sendTurn) {
+    		// No send can start meanwhile and set unacked.
+    		if (!sendingPacket) {
+    			unacked = null;
+    		}
+    	}
+    	KtnDatagram pending = unacked;
+    	if (pending != null) {
+    		readdress(pending);
+    	}
+    	KtnDatagram synack = resumePacket(Flag.SYN_ACK);
+    	synack.setAck(syn.getSeq_nr());
+    	try {
+    		simplySendPacket(synack);
+    	} catch(ClException e) {
+    		PacketLog.packet(LogLevel.WARN, "ConnectionImpl", synack, "Could not answer resume");
+    		return;
+    	}
+    	PacketLog.message(LogLevel.INFO, "ConnectionImpl", "Session {} resumed from {}",
+    			session, remote);
     }
 
     /**
@@ -124,77 +442,299 @@ public class ConnectionImpl extends AbstractConnection {
     	KtnDatagram syn;
     	do {
     		syn = receivePacket(true);
-    	} while (syn == null || syn.getFlag() != Flag.SYN);
+    		if (state != State.LISTEN) {
+    			throw new ConnectException("Stopped listening.");
+    		}
+    	} while (syn == null || syn.getFlag() != Flag.SYN || resumeSession(syn));
+    	long start = clock.nanoTime();
     	
     	int port = 4000;
     	while (ConnectionImpl.usedPorts.containsKey(port)) {
     		port++;
     	}
     	
-    	ConnectionImpl newConnection = new ConnectionImpl(port);
-    	newConnection.remoteAddress = syn.getSrc_addr();
-    	newConnection.remotePort = syn.getSrc_port();
+    	ConnectionImpl newConnection = new ConnectionImpl(port, link);
+    	newConnection.setRemote(Endpoint.of(syn.getSrc_addr(), syn.getSrc_port()));
     	newConnection.state = State.SYN_RCVD;
+    	newConnection.checksum.setHeaderMode(PacketChecksum.offered(link) && PacketChecksum.isOffer(syn));
+    	String nonce = Handshake.get(syn, Handshake.SESSION);
     	
     	try {
-    		Thread.sleep(1000);
+    		clock.sleep(1000);
     	} catch(InterruptedException e) {
     		//
     	}
+    	int synAckSeq = newConnection.nextSequenceNo;
     	newConnection.sendAck(syn, true);
         
         KtnDatagram ack = newConnection.receiveAck();
-        if (!isValid(ack)) {
+        if (!newConnection.isValid(ack)) {
         	throw new IOException("Not valid ack received.");
         }
         newConnection.lastValidPacketReceived = ack;
         newConnection.state = State.ESTABLISHED;
+        if (nonce != null) {
+        	newConnection.session = Handshake.sessionId(nonce, synAckSeq);
+        	sessions.put(newConnection.session, newConnection);
+        }
+        TransportMetrics.opened(newConnection.metrics, clock.nanoTime() - start);
         state = State.CLOSED;
         return newConnection;
     }
 
     /**
-     * Send a message from the application.
+     * If the SYN asks to resume a session, move that session's connection to
+     * the SYN's sender, see {@link #resume()}. A resume of a session that
+     * isn't known here is not answered, so the client connects anew.
+     * 
+     * @return whether the SYN was a resume.
+     */
+    private boolean resumeSession(KtnDatagram syn) throws IOException {
+    	String id = Handshake.get(syn, Handshake.RESUME);
+    	if (id == null) {
+    		return false;
+    	}
+    	ConnectionImpl conn = sessions.get(id);
+    	if (conn == null || conn.link != link || !isValid(syn)) {
+    		PacketLog.packet(LogLevel.WARN, "ConnectionImpl", syn, "Not resuming session {}", id);
+    		return true;
+    	}
+    	conn.resumeFrom(syn);
+    	return true;
+    }
+
+    /**
+     * Send a message from the application. It goes through the send queue
+     * like an {@link #offer(String)}, and this waits until it is acked.
      * 
      * @param msg
      *            - the String to be sent.
      * @throws ConnectException
      *             If no connection exists.
      * @throws IOException
-     *             If no ACK was received.
+     *             If no ACK was received, or the queue was full.
      * @see AbstractConnection#sendDataPacketWithRetransmit(KtnDatagram)
      * @see no.ntnu.fp.net.co.Connection#send(String)
      */
     public void send(String msg) throws ConnectException, IOException {
-    	while (sendingPacket) {
-			try {
-				Thread.sleep(50);
-			} catch(InterruptedException e) {
-				//
-			}
+    	await(offer(msg));
+    }
+
+    /**
+     * Queue a message to be sent, and return without waiting for the
+     * network. The connection's sender thread sends the queued messages in
+     * order, each when the one before is acked. Sequence numbers are given
+     * as messages are sent, so a message dropped from the queue leaves no
+     * gap.
+     * 
+     * @return The message's future: done when it is acked; get() throws
+     *         what {@link #send(String)} would have, wrapped in an
+     *         ExecutionException, and a CancellationException if the
+     *         message was dropped from the queue.
+     * @throws ConnectException
+     *             If the connection is closed.
+     * @throws IOException
+     *             If the queue is full, see {@link OverflowPolicy}.
+     * @see #setSendQueue(int, OverflowPolicy, long)
+     */
+    public Future<Void> offer(String msg) throws ConnectException, IOException {
+    	return offer(msg, Priority.NORMAL);
+    }
+
+    /**
+     * Queue a message with a priority, see {@link #offer(String)}. It is
+     * sent before the queued messages of lower priority.
+     */
+    public Future<Void> offer(String msg, Priority priority) throws ConnectException, IOException {
+    	return queue.offer(new QueuedSend(msg, null), priority);
+    }
+
+    /**
+     * Queue a binary message, see {@link #offer(String)} and
+     * {@link #send(byte[])}. The bytes are copied.
+     */
+    public Future<Void> offer(byte[] data) throws ConnectException, IOException {
+    	return offer(data, Priority.NORMAL);
+    }
+
+    /** Queue a binary message with a priority, see {@link #offer(byte[])}. */
+    public Future<Void> offer(byte[] data, Priority priority) throws ConnectException, IOException {
+    	return queue.offer(new QueuedSend(null, Payload.binary(data, 0, data.length)), priority);
+    }
+
+    /**
+     * Set the size of the send queue, and what an offer does when it is
+     * full. The defaults are {@link #SEND_QUEUE_CAPACITY} messages, and to
+     * block until there is room.
+     * 
+     * @param blockMillis
+     *            max time a {@link OverflowPolicy#BLOCK} offer waits, 0 to
+     *            wait until there is room.
+     */
+    public void setSendQueue(int capacity, OverflowPolicy policy, long blockMillis) {
+    	queue.configure(capacity, policy, blockMillis);
+    }
+
+    /** Messages waiting in the send queue, not counting the one being sent. */
+    public int getSendQueueSize() {
+    	return queue.size();
+    }
+
+    /** Wait for a queued message, and throw what sending it threw. */
+    private void await(Future<Void> sent) throws IOException {
+    	try {
+    		sent.get();
+    	} catch(InterruptedException e) {
+    		throw new InterruptedIOException("Interrupted; the message is still queued.");
+    	} catch(CancellationException e) {
+    		throw new IOException("Message dropped from the send queue.");
+    	} catch(ExecutionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof IOException) throw (IOException) cause;
+    		if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+    		if (cause instanceof Error) throw (Error) cause;
+    		throw new IOException(cause);
+    	}
+    }
+
+    /** A message in the send queue, sent by the queue's sender thread. */
+    private class QueuedSend implements Callable<Void> {
+    	private final String msg;
+    	private final byte[] data;
+
+    	QueuedSend(String msg, byte[] data) {
+    		this.msg = msg;
+    		this.data = data;
+    	}
+
+    	public Void call() throws IOException {
+    		// In turn with resume(), which may send the unacked packet again.
+    		waitForSendTurn();
+    		try {
+    			sendDataPacket(msg != null ? constructDataPacket(msg) : constructDataPacket(data));
+    		} finally {
+    			endSendTurn();
+    		}
+    		return null;
+    	}
+    }
+
+    /**
+     * Send a payload that is already serialized, i.e. the bytes
+     * {@link no.ntnu.fp.net.cl.Util#toByteArray(java.io.Serializable)} gives
+     * for the message. Lets a caller that sends the same message on many
+     * connections serialize it once. The remote side receives it with
+     * {@link #receive()} as if it was sent with {@link #send(String)}.
+     * 
+     * @param payload
+     *            - the serialized message.
+     * @throws ConnectException
+     *             If no connection exists.
+     * @throws IOException
+     *             If no ACK was received.
+     * @see #send(String)
+     */
+    public void sendEncoded(byte[] payload) throws ConnectException, IOException {
+    	if (!Payload.isSerialized(payload)) {
+    		throw new IllegalArgumentException("Payload is not a serialized message.");
     	}
+    	await(queue.offer(new QueuedSend(null, payload), Priority.NORMAL));
+    }
 
-    	sendingPacket = true;
-    	KtnDatagram packet = constructDataPacket(msg);
+    /**
+     * Wait until no other thread is sending a data packet, and take the
+     * turn. Taken by the send queue's thread, {@link #resume()} and the
+     * close handshake; given back with {@link #endSendTurn()}.
+     */
+    private void waitForSendTurn() {
+    	synchronized (sendTurn) {
+    		while (sendingPacket) {
+    			try {
+    				sendTurn.wait();
+    			} catch(InterruptedException e) {
+    				//
+    			}
+    		}
+    		sendingPacket = true;
+    	}
+    }
+
+    private void endSendTurn() {
+    	synchronized (sendTurn) {
+    		sendingPacket = false;
+    		sendTurn.notifyAll();
+    	}
+    }
+
+    /** Send and wait for the ack. The caller has the send turn. */
+    private void sendDataPacket(KtnDatagram packet) throws ConnectException, IOException {
+    	if (!sendsData()) {
+    		throw new ConnectException("Connection closed.");
+    	}
+    	unacked = packet;
     	int triesLeft = MAX_TRIES;
     	KtnDatagram ack;
+    	boolean acked = false;
+    	long start = clock.nanoTime();
     	do {
     		ack = sendDataPacketWithRetransmit(packet);
     		if (ack != null) {
-    			System.out.println("\n sendPacket  " + packet.getSeq_nr() + " " + ack.getAck());
+    			PacketLog.message(LogLevel.DEBUG, "ConnectionImpl", "sendPacket {} got ack {}",
+    					packet.getSeq_nr(), ack.getAck());
+    			if (isValid(ack) && ack.getFlag() == Flag.ACK) {
+    				metrics.ackReceived(ack.getAck() < packet.getSeq_nr());
+    				acked = ack.getAck() >= packet.getSeq_nr();
+    			}
     		}
-    	} while((!isValid(ack) || ack.getFlag() != Flag.ACK || ack.getAck() < packet.getSeq_nr()) && triesLeft-- > 0);
+    	} while(!acked && triesLeft-- > 0 && sendsData());
+    	if (acked) {
+    		metrics.acked(clock.nanoTime() - start);
+    	}
     	
-    	if (ack == null) {
-    		System.out.println("\n\nReceived no ack.\n\n");
-    		return;
+    	if (!acked) {
+    		// Left in unacked, for resume() to send again.
+    		PacketLog.message(LogLevel.WARN, "ConnectionImpl", "Received no valid ack for {}",
+    				packet.getSeq_nr());
+    		throw new SocketTimeoutException("No ack received for " + packet.getSeq_nr() + ".");
     	}
-    	System.out.println("\n validPacketSent  " + lastValidPacketReceived.getSeq_nr() + " " + ack.getSeq_nr());
+    	// Only a valid ack gets here.
+    	unacked = null;
+    	PacketLog.message(LogLevel.DEBUG, "ConnectionImpl", "validPacketSent last {} ack {}",
+    			lastValidPacketReceived.getSeq_nr(), ack.getSeq_nr());
     	if (ack.getSeq_nr() > lastValidPacketReceived.getSeq_nr()) {
     		lastValidPacketReceived = ack;
     	}
     	lastDataPacketSent = packet;
-    	sendingPacket = false;
+    }
+
+    /**
+     * Send a binary message. The bytes become the packet's payload as they
+     * are, without being serialized, behind the byte that marks them as
+     * binary, see {@link Payload}.
+     * 
+     * @param data
+     *            - the message to be sent.
+     * @throws ConnectException
+     *             If no connection exists.
+     * @throws IOException
+     *             If no ACK was received, or the queue was full.
+     * @see Connection#send(byte[])
+     */
+    public void send(byte[] data) throws ConnectException, IOException {
+    	await(offer(data));
+    }
+
+    /**
+     * Send the remaining bytes of a buffer as a binary message. They are
+     * copied once, straight into the payload.
+     * 
+     * @see Connection#send(ByteBuffer)
+     */
+    public void send(ByteBuffer data) throws ConnectException, IOException {
+    	byte[] payload = new byte[data.remaining() + 1];
+    	payload[0] = Payload.BINARY;
+    	data.get(payload, 1, payload.length - 1);
+    	await(queue.offer(new QueuedSend(null, payload), Priority.NORMAL));
     }
 
     /**
@@ -206,6 +746,61 @@ public class ConnectionImpl extends AbstractConnection {
      * @see AbstractConnection#sendAck(KtnDatagram, boolean)
      */
     public String receive() throws ConnectException, IOException {
+    	byte[] payload = receivePayload();
+    	if (Payload.isBinary(payload)) {
+    		return new String(payload, 1, payload.length - 1, "UTF-8");
+    	}
+    	Object message = Util.toObject(Payload.message(payload));
+    	if (!(message instanceof String)) {
+    		throw new IOException("Message is not a String.");
+    	}
+    	return (String) message;
+    }
+
+    /**
+     * Wait for incoming data, and return the message as it was sent: the
+     * bytes of a binary message, the serialized form of a String.
+     * 
+     * @see Connection#receiveBytes()
+     */
+    public byte[] receiveBytes() throws ConnectException, IOException {
+    	return Payload.message(receivePayload());
+    }
+
+    /**
+     * Wait for incoming data, and put the payload in a buffer.
+     * 
+     * @see Connection#receive(ByteBuffer)
+     */
+    public int receive(ByteBuffer dst) throws ConnectException, IOException {
+    	byte[] payload = receivePayload();
+    	byte[] message = Payload.message(payload);
+    	if (message.length > dst.remaining()) {
+    		pendingPayload = payload;
+    		throw new BufferOverflowException();
+    	}
+    	dst.put(message);
+    	return message.length;
+    }
+
+    private byte[] receivePayload() throws ConnectException, IOException {
+    	byte[] payload = pendingPayload;
+    	if (payload != null) {
+    		pendingPayload = null;
+    		return payload;
+    	}
+    	payload = receiveDataPacket().getPayloadAsBytes();
+    	return payload != null ? payload : new byte[0];
+    }
+
+    private KtnDatagram receiveDataPacket() throws ConnectException, IOException {
+    	if (inputShutdown) {
+    		throw new ConnectException("Connection closed.");
+    	}
+    	if (disconnectRequest != null) {
+    		// Another thread got the peer's FIN.
+    		throw peerClosed(new EOFException("FIN packet received."));
+    	}
     	int triesLeft = MAX_TRIES;
     	KtnDatagram packet = null;
     	while (triesLeft-- > 0) {
@@ -213,14 +808,19 @@ public class ConnectionImpl extends AbstractConnection {
 	    		packet = receivePacket(false);
 	    	} catch(EOFException e) {
 	    		if (disconnectRequest != null) {
-	        		sendAck(disconnectRequest, false);
-	        		state = State.CLOSE_WAIT;
-	        		throw e;
+	    			throw peerClosed(e);
 	    		} else {
 	    			sendAck(lastValidPacketReceived, false);
 	    			continue;
 	    		}
 	    	}
+	    	if (isKeepAlive(packet)) {
+	    		if (packet.getSeq_nr() != KEEPALIVE_ANSWER) {
+	    			sendKeepAlive(KEEPALIVE_ANSWER);
+	    		}
+	    		triesLeft++;
+	    		continue;
+	    	}
 	    	if (packet.getFlag() == Flag.NONE && isValid(packet) && packet.getSeq_nr() == lastValidPacketReceived.getSeq_nr()+1) {
 	    		if (packet.getSeq_nr() > lastValidPacketReceived.getSeq_nr()) {
 	    			lastValidPacketReceived = packet;
@@ -228,64 +828,274 @@ public class ConnectionImpl extends AbstractConnection {
 	    		} else {
 	    			sendAck(lastValidPacketReceived, false);
 	    		}
-	    		System.out.println("\n validPacket  " + lastValidPacketReceived.getSeq_nr() + " " + packet.getSeq_nr());
-				return packet.toString();
+	    		metrics.received();
+	    		PacketLog.message(LogLevel.DEBUG, "ConnectionImpl", "validPacket last {} packet {}",
+	    				lastValidPacketReceived.getSeq_nr(), packet.getSeq_nr());
+				return packet;
 	    	}
-	    	System.out.println("\n sendAckAgain  " + lastValidPacketReceived.getSeq_nr() + " " + packet.getSeq_nr());
+	    	if (packet.getFlag() == Flag.NONE && packet.getSeq_nr() <= lastValidPacketReceived.getSeq_nr()) {
+	    		metrics.duplicateReceived();
+	    	}
+	    	PacketLog.message(LogLevel.DEBUG, "ConnectionImpl", "sendAckAgain last {} packet {}",
+	    			lastValidPacketReceived.getSeq_nr(), packet.getSeq_nr());
 	    	sendAck(lastValidPacketReceived, false);
     	}
     	if (packet != null) {
     		lastValidPacketReceived = packet; 
-    		return packet.toString();
+    		return packet;
     	} else {
-    		return receive();
+    		return receiveDataPacket();
+    	}
+    }
+
+    /**
+     * The peer has closed its sending half: ack its FIN, and end the
+     * application's receiving. If this side is closing too, the close
+     * handshake goes on to TIME_WAIT.
+     */
+    private EOFException peerClosed(EOFException e) throws IOException {
+    	if (state == State.ESTABLISHED) {
+    		sendAck(disconnectRequest, false);
+    		state = State.CLOSE_WAIT;
+    	} else if (state == State.FIN_WAIT_1 || state == State.FIN_WAIT_2) {
+    		ackFin(disconnectRequest);
+    	}
+    	return e;
+    }
+
+    /**
+     * Ack the peer's FIN once. Not retried when refused, unlike other acks:
+     * the peer stops receiving once it has an ack, which may have been an
+     * earlier one.
+     */
+    private void ackFin(KtnDatagram fin) throws IOException {
+    	try {
+    		super.sendAck(fin, false);
+    	} catch (ConnectException e) {
+    		PacketLog.packet(LogLevel.DEBUG, "ConnectionImpl", fin, "Peer no longer receiving");
     	}
     }
 
     /**
-     * Close the connection.
+     * Close the connection, taking at most {@link #CLOSE_TIMEOUT} millis.
      * 
      * @see Connection#close()
+     * @see #close(long)
      */
     public void close() throws IOException {
-    	State initialState = state;
-        KtnDatagram packet = constructInternalPacket(Flag.FIN);
-    	KtnDatagram ack;
-    	do {
-    		state = initialState;
+    	close(CLOSE_TIMEOUT);
+    }
+
+    /**
+     * Close the connection, and wait until it is closed, see
+     * {@link #closeAsync(long)}.
+     * 
+     * @param timeoutMillis
+     *            max time for the queue and the handshake, 0 for no limit.
+     * @throws SocketTimeoutException
+     *             if the time ran out; the connection is closed all the same.
+     */
+    public void close(long timeoutMillis) throws IOException {
+    	if (state == State.CLOSED) {
+    		// Never connected, or closed when the peer went silent.
+    		return;
+    	}
+    	await(closeAsync(timeoutMillis));
+    }
+
+    /**
+     * Start closing the connection, and return at once. The application
+     * receives no more. What is queued is sent, then the FIN handshake is
+     * done by the send queue's thread, with the FIN retransmitted on the
+     * clock's timers. After it the connection is gone; only its port stays
+     * reserved through TIME_WAIT, see {@link Teardown}.<br>
+     * <br>
+     * If the handshake isn't done in time the connection is aborted, see
+     * {@link #abort()}, and the peer may not know. A wait for a packet that
+     * has started is not cut short, so the future can take up to
+     * {@link AbstractConnection#TIMEOUT} more.
+     * 
+     * @param timeoutMillis
+     *            max time for the queue and the handshake, 0 for no limit.
+     * @return done when the connection is closed; fails with a
+     *         SocketTimeoutException if the time ran out.
+     */
+    public Future<Void> closeAsync(long timeoutMillis) {
+    	inputShutdown = true;
+    	return startClose(timeoutMillis);
+    }
+
+    /**
+     * Close the sending half of the connection: what is queued is sent,
+     * then a FIN, as with {@link #closeAsync(long)}. The application goes on
+     * receiving until the peer closes too, when receive throws an
+     * EOFException; sends fail from now on.
+     * 
+     * @return done when the connection is closed both ways.
+     */
+    public Future<Void> shutdownOutput() {
+    	return startClose(0);
+    }
+
+    private synchronized Future<Void> startClose(long timeoutMillis) {
+    	if (timeoutMillis > 0) {
+    		Teardown.closeBy(this, clock.currentTimeMillis() + timeoutMillis, clock);
+    	}
+    	if (closing == null) {
+    		FutureTask<Void> task = new FutureTask<Void>(new Closing());
+    		closing = task;
+    		if (state == State.CLOSED) {
+    			task.run();
+    		} else {
+    			closeStart = clock.nanoTime();
+    			queue.close(task);
+    		}
+    	}
+    	return closing;
+    }
+
+    /** The close handshake, run by the send queue's thread once what is queued is sent. */
+    private class Closing implements Callable<Void> {
+
+    	public Void call() throws IOException {
+    		waitForSendTurn();
     		try {
-				simplySendPacket(packet);
-			} catch(ClException e) {
-				//
-			}
-			state = disconnectRequest != null ? State.LAST_ACK : State.FIN_WAIT_1;
-    		ack = receiveAck();
-    	} while(!isValid(ack) || ack.getFlag() != Flag.ACK);
-    	
-    	if (ack.getSeq_nr() > lastValidPacketReceived.getSeq_nr()) {
-    		lastValidPacketReceived = ack;
+    			if (teardown()) {
+    				TransportMetrics.closed(metrics, clock.nanoTime() - closeStart);
+    			}
+    		} finally {
+    			endSendTurn();
+    			Teardown.remove(ConnectionImpl.this, clock);
+    		}
+    		if (timedOut) {
+    			throw new SocketTimeoutException("Close not done in time.");
+    		}
+    		return null;
     	}
-        
-        if (disconnectRequest != null) {
-        	state = State.CLOSED;
-        } else {
-        	state = State.FIN_WAIT_2;
-        	KtnDatagram finPacket;
-        	do {
-        		finPacket = receivePacket(true);
-        	} while (!isValid(finPacket));
-        	try {
-        		Thread.sleep(1000);
-    		} catch(InterruptedException e) {
-    			//
+    }
+
+    /**
+     * The FIN handshake: FIN_WAIT_1, FIN_WAIT_2 and TIME_WAIT when this side
+     * closes first, LAST_ACK when the peer did.
+     * 
+     * @return false if the connection was aborted meanwhile.
+     */
+    private boolean teardown() throws IOException {
+    	if (state == State.CLOSED) {
+    		return false;
+    	}
+    	boolean peerFirst = disconnectRequest != null;
+    	state = peerFirst ? State.LAST_ACK : State.FIN_WAIT_1;
+    	KtnDatagram fin = constructInternalPacket(Flag.FIN);
+    	// Once, not for every retransmit.
+    	checksum.sign(fin);
+    	Clock.Task timer = clock.schedule(new SendTimer(link, fin, metrics), 0, RETRANSMIT);
+    	try {
+    		int triesLeft = MAX_TRIES;
+    		KtnDatagram ack;
+    		do {
+    			// CLOSED if aborted meanwhile.
+    			if (state == State.CLOSED) {
+    				return false;
+    			}
+    			if (triesLeft-- == 0) {
+    				abort();
+    				throw new SocketTimeoutException("FIN not acked.");
+    			}
+    			ack = receiveAck();
+    			if (ack != null && ack.getFlag() == Flag.FIN && isValid(ack)) {
+    				// Both sides closing at once, or our ack of the peer's
+    				// FIN was lost.
+    				disconnectRequest = ack;
+    				ackFin(ack);
+    			}
+    		} while (!isValid(ack) || ack.getFlag() != Flag.ACK || ack.getAck() != fin.getSeq_nr());
+    	} finally {
+    		timer.cancel();
+    	}
+
+    	if (peerFirst) {
+    		state = State.CLOSED;
+    		release(false);
+    		return true;
+    	}
+    	state = State.FIN_WAIT_2;
+    	// Acked already if it came before, or to the application's receive.
+    	KtnDatagram finPacket = disconnectRequest;
+    	while (finPacket == null) {
+    		if (state == State.CLOSED) {
+    			return false;
     		}
-        	sendAck(finPacket, false);
-        	state = State.TIME_WAIT;
-        	state = State.CLOSED;
-        }
-        if (ConnectionImpl.usedPorts.containsKey(myPort)) {
-        	ConnectionImpl.usedPorts.remove(myPort);
+    		KtnDatagram packet = receivePacket(true);
+    		if (packet != null && packet.getFlag() == Flag.FIN && isValid(packet)) {
+    			disconnectRequest = packet;
+    			try {
+    				clock.sleep(1000);
+    			} catch(InterruptedException e) {
+    				//
+    			}
+    			ackFin(packet);
+    		}
+    		finPacket = disconnectRequest;
+    	}
+    	state = State.TIME_WAIT;
+    	Teardown.timeWait(myPort, TIME_WAIT_MILLIS, clock);
+    	state = State.CLOSED;
+    	release(true);
+    	return true;
+    }
+
+    /**
+     * Close at once, without the close handshake: the port is freed, and
+     * what is queued or being sent fails. The peer finds out when its sends
+     * go unacked, or from its keep-alive. An {@link #accept()} waiting on
+     * this connection throws a ConnectException.
+     */
+    public void abort() {
+    	State was = state;
+    	state = State.CLOSED;
+    	release(false);
+    	if (was != State.CLOSED && was != State.LISTEN) {
+    		TransportMetrics.closed(metrics, 0);
+    	}
+    }
+
+    /** The close deadline passed, see {@link Teardown}. */
+    void closeTimedOut() {
+    	PacketLog.message(LogLevel.WARN, "ConnectionImpl", "Close to {} not done in time, aborting.",
+    			remote);
+    	timedOut = true;
+    	abort();
+    }
+
+    /**
+     * Free the port, forget the session and stop the keep-alive and sender.
+     * 
+     * @param timeWait
+     *            keep the port reserved until {@link Teardown} frees it.
+     */
+    private void release(boolean timeWait) {
+    	// What is still queued fails, the connection being closed.
+    	queue.close();
+    	if (timeWait) {
+    		usedPorts.put(myPort, Boolean.FALSE);
+    	} else {
+    		usedPorts.remove(myPort);
+    	}
+        if (session != null) {
+        	sessions.remove(session);
         }
+        KeepAlive.remove(this, clock);
+        Teardown.remove(this, clock);
+    }
+
+    /** The end of TIME_WAIT: free the port, unless a connection uses it. */
+    static void freePort(int port) {
+    	synchronized (usedPorts) {
+    		if (Boolean.FALSE.equals(usedPorts.get(port))) {
+    			usedPorts.remove(port);
+    		}
+    	}
     }
 
     /**
@@ -297,7 +1107,10 @@ public class ConnectionImpl extends AbstractConnection {
      * @return true if packet is free of errors, false otherwise.
      */
     protected boolean isValid(KtnDatagram packet) {
-        return packet != null && packet.getChecksum() == packet.calculateChecksum();
+        if (packet == null) return false;
+        boolean valid = checksum.verify(packet);
+        if (!valid) metrics.checksumFailed();
+        return valid;
     }
     
     
@@ -0,0 +1,165 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics for one connection. Everything counted here is also added to
+ * the totals in {@link TransportMetrics}. A connection is only used by a
+ * couple of threads, so plain atomics do here; the totals are striped.
+ *
+ * @see AbstractConnection#getMetrics()
+ */
+public final class ConnectionMetrics {
+
+    private final AbstractConnection connection;
+
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong retransmits = new AtomicLong();
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong duplicatePackets = new AtomicLong();
+    private final AtomicLong acksSent = new AtomicLong();
+    private final AtomicLong acksReceived = new AtomicLong();
+    private final AtomicLong duplicateAcks = new AtomicLong();
+    private final AtomicLong checksumFailures = new AtomicLong();
+    private final LatencyHistogram sendToAck = new LatencyHistogram();
+    private volatile long lastRtt = -1;
+
+    /** Sequence number of the last data packet put on the wire. */
+    private final AtomicInteger lastTransmitted = new AtomicInteger(Integer.MIN_VALUE);
+
+    ConnectionMetrics(AbstractConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * A data packet was put on the wire. Sending a sequence number again
+     * counts as a retransmit.
+     */
+    void transmitted(int seq) {
+        if (lastTransmitted.getAndSet(seq) == seq) {
+            retransmits.incrementAndGet();
+            TransportMetrics.retransmits.increment();
+        }
+        else {
+            packetsSent.incrementAndGet();
+            TransportMetrics.packetsSent.increment();
+        }
+    }
+
+    /** A data packet was delivered to the application. */
+    void received() {
+        packetsReceived.incrementAndGet();
+        TransportMetrics.packetsReceived.increment();
+    }
+
+    /** A data packet that was already delivered came again. */
+    void duplicateReceived() {
+        duplicatePackets.incrementAndGet();
+        TransportMetrics.duplicatePackets.increment();
+    }
+
+    void ackSent() {
+        acksSent.incrementAndGet();
+        TransportMetrics.acksSent.increment();
+    }
+
+    /**
+     * An ack came in while sending.
+     *
+     * @param duplicate
+     *            true if it acks an earlier packet than the one being sent.
+     */
+    void ackReceived(boolean duplicate) {
+        acksReceived.incrementAndGet();
+        TransportMetrics.acksReceived.increment();
+        if (duplicate) {
+            duplicateAcks.incrementAndGet();
+            TransportMetrics.duplicateAcks.increment();
+        }
+    }
+
+    void checksumFailed() {
+        checksumFailures.incrementAndGet();
+        TransportMetrics.checksumFailures.increment();
+    }
+
+    /** Time from first sending a data packet until its ack came. */
+    void acked(long nanos) {
+        lastRtt = nanos / 1000;
+        sendToAck.recordNanos(nanos);
+        TransportMetrics.sendToAck.recordNanos(nanos);
+    }
+
+    /** local address:port-remote address:port */
+    public String getName() {
+        return connection.myAddress + ":" + connection.myPort + "-" + connection.remoteAddress
+                + ":" + connection.remotePort;
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getRetransmits() {
+        return retransmits.get();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getDuplicatePackets() {
+        return duplicatePackets.get();
+    }
+
+    public long getAcksSent() {
+        return acksSent.get();
+    }
+
+    public long getAcksReceived() {
+        return acksReceived.get();
+    }
+
+    public long getDuplicateAcks() {
+        return duplicateAcks.get();
+    }
+
+    public long getChecksumFailures() {
+        return checksumFailures.get();
+    }
+
+    /** The last send-to-ack time in microseconds, -1 before the first ack. */
+    public long getLastRtt() {
+        return lastRtt;
+    }
+
+    public LatencyHistogram.Snapshot getSendToAck() {
+        return sendToAck.snapshot();
+    }
+
+    /** The connection's state, e.g. "ESTABLISHED". */
+    public String getState() {
+        return String.valueOf(connection.state);
+    }
+
+    /** Packets received but not yet asked for by the protocol or application. */
+    public int getQueueDepth() {
+        return connection.getQueueDepth();
+    }
+
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot s = new MetricsSnapshot(getName());
+        s.put("packets.sent", getPacketsSent());
+        s.put("packets.retransmitted", getRetransmits());
+        s.put("packets.received", getPacketsReceived());
+        s.put("packets.duplicate", getDuplicatePackets());
+        s.put("acks.sent", getAcksSent());
+        s.put("acks.received", getAcksReceived());
+        s.put("acks.duplicate", getDuplicateAcks());
+        s.put("checksum.failures", getChecksumFailures());
+        s.put("queue.depth", getQueueDepth());
+        s.put("latency.sendToAck", sendToAck);
+        return s;
+    }
+}
@@ -0,0 +1,57 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * MBean for one open connection, registered by {@link TransportStats}.
+ */
+public final class ConnectionStats implements ConnectionStatsMBean {
+
+    private final ConnectionMetrics metrics;
+
+    ConnectionStats(ConnectionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public String getName() {
+        return metrics.getName();
+    }
+
+    public String getState() {
+        return metrics.getState();
+    }
+
+    public long getPacketsSent() {
+        return metrics.getPacketsSent();
+    }
+
+    public long getRetransmits() {
+        return metrics.getRetransmits();
+    }
+
+    public long getPacketsReceived() {
+        return metrics.getPacketsReceived();
+    }
+
+    public long getDuplicateAcks() {
+        return metrics.getDuplicateAcks();
+    }
+
+    public long getChecksumFailures() {
+        return metrics.getChecksumFailures();
+    }
+
+    public int getQueueDepth() {
+        return metrics.getQueueDepth();
+    }
+
+    public int getWindow() {
+        return 1;
+    }
+
+    public long getLastRtt() {
+        return metrics.getLastRtt();
+    }
+
+    public long getMeanRtt() {
+        return metrics.getSendToAck().getMean();
+    }
+}
@@ -0,0 +1,31 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * One connection as seen in JConsole, see {@link TransportStats}. Times are
+ * in microseconds.
+ */
+public interface ConnectionStatsMBean {
+
+    public String getName();
+
+    public String getState();
+
+    public long getPacketsSent();
+
+    public long getRetransmits();
+
+    public long getPacketsReceived();
+
+    public long getDuplicateAcks();
+
+    public long getChecksumFailures();
+
+    public int getQueueDepth();
+
+    /** Packets that may be unacked at once; the protocol is stop-and-wait. */
+    public int getWindow();
+
+    public long getLastRtt();
+
+    public long getMeanRtt();
+}
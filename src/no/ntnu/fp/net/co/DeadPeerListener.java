@@ -0,0 +1,18 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Told when a connection's peer has not been heard from for the keep-alive
+ * timeout, see {@link ConnectionImpl#setKeepAlive(long, long)}.
+ */
+public interface DeadPeerListener {
+
+    /**
+     * The connection has been closed, without a FIN, as its peer seems to be
+     * gone. Called from the keep-alive timer, which all connections on the
+     * clock share, so don't block.
+     *
+     * @param silentMillis
+     *            how long nothing had been heard from the peer.
+     */
+    public void peerDead(ConnectionImpl connection, long silentMillis);
+}
@@ -0,0 +1,139 @@
+package no.ntnu.fp.net.co;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * One end of a connection: an ip-address and port, both as they are written
+ * into packets (the address as a dotted string) and resolved
+ * ({@link #getSocketAddress()}). A connection makes its endpoints once, when
+ * it is set up, so no host name is looked up and no address string is parsed
+ * for each packet.<br>
+ * <br>
+ * Address strings are resolved once per JVM, and the InetAddress is shared
+ * by the endpoints made from them. The local address is looked up once as
+ * well, see {@link #localAddress()}.
+ */
+public final class Endpoint {
+
+    /** Max number of address strings kept resolved. */
+    private static final int MAX_ADDRESSES = 1024;
+
+    private static final ConcurrentMap<String, InetAddress> addresses =
+            new ConcurrentHashMap<String, InetAddress>();
+
+    private static volatile String localAddress;
+
+    private final String address;
+    private final int port;
+    private final InetSocketAddress socketAddress;
+    private final String text;
+
+    private Endpoint(InetAddress inet, int port) {
+        this.address = inet.getHostAddress();
+        this.port = port;
+        socketAddress = new InetSocketAddress(inet, port);
+        text = address + ":" + port;
+    }
+
+    /** An endpoint for a resolved address. */
+    public static Endpoint of(InetAddress address, int port) {
+        if (address == null) throw new IllegalArgumentException("Address can not be null.");
+        return new Endpoint(address, port);
+    }
+
+    /**
+     * An endpoint for an address as found in a packet.
+     *
+     * @throws UnknownHostException
+     *             if the address is not an ip-address, and no host has that
+     *             name.
+     */
+    public static Endpoint of(String address, int port) throws UnknownHostException {
+        return new Endpoint(resolve(address), port);
+    }
+
+    /** An endpoint at the local address, see {@link #localAddress()}. */
+    public static Endpoint local(int port) {
+        try {
+            return of(localAddress(), port);
+        }
+        catch (UnknownHostException e) {
+            // localAddress() is an ip-address, which is not looked up.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The ip-address of this host, as {@link InetAddress#getLocalHost()}
+     * gives it, or 127.0.0.1 if that fails. Looked up the first time only.
+     */
+    public static String localAddress() {
+        String local = localAddress;
+        if (local == null) {
+            try {
+                local = InetAddress.getLocalHost().getHostAddress();
+            }
+            catch (UnknownHostException e) {
+                local = "127.0.0.1";
+            }
+            localAddress = local;
+        }
+        return local;
+    }
+
+    private static InetAddress resolve(String address) throws UnknownHostException {
+        if (address == null) throw new IllegalArgumentException("Address can not be null.");
+        InetAddress inet = addresses.get(address);
+        if (inet == null) {
+            inet = InetAddress.getByName(address);
+            if (addresses.size() >= MAX_ADDRESSES) addresses.clear();
+            InetAddress known = addresses.putIfAbsent(address, inet);
+            if (known != null) inet = known;
+        }
+        return inet;
+    }
+
+    /** The address as it is written into packets. */
+    public String getAddress() {
+        return address;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public InetAddress getInetAddress() {
+        return socketAddress.getAddress();
+    }
+
+    public InetSocketAddress getSocketAddress() {
+        return socketAddress;
+    }
+
+    /** This endpoint with another port, for a peer that moved to a new one. */
+    public Endpoint withPort(int port) {
+        return port == this.port ? this : new Endpoint(socketAddress.getAddress(), port);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Endpoint)) return false;
+        Endpoint other = (Endpoint) o;
+        return port == other.port && address.equals(other.address);
+    }
+
+    @Override
+    public int hashCode() {
+        return address.hashCode() * 31 + port;
+    }
+
+    /** address:port */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,11 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * A value that is read when a snapshot is taken, e.g. the number of ports in
+ * use. See {@link TransportMetrics#registerGauge(String, Gauge)}.
+ */
+public interface Gauge {
+
+    /** @return the current value. Called from the thread taking a snapshot. */
+    public long value();
+}
@@ -0,0 +1,89 @@
+package no.ntnu.fp.net.co;
+
+import java.security.SecureRandom;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * Options carried in the payload of a SYN or SYN_ACK: a serialized String of
+ * key=value pairs separated by ';', e.g.
+ * <code>ktn.checksum=header;ktn.session=5f1c09a2e77b3d41</code>. A peer
+ * ignores the keys it doesn't know.<br>
+ * <br>
+ * The connectionless layer keeps the payload of a SYN, but not of a SYN_ACK,
+ * so what the server has to tell the client is in the SYN_ACK's header
+ * fields, see {@link #sessionId(String, int)}.
+ */
+final class Handshake {
+
+    /** Header checksum offered or accepted, see {@link PacketChecksum}. */
+    static final String CHECKSUM = "ktn.checksum";
+    /** Random part of the session id, chosen by the client in its SYN. */
+    static final String SESSION = "ktn.session";
+    /** In a SYN to the server's listening port: the session to resume. */
+    static final String RESUME = "ktn.resume";
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private Handshake() {
+    }
+
+    /** A payload with the given key=value options. */
+    static byte[] payload(String... options) {
+        StringBuilder text = new StringBuilder();
+        for (String option : options) {
+            if (text.length() > 0) text.append(';');
+            text.append(option);
+        }
+        return Util.toByteArray(text.toString());
+    }
+
+    /** key=value, for {@link #payload(String...)}. */
+    static String option(String key, String value) {
+        return key + "=" + value;
+    }
+
+    /**
+     * The value of an option in a handshake packet, or null if the packet
+     * doesn't have it. A payload that isn't a serialized String has no
+     * options.
+     */
+    static String get(KtnDatagram packet, String key) {
+        byte[] payload = packet == null ? null : packet.getPayloadAsBytes();
+        // Util.toObject() prints a stack trace for anything not serialized.
+        if (payload == null || payload.length < 2 || payload[0] != (byte) 0xAC
+                || payload[1] != (byte) 0xED) {
+            return null;
+        }
+        Object text;
+        try {
+            text = Util.toObject(payload);
+        }
+        catch (RuntimeException e) {
+            return null;
+        }
+        if (!(text instanceof String)) return null;
+        String prefix = key + "=";
+        for (String option : ((String) text).split(";")) {
+            if (option.startsWith(prefix)) return option.substring(prefix.length());
+        }
+        return null;
+    }
+
+    /** A new random value for {@link #SESSION}. */
+    static String newNonce() {
+        synchronized (random) {
+            return Long.toHexString(random.nextLong());
+        }
+    }
+
+    /**
+     * The id both sides know a session by once the SYN_ACK has arrived: the
+     * client's nonce and the SYN_ACK's sequence number, so a duplicated SYN
+     * that makes a second connection doesn't get the same id.
+     */
+    static String sessionId(String nonce, int synAckSeq) {
+        return nonce + "." + synAckSeq;
+    }
+}
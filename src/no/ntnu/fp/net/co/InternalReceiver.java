@@ -2,7 +2,6 @@ package no.ntnu.fp.net.co;
 
 import java.io.IOException;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
 
@@ -38,8 +37,8 @@ class InternalReceiver extends Thread {
       connection = null;
     }
     catch (Exception e) {
-      Log.writeToLog("Exception while receiving: " + e.getMessage(),
-		     "InternalReceiever");
+      PacketLog.message(LogLevel.WARN, "InternalReceiever", "Exception while receiving: {}",
+		     e.getMessage());
       e.printStackTrace();
     }
   }
@@ -0,0 +1,68 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The timer that runs the keep-alives of all connections on a clock, see
+ * {@link ConnectionImpl#setKeepAlive(long, long)}. One task every
+ * {@link #TICK} millis while any connection has a keep-alive, instead of a
+ * timer, and on the {@link SystemClock} a thread, for each connection.
+ */
+final class KeepAlive implements Runnable {
+
+    /** Millis between checks of the connections. */
+    static final long TICK = 500;
+
+    private static final Map<Clock, KeepAlive> timers = new HashMap<Clock, KeepAlive>();
+
+    private final Clock clock;
+    private final Set<ConnectionImpl> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionImpl, Boolean>());
+    private Clock.Task task;
+
+    private KeepAlive(Clock clock) {
+        this.clock = clock;
+    }
+
+    /** Check the connection every tick from now on. */
+    static void add(ConnectionImpl connection, Clock clock) {
+        synchronized (timers) {
+            KeepAlive timer = timers.get(clock);
+            if (timer == null) {
+                timer = new KeepAlive(clock);
+                timer.task = clock.schedule(timer, TICK, TICK);
+                timers.put(clock, timer);
+            }
+            timer.connections.add(connection);
+        }
+    }
+
+    /** Stop checking the connection; the last one stops the timer. */
+    static void remove(ConnectionImpl connection, Clock clock) {
+        synchronized (timers) {
+            KeepAlive timer = timers.get(clock);
+            if (timer == null || !timer.connections.remove(connection)) return;
+            if (timer.connections.isEmpty()) {
+                timer.task.cancel();
+                timers.remove(clock);
+            }
+        }
+    }
+
+    public void run() {
+        long now = clock.currentTimeMillis();
+        for (ConnectionImpl connection : connections) {
+            try {
+                connection.keepAlive(now);
+            }
+            catch (RuntimeException e) {
+                // Don't let one connection stop the others' keep-alives.
+                PacketLog.message(LogLevel.ERROR, "KeepAlive", "Keep-alive failed: {}", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of powers of two microseconds: bucket 0 holds
+ * 0, bucket i holds 2^(i-1) to 2^i - 1. Recording is a few atomic adds and
+ * no allocation; the price is that percentiles are only known to within a
+ * factor of two, which is plenty to tell a 1 ms ack from an 800 ms
+ * retransmit.
+ */
+public final class LatencyHistogram {
+
+    /** Bucket 39 starts at 2^38 microseconds, about three days. */
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Record a latency measured with {@link System#nanoTime()}. */
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    /** Record a latency in microseconds. Negative values count as 0. */
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long m;
+        while (micros > (m = max.get()) && !max.compareAndSet(m, micros)) {
+            // retry
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(copy, count.get(), sum.get(), max.get());
+    }
+
+    /** The histogram at one point in time. All values are in microseconds. */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count, sum, max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * The upper bound of the bucket holding the given percentile, but
+         * never more than the largest value recorded.
+         *
+         * @param percentile
+         *            0 to 100.
+         */
+        public long getPercentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                total += buckets[i];
+            }
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        /** Number of values in bucket i, see {@link LatencyHistogram}. */
+        public long getBucket(int i) {
+            return buckets[i];
+        }
+
+        public int getBucketCount() {
+            return buckets.length;
+        }
+
+        public String toString() {
+            return "count=" + count + " mean=" + getMean() + "us p50=" + getPercentile(50)
+                    + "us p99=" + getPercentile(99) + "us max=" + max + "us";
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The network under a connection: sends datagrams to a port and receives
+ * the datagrams sent to one. {@link ClSocketLink} uses the connectionless
+ * layer ({@link no.ntnu.fp.net.cl.ClSocket}) and is the default;
+ * {@link SimulatedLink} is an in-process network for testing.
+ *
+ * @see AbstractConnection#setDefaultLink(Link)
+ */
+public interface Link {
+
+    /**
+     * Send a datagram to its destination address and port. The datagram is
+     * not changed, and not kept once this returns, so the caller may reuse
+     * it: a link that hands it on to code that keeps or changes it, like the
+     * connectionless layer, sends a copy.
+     *
+     * @throws java.net.ConnectException
+     *             if nobody is receiving on the port.
+     */
+    public void send(KtnDatagram packet) throws ClException, IOException;
+
+    /**
+     * Receive the next datagram sent to a local port.
+     *
+     * @param timeout
+     *            max millis to wait, 0 to wait until one arrives.
+     * @return the datagram, or null if none arrived in time.
+     */
+    public KtnDatagram receive(int port, long timeout) throws IOException;
+
+    /** The clock to time connections on this link with. */
+    public Clock getClock();
+
+    /**
+     * Whether datagrams arrive with the checksum they were sent with. If
+     * not, only the payload checksum can be used, see {@link PacketChecksum}.
+     */
+    public boolean keepsChecksum();
+}
@@ -0,0 +1,68 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * One log entry as recorded by {@link AsyncLogSink}: the packet's header
+ * fields copied as primitives, and references to strings and payload that
+ * already exist. Nothing is formatted until the entry is written. Instances
+ * are slots in the sink's ring buffer and are reused.
+ */
+final class LogEvent {
+
+    /** Flag value for entries that are not about a packet. */
+    static final byte NO_PACKET = -1;
+
+    long time;
+    String component;
+    String comment;
+
+    byte flag;
+    String srcAddr;
+    int srcPort;
+    String destAddr;
+    int destPort;
+    int seq;
+    int ack;
+    long checksum;
+    byte[] payload;
+    /** Payload as text, used instead of payload when read from a trace. */
+    String payloadText;
+
+    void set(long time, KtnDatagram packet, String comment, String component) {
+        this.time = time;
+        this.comment = comment;
+        this.component = component;
+        payloadText = null;
+        if (packet == null) {
+            flag = NO_PACKET;
+            srcAddr = null;
+            destAddr = null;
+            payload = null;
+            srcPort = destPort = seq = ack = 0;
+            checksum = 0;
+        }
+        else {
+            flag = (byte) packet.getFlag().ordinal();
+            srcAddr = packet.getSrc_addr();
+            srcPort = packet.getSrc_port();
+            destAddr = packet.getDest_addr();
+            destPort = packet.getDest_port();
+            seq = packet.getSeq_nr();
+            ack = packet.getAck();
+            checksum = packet.getChecksum();
+            payload = packet.getPayloadAsBytes();
+        }
+    }
+
+    boolean isPacket() {
+        return flag != NO_PACKET;
+    }
+
+    /** Drop the references, so a written slot doesn't keep payloads alive. */
+    void clear() {
+        component = comment = srcAddr = destAddr = null;
+        payload = null;
+        payloadText = null;
+    }
+}
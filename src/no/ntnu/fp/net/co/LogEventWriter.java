@@ -0,0 +1,17 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+/**
+ * Writes the entries taken out of an {@link AsyncLogSink}'s ring buffer.
+ * Only ever called from the sink's writer thread.
+ */
+interface LogEventWriter {
+
+    void write(LogEvent event) throws IOException;
+
+    /** Called at the end of each batch. */
+    void flush() throws IOException;
+
+    void close() throws IOException;
+}
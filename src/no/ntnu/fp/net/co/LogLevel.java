@@ -0,0 +1,36 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Severity of a connection layer log entry. An entry is written when its
+ * level is at least the threshold of its component, see
+ * {@link PacketLog#isEnabled(LogLevel, String)}.
+ */
+public enum LogLevel {
+    /** Protocol internals: every packet looked at, sequence bookkeeping. */
+    DEBUG,
+    /** Packets sent and received, acks, connection setup and teardown. */
+    INFO,
+    /** Something went wrong but the protocol recovers, e.g. a failed send. */
+    WARN,
+    /** The connection is lost or can not be set up. */
+    ERROR,
+    /** Used as a threshold only: nothing is written. */
+    OFF;
+
+    /**
+     * Parse a level name, ignoring case.
+     *
+     * @return the level, or <code>fallback</code> if the name is null or
+     *         unknown.
+     */
+    public static LogLevel parse(String name, LogLevel fallback) {
+        if (name == null) return fallback;
+        try {
+            return valueOf(name.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("LogLevel: Unknown level \"" + name + "\", using " + fallback);
+            return fallback;
+        }
+    }
+}
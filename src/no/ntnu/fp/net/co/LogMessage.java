@@ -0,0 +1,12 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * A log comment built on demand. Pass one to {@link PacketLog} when building
+ * the comment takes more than a few parameters; {@link #text()} is only
+ * called if the entry is going to be written.
+ */
+public interface LogMessage {
+
+    /** @return the comment. */
+    public String text();
+}
@@ -0,0 +1,35 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * Where the connection layer's log entries go. See {@link PacketLog} for how
+ * a sink is chosen.
+ *
+ * @see TextLogSink
+ * @see AsyncLogSink
+ */
+public interface LogSink {
+
+    /**
+     * Log a packet.
+     *
+     * @param packet
+     *            the packet, must not be changed by the sink.
+     * @param comment
+     *            what happened to the packet.
+     * @param component
+     *            the logging entity, e.g. "AbstractConnection".
+     */
+    public void packet(KtnDatagram packet, String comment, String component);
+
+    /**
+     * Log a comment that is not about a particular packet.
+     */
+    public void message(String comment, String component);
+
+    /**
+     * Write out anything buffered and release the sink's resources.
+     */
+    public void close();
+}
@@ -0,0 +1,77 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Counters, gauges and histograms read at one point in time, by
+ * {@link TransportMetrics#snapshot()} or {@link ConnectionMetrics#snapshot()}.
+ * Counters and gauges are in the same map, keyed by name. Other layers can
+ * fill in their own for {@link PrometheusExporter}, see {@link MetricsSource}.
+ */
+public final class MetricsSnapshot {
+
+    private final String name;
+    private final long time;
+    private final SortedMap<String, Long> values;
+    private final SortedMap<String, LatencyHistogram.Snapshot> histograms;
+
+    public MetricsSnapshot(String name) {
+        this.name = name;
+        time = System.currentTimeMillis();
+        values = new TreeMap<String, Long>();
+        histograms = new TreeMap<String, LatencyHistogram.Snapshot>();
+    }
+
+    public void put(String key, long value) {
+        values.put(key, value);
+    }
+
+    public void put(String key, LatencyHistogram histogram) {
+        histograms.put(key, histogram.snapshot());
+    }
+
+    /** What was measured, "transport" or the connection's addresses. */
+    public String getName() {
+        return name;
+    }
+
+    /** When the snapshot was taken, in millis. */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the counter or gauge, or 0 if there is none by that name.
+     */
+    public long get(String key) {
+        Long value = values.get(key);
+        return value == null ? 0 : value.longValue();
+    }
+
+    public LatencyHistogram.Snapshot getHistogram(String key) {
+        return histograms.get(key);
+    }
+
+    public Map<String, Long> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+
+    /** One line per value and histogram. */
+    public String toString() {
+        StringBuilder b = new StringBuilder(name).append('\n');
+        for (Map.Entry<String, Long> e : values.entrySet()) {
+            b.append("  ").append(e.getKey()).append(" = ").append(e.getValue()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram.Snapshot> e : histograms.entrySet()) {
+            b.append("  ").append(e.getKey()).append(": ").append(e.getValue()).append('\n');
+        }
+        return b.toString();
+    }
+}
@@ -0,0 +1,18 @@
+package no.ntnu.fp.net.co;
+
+import java.util.List;
+
+/**
+ * Something {@link PrometheusExporter} reads when it is scraped.
+ *
+ * @see TransportMetrics#source()
+ * @see TransportMetrics#connectionSource()
+ */
+public interface MetricsSource {
+
+    /**
+     * Add the current snapshots to the list: one for a single thing, or one
+     * per connection, user and so on.
+     */
+    public void collect(List<MetricsSnapshot> out);
+}
@@ -0,0 +1,24 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * What a connection does when a message is offered and its send queue is
+ * already full, see {@link ConnectionImpl#setSendQueue(int, OverflowPolicy, long)}.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Wait for room, at most the configured time. The offer throws a
+     * SocketTimeoutException if there is still none.
+     */
+    BLOCK,
+
+    /** Don't queue the new message; the offer throws an IOException. */
+    REJECT,
+
+    /**
+     * Drop the oldest queued message of the lowest {@link Priority} to make
+     * room. Its future is cancelled; the message never gets a sequence
+     * number, so nothing is missing from the stream the other side sees.
+     */
+    DROP_OLDEST
+}
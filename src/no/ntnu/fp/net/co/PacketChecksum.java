@@ -0,0 +1,103 @@
+package no.ntnu.fp.net.co;
+
+import java.util.zip.CRC32;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Checksums for a connection's packets. Each connection has its own, so it
+ * doesn't share the CRC32 that {@link KtnDatagram#calculateChecksum()} keeps
+ * in a static field, and the payload bytes are checksummed as they are,
+ * without serializing anything again.<br>
+ * <br>
+ * Two modes:
+ * <ul>
+ * <li>payload - a CRC32 of the payload bytes, 0 without payload. The same
+ * value as {@link KtnDatagram#calculateChecksum()}, so it works with any
+ * peer.
+ * <li>header - a CRC32 of the flag, ports, sequence number and ack number,
+ * followed by the payload bytes. Also catches a damaged header, and acks
+ * get a real checksum.
+ * </ul>
+ * The header mode is negotiated in the handshake: the SYN carries the
+ * {@link #OFFER} option, see {@link Handshake}, and a peer that knows it
+ * answers with the same option in its SYN_ACK. SYN and SYN_ACK themselves
+ * always use the payload mode, as the sender doesn't know yet what the other
+ * side does. It is only offered on a link that keeps the checksum
+ * ({@link Link#keepsChecksum()}); the connectionless layer sets its own.
+ * Offering can be turned off with -Dktn.checksum=payload.
+ */
+final class PacketChecksum {
+
+    /** Handshake option that offers or accepts the header mode. */
+    static final String OFFER = Handshake.option(Handshake.CHECKSUM, "header");
+
+    /** Payload of a SYN_ACK that accepts the header mode. */
+    static final byte[] ACCEPT = Handshake.payload(OFFER);
+
+    /** Whether connections offer the header mode in their SYN. */
+    static final boolean OFFERED = !"payload".equals(System.getProperty("ktn.checksum"));
+
+    /** Whether to offer, and accept, the header mode on a link. */
+    static boolean offered(Link link) {
+        return OFFERED && link.keepsChecksum();
+    }
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[17];
+
+    private volatile boolean headerMode = false;
+
+    /** Use the header mode for packets after the handshake. */
+    void setHeaderMode(boolean on) {
+        headerMode = on;
+    }
+
+    boolean isHeaderMode() {
+        return headerMode;
+    }
+
+    /** Set the packet's checksum. Call when all other fields are set. */
+    void sign(KtnDatagram packet) {
+        packet.setChecksum(compute(packet));
+    }
+
+    /** Whether the packet's checksum is right. Null packets are not. */
+    boolean verify(KtnDatagram packet) {
+        return packet != null && packet.getChecksum() == compute(packet);
+    }
+
+    /** Whether a SYN or SYN_ACK carries the {@link #OFFER} option. */
+    static boolean isOffer(KtnDatagram packet) {
+        return "header".equals(Handshake.get(packet, Handshake.CHECKSUM));
+    }
+
+    private synchronized long compute(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        boolean handshake = packet.getFlag() == Flag.SYN || packet.getFlag() == Flag.SYN_ACK;
+        if (!headerMode || handshake) {
+            if (payload == null) return 0;
+            crc.reset();
+            crc.update(payload, 0, payload.length);
+            return crc.getValue();
+        }
+        Flag flag = packet.getFlag();
+        header[0] = (byte) (flag == null ? -1 : flag.ordinal());
+        putInt(1, packet.getSrc_port());
+        putInt(5, packet.getDest_port());
+        putInt(9, packet.getSeq_nr());
+        putInt(13, packet.getAck());
+        crc.reset();
+        crc.update(header, 0, header.length);
+        if (payload != null) crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+
+    private void putInt(int offset, int value) {
+        header[offset] = (byte) (value >>> 24);
+        header[offset + 1] = (byte) (value >>> 16);
+        header[offset + 2] = (byte) (value >>> 8);
+        header[offset + 3] = (byte) value;
+    }
+}
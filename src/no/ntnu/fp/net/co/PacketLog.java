@@ -0,0 +1,263 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The connection layer's logging. The protocol code logs through this class
+ * instead of calling {@link no.ntnu.fp.net.admin.Log} directly, so where the
+ * entries go can be changed with {@link #setSink(LogSink)} without touching
+ * the protocol.<br>
+ * <br>
+ * The default is {@link TextLogSink}, which writes through Log as before.
+ * {@link #configure(String)} picks a sink from the system property
+ * <code>ktn.log</code>: "text" (the default), "async" for an
+ * {@link AsyncLogSink} writing text, or "binary" for an AsyncLogSink writing
+ * a binary trace that {@link TraceTool} can read. For binary traces,
+ * <code>ktn.log.payload</code> is the number of payload characters kept per
+ * packet (default 16).<br>
+ * <br>
+ * Every entry has a {@link LogLevel}, and is dropped before anything is
+ * formatted when the level is below the threshold of its component. The
+ * threshold is INFO unless set with {@link #setLevel(LogLevel)} or
+ * {@link #setLevel(String, LogLevel)}, or by configure() from the properties
+ * <code>ktn.log.level</code> and <code>ktn.log.level.&lt;component&gt;</code>,
+ * e.g. <code>-Dktn.log.level=WARN -Dktn.log.level.SendTimer=DEBUG</code>.
+ * Comments on the protocol paths are given as a pattern where each "{}" is
+ * replaced by the next argument, or as a {@link LogMessage}, so they cost a
+ * comparison when disabled:
+ *
+ * <pre>
+ * PacketLog.packet(LogLevel.INFO, &quot;SendTimer&quot;, packet, &quot;Sending this datagram (try: {})&quot;, tries);
+ * </pre>
+ */
+public final class PacketLog {
+
+    private static final String LEVEL_PROPERTY = "ktn.log.level";
+
+    private static volatile LogSink sink = new TextLogSink();
+
+    private static volatile LogLevel threshold = LogLevel.INFO;
+    /** Components with their own threshold. */
+    private static final ConcurrentHashMap<String, LogLevel> componentThresholds =
+            new ConcurrentHashMap<String, LogLevel>();
+    /** True if componentThresholds has entries, so it is only looked in then. */
+    private static volatile boolean perComponent = false;
+
+    private PacketLog() {
+    }
+
+    /**
+     * Choose the sink given by the system property <code>ktn.log</code>.
+     * Meant to be called from main(), next to Log.setLogName().
+     *
+     * @param logName
+     *            name used in the log file name, e.g. "Server".
+     */
+    public static void configure(String logName) {
+        configureLevels(System.getProperties());
+        String kind = System.getProperty("ktn.log", "text");
+        try {
+            if (kind.equals("async") || kind.equals("binary")) {
+                final LogSink async = kind.equals("async") ? AsyncLogSink.inLogDirectory(logName)
+                        : AsyncLogSink.binaryTrace(logName, Integer.getInteger("ktn.log.payload", 16));
+                setSink(async);
+                // Write out what is still in the ring buffer on exit.
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        async.close();
+                    }
+                });
+            }
+            else {
+                setSink(new TextLogSink());
+            }
+        }
+        catch (IOException e) {
+            System.err.println("PacketLog: Could not open " + kind + " log, using text: "
+                    + e.getMessage());
+            setSink(new TextLogSink());
+        }
+    }
+
+    /** Replace the sink. The old sink is closed. */
+    public static void setSink(LogSink newSink) {
+        if (newSink == null) throw new IllegalArgumentException("Sink can not be null.");
+        LogSink old = sink;
+        sink = newSink;
+        if (old != newSink) old.close();
+    }
+
+    public static LogSink getSink() {
+        return sink;
+    }
+
+    /**
+     * Set thresholds from <code>ktn.log.level</code> and
+     * <code>ktn.log.level.&lt;component&gt;</code>.
+     */
+    static void configureLevels(Properties properties) {
+        setLevel(LogLevel.parse(properties.getProperty(LEVEL_PROPERTY), LogLevel.INFO));
+        String prefix = LEVEL_PROPERTY + ".";
+        for (Enumeration<?> names = properties.propertyNames(); names.hasMoreElements();) {
+            String name = (String) names.nextElement();
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+                setLevel(name.substring(prefix.length()),
+                        LogLevel.parse(properties.getProperty(name), LogLevel.INFO));
+            }
+        }
+    }
+
+    /** Set the threshold of components that don't have their own. */
+    public static void setLevel(LogLevel level) {
+        if (level == null) throw new IllegalArgumentException("Level can not be null.");
+        threshold = level;
+    }
+
+    /**
+     * Set the threshold of one component.
+     *
+     * @param level
+     *            the threshold, or null to use the common one again.
+     */
+    public static void setLevel(String component, LogLevel level) {
+        if (level == null) {
+            componentThresholds.remove(component);
+        }
+        else {
+            componentThresholds.put(component, level);
+        }
+        perComponent = !componentThresholds.isEmpty();
+    }
+
+    public static LogLevel getLevel(String component) {
+        if (perComponent) {
+            LogLevel level = componentThresholds.get(component);
+            if (level != null) return level;
+        }
+        return threshold;
+    }
+
+    /**
+     * Whether an entry would be written. Use it to guard logging that needs
+     * work beyond what the methods below can put off.
+     */
+    public static boolean isEnabled(LogLevel level, String component) {
+        return level.compareTo(getLevel(component)) >= 0 && level != LogLevel.OFF;
+    }
+
+    /**
+     * Log a packet at INFO.
+     *
+     * @see LogSink#packet(KtnDatagram, String, String)
+     */
+    public static void packet(KtnDatagram packet, String comment, String component) {
+        if (isEnabled(LogLevel.INFO, component)) sink.packet(packet, comment, component);
+    }
+
+    /**
+     * Log a comment at INFO.
+     *
+     * @see LogSink#message(String, String)
+     */
+    public static void message(String comment, String component) {
+        if (isEnabled(LogLevel.INFO, component)) sink.message(comment, component);
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet, String comment) {
+        if (isEnabled(level, component)) sink.packet(packet, comment, component);
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet,
+            String pattern, long arg) {
+        if (isEnabled(level, component)) {
+            sink.packet(packet, format(pattern, String.valueOf(arg), null), component);
+        }
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet,
+            String pattern, Object arg) {
+        if (isEnabled(level, component)) {
+            sink.packet(packet, format(pattern, String.valueOf(arg), null), component);
+        }
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet,
+            String pattern, long arg1, long arg2) {
+        if (isEnabled(level, component)) {
+            sink.packet(packet, format(pattern, String.valueOf(arg1), String.valueOf(arg2)),
+                    component);
+        }
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet,
+            String pattern, Object arg1, Object arg2) {
+        if (isEnabled(level, component)) {
+            sink.packet(packet, format(pattern, String.valueOf(arg1), String.valueOf(arg2)),
+                    component);
+        }
+    }
+
+    public static void packet(LogLevel level, String component, KtnDatagram packet,
+            LogMessage comment) {
+        if (isEnabled(level, component)) sink.packet(packet, comment.text(), component);
+    }
+
+    public static void message(LogLevel level, String component, String comment) {
+        if (isEnabled(level, component)) sink.message(comment, component);
+    }
+
+    public static void message(LogLevel level, String component, String pattern, long arg) {
+        if (isEnabled(level, component)) {
+            sink.message(format(pattern, String.valueOf(arg), null), component);
+        }
+    }
+
+    public static void message(LogLevel level, String component, String pattern, Object arg) {
+        if (isEnabled(level, component)) {
+            sink.message(format(pattern, String.valueOf(arg), null), component);
+        }
+    }
+
+    public static void message(LogLevel level, String component, String pattern, long arg1,
+            long arg2) {
+        if (isEnabled(level, component)) {
+            sink.message(format(pattern, String.valueOf(arg1), String.valueOf(arg2)), component);
+        }
+    }
+
+    public static void message(LogLevel level, String component, String pattern, Object arg1,
+            Object arg2) {
+        if (isEnabled(level, component)) {
+            sink.message(format(pattern, String.valueOf(arg1), String.valueOf(arg2)), component);
+        }
+    }
+
+    public static void message(LogLevel level, String component, LogMessage comment) {
+        if (isEnabled(level, component)) sink.message(comment.text(), component);
+    }
+
+    /**
+     * Replace the first "{}" in the pattern with arg1 and the second with
+     * arg2. Placeholders without an argument are left as they are.
+     */
+    static String format(String pattern, String arg1, String arg2) {
+        int first = pattern.indexOf("{}");
+        if (first < 0) return pattern;
+        StringBuilder b = new StringBuilder(pattern.length() + 16);
+        b.append(pattern, 0, first).append(arg1);
+        int rest = first + 2;
+        if (arg2 != null) {
+            int second = pattern.indexOf("{}", rest);
+            if (second >= 0) {
+                b.append(pattern, rest, second).append(arg2);
+                rest = second + 2;
+            }
+        }
+        return b.append(pattern, rest, pattern.length()).toString();
+    }
+}
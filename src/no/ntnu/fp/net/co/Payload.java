@@ -0,0 +1,55 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+
+/**
+ * The kind of message a data packet carries, marked by the payload's first
+ * byte. A message sent with {@link ConnectionImpl#send(String)} is the
+ * serialized String, which always starts with the serialization magic 0xAC
+ * 0xED; one sent with {@link ConnectionImpl#send(byte[])} starts with
+ * {@link #BINARY}, followed by the bytes as they were sent. So the receiver
+ * knows which it got, whatever bytes the application sends.
+ */
+final class Payload {
+
+    /** First byte of a binary message. */
+    static final byte BINARY = 0;
+    /** First byte of a serialized String. */
+    static final byte SERIALIZED = (byte) 0xAC;
+
+    private Payload() {
+    }
+
+    /** The payload for a binary message, of length bytes from data. */
+    static byte[] binary(byte[] data, int offset, int length) {
+        byte[] payload = new byte[length + 1];
+        payload[0] = BINARY;
+        System.arraycopy(data, offset, payload, 1, length);
+        return payload;
+    }
+
+    static boolean isBinary(byte[] payload) {
+        return payload != null && payload.length > 0 && payload[0] == BINARY;
+    }
+
+    static boolean isSerialized(byte[] payload) {
+        return payload != null && payload.length > 0 && payload[0] == SERIALIZED;
+    }
+
+    /**
+     * The message in a payload: the bytes of a binary message, or the
+     * serialized String.
+     *
+     * @throws IOException
+     *             if the payload is of neither kind.
+     */
+    static byte[] message(byte[] payload) throws IOException {
+        if (isBinary(payload)) {
+            byte[] data = new byte[payload.length - 1];
+            System.arraycopy(payload, 1, data, 0, data.length);
+            return data;
+        }
+        if (isSerialized(payload)) return payload;
+        throw new IOException("Payload is neither a binary message nor a String.");
+    }
+}
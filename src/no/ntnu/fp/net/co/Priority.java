@@ -0,0 +1,20 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * Priority of a message in a connection's send queue, see
+ * {@link ConnectionImpl#offer(String, Priority)}. A queued message is sent
+ * before every queued message of a lower priority, and after those of its
+ * own priority queued before it. Acks and other protocol packets don't go
+ * through the queue, and are sent before any of them.
+ */
+public enum Priority {
+
+    /** Small and urgent, e.g. presence updates. */
+    HIGH,
+
+    /** The default, e.g. chat messages. */
+    NORMAL,
+
+    /** Sent when nothing else is waiting, e.g. history or file transfers. */
+    BULK
+}
@@ -0,0 +1,158 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves metrics in the Prometheus text format on
+ * <code>http://host:port/metrics</code>, using the HTTP server that comes with
+ * the JDK. Each scrape reads every registered {@link MetricsSource}.<br>
+ * <br>
+ * A value "packets.sent" from a source registered with prefix "ktn_transport"
+ * becomes <code>ktn_transport_packets_sent</code>. Sources that give one
+ * snapshot per connection, user etc. are registered with a label, which gets
+ * the snapshot's name. Histograms are written as cumulative buckets in
+ * microseconds, with <code>_sum</code> and <code>_count</code>.
+ */
+public class PrometheusExporter {
+
+    private final List<Registration> sources = new CopyOnWriteArrayList<Registration>();
+    private HttpServer server;
+
+    /** An exporter with the transport totals and the open connections. */
+    public static PrometheusExporter forTransport() {
+        PrometheusExporter exporter = new PrometheusExporter();
+        exporter.register("ktn_transport", null, TransportMetrics.source());
+        exporter.register("ktn_connection", "connection", TransportMetrics.connectionSource());
+        return exporter;
+    }
+
+    /**
+     * @param prefix
+     *            put in front of every metric name from the source.
+     * @param label
+     *            label for the snapshot name, or null to leave it out.
+     */
+    public void register(String prefix, String label, MetricsSource source) {
+        sources.add(new Registration(sanitize(prefix), label == null ? null : sanitize(label),
+                source));
+    }
+
+    /**
+     * Start serving on the given port.
+     *
+     * @throws IOException
+     *             if the port can not be bound.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (server != null) throw new IllegalStateException("Already started.");
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = scrape().getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type",
+                        "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+
+    /** Everything the sources have, in the Prometheus text format. */
+    public String scrape() {
+        StringBuilder b = new StringBuilder(4096);
+        List<MetricsSnapshot> snapshots = new ArrayList<MetricsSnapshot>();
+        for (Registration r : sources) {
+            snapshots.clear();
+            try {
+                r.source.collect(snapshots);
+            }
+            catch (RuntimeException e) {
+                // A broken source shouldn't take the others with it.
+                b.append("# ").append(r.prefix).append(": ").append(e).append('\n');
+                continue;
+            }
+            for (MetricsSnapshot s : snapshots) {
+                String labels = r.label == null ? "" : r.label + "=\"" + escape(s.getName()) + "\"";
+                for (Map.Entry<String, Long> e : s.getValues().entrySet()) {
+                    b.append(r.prefix).append('_').append(sanitize(e.getKey()));
+                    if (labels.length() > 0) b.append('{').append(labels).append('}');
+                    b.append(' ').append(e.getValue()).append('\n');
+                }
+                for (Map.Entry<String, LatencyHistogram.Snapshot> e : s.getHistograms().entrySet()) {
+                    histogram(b, r.prefix + "_" + sanitize(e.getKey()) + "_micros", labels,
+                            e.getValue());
+                }
+            }
+        }
+        return b.toString();
+    }
+
+    private static void histogram(StringBuilder b, String name, String labels,
+            LatencyHistogram.Snapshot h) {
+        String sep = labels.length() > 0 ? labels + "," : "";
+        int last = h.getBucketCount() - 1;
+        while (last > 0 && h.getBucket(last) == 0) {
+            last--;
+        }
+        long cumulative = 0;
+        for (int i = 0; i <= last; i++) {
+            cumulative += h.getBucket(i);
+            long upper = i == 0 ? 0 : (1L << i) - 1;
+            b.append(name).append("_bucket{").append(sep).append("le=\"").append(upper)
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        b.append(name).append("_bucket{").append(sep).append("le=\"+Inf\"} ")
+                .append(h.getCount()).append('\n');
+        String braces = labels.length() > 0 ? "{" + labels + "}" : "";
+        b.append(name).append("_sum").append(braces).append(' ').append(h.getSum()).append('\n');
+        b.append(name).append("_count").append(braces).append(' ').append(h.getCount())
+                .append('\n');
+    }
+
+    /** Replace what a metric or label name can't have with '_'. */
+    static String sanitize(String name) {
+        StringBuilder b = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean ok = c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_'
+                    || (i > 0 && c >= '0' && c <= '9');
+            b.append(ok ? c : '_');
+        }
+        return b.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class Registration {
+        final String prefix, label;
+        final MetricsSource source;
+
+        Registration(String prefix, String label, MetricsSource source) {
+            this.prefix = prefix;
+            this.label = label;
+            this.source = source;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A connection's bounded queue of messages waiting to be sent, drained by
+ * its own sender thread, which does the sending and retransmitting and waits
+ * for the acks. The thread offering a message gets a future for it and can
+ * go on; only a full queue can hold it up, depending on the
+ * {@link OverflowPolicy}. The sender thread is started on the first offer.<br>
+ * <br>
+ * There is a lane per {@link Priority}, each in order. The sender takes
+ * from the highest lane that has anything; the capacity is for all lanes
+ * together.
+ */
+final class SendQueue {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /** By priority, highest first. */
+    private final List<LinkedList<FutureTask<Void>>> lanes =
+            new ArrayList<LinkedList<FutureTask<Void>>>();
+    private int size;
+    private final Clock clock;
+    private final String name;
+    private int capacity;
+    private OverflowPolicy policy;
+    private long blockMillis;
+    private Thread sender;
+    /** Run when the queue is closed and empty, see {@link #close(FutureTask)}. */
+    private FutureTask<Void> last;
+
+    private boolean closed;
+    private long dropped;
+
+    /**
+     * @param clock
+     *            for the time a {@link OverflowPolicy#BLOCK} offer waits.
+     * @param name
+     *            name of the sender thread.
+     */
+    SendQueue(int capacity, OverflowPolicy policy, long blockMillis, Clock clock, String name) {
+        configure(capacity, policy, blockMillis);
+        this.clock = clock;
+        this.name = name;
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes.add(new LinkedList<FutureTask<Void>>());
+        }
+    }
+
+    synchronized void configure(int capacity, OverflowPolicy policy, long blockMillis) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+        if (policy == null) throw new IllegalArgumentException("Policy can not be null.");
+        if (blockMillis < 0) throw new IllegalArgumentException("Block time can not be negative.");
+        this.capacity = capacity;
+        this.policy = policy;
+        this.blockMillis = blockMillis;
+        notifyAll();
+    }
+
+    /**
+     * Queue a message. The send is run by the sender thread, and its result,
+     * or what it threw, is the future's.<br>
+     * <br>
+     * {@link OverflowPolicy#DROP_OLDEST} drops the oldest message of the
+     * lowest priority queued, but not one of a higher priority than the new
+     * message: if there is nothing else, the new message is dropped, and its
+     * future returned cancelled.
+     *
+     * @throws ConnectException
+     *             if the queue is closed.
+     * @throws IOException
+     *             if the queue is full and the policy didn't make room.
+     */
+    Future<Void> offer(Callable<Void> send, Priority priority) throws IOException {
+        FutureTask<Void> task = new FutureTask<Void>(send);
+        FutureTask<Void> oldest = null;
+        synchronized (this) {
+            if (closed) throw new ConnectException("Connection closed.");
+            if (size >= capacity) {
+                switch (policy) {
+                    case REJECT:
+                        throw new IOException("Send queue full (" + capacity + " messages).");
+                    case DROP_OLDEST:
+                        oldest = removeOldest(priority);
+                        dropped++;
+                        if (oldest == null) {
+                            task.cancel(false);
+                            return task;
+                        }
+                        break;
+                    case BLOCK:
+                        waitForRoom();
+                        break;
+                }
+            }
+            lanes.get(priority.ordinal()).addLast(task);
+            size++;
+            if (sender == null) startSender();
+            notifyAll();
+        }
+        if (oldest != null) oldest.cancel(false);
+        return task;
+    }
+
+    /** The oldest message of the lowest lane, down to the given priority. */
+    private FutureTask<Void> removeOldest(Priority lowest) {
+        for (int i = lanes.size() - 1; i >= lowest.ordinal(); i--) {
+            if (!lanes.get(i).isEmpty()) {
+                size--;
+                return lanes.get(i).removeFirst();
+            }
+        }
+        return null;
+    }
+
+    /** Wait, holding the monitor, until the queue has room or is closed. */
+    private void waitForRoom() throws IOException {
+        long start = clock.currentTimeMillis();
+        while (size >= capacity && !closed) {
+            long left = 0;
+            if (blockMillis > 0) {
+                left = blockMillis - (clock.currentTimeMillis() - start);
+                if (left <= 0) {
+                    throw new SocketTimeoutException("Send queue still full after " + blockMillis
+                            + " ms.");
+                }
+            }
+            try {
+                clock.waitOn(this, left);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for room in the send queue.");
+            }
+        }
+        if (closed) throw new ConnectException("Connection closed.");
+    }
+
+    private void startSender() {
+        sender = new Thread("SendQueue-" + name) {
+            public void run() {
+                drain();
+            }
+        };
+        sender.setDaemon(true);
+        clock.attend(sender);
+        sender.start();
+    }
+
+    private void drain() {
+        FutureTask<Void> task;
+        while ((task = take()) != null) {
+            // Catches what the send throws, for the future.
+            task.run();
+        }
+    }
+
+    private synchronized FutureTask<Void> take() {
+        FutureTask<Void> task = null;
+        while (size == 0 && !closed) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) { /* check closed */
+            }
+        }
+        if (size == 0) {
+            task = last;
+            last = null;
+            return task;
+        }
+        for (LinkedList<FutureTask<Void>> lane : lanes) {
+            if (!lane.isEmpty()) {
+                task = lane.removeFirst();
+                break;
+            }
+        }
+        size--;
+        // There is room now.
+        notifyAll();
+        return task;
+    }
+
+    /**
+     * Take no more messages. What is queued is still sent, and the sender
+     * thread ends when the queue is empty.
+     */
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Take no more messages, and run a last task on the sender thread once
+     * what is queued has been sent, e.g. the close handshake.
+     */
+    synchronized void close(FutureTask<Void> task) {
+        closed = true;
+        last = task;
+        if (sender == null) startSender();
+        notifyAll();
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** Messages dropped by {@link OverflowPolicy#DROP_OLDEST}. */
+    synchronized long getDropped() {
+        return dropped;
+    }
+}
@@ -3,7 +3,6 @@ package no.ntnu.fp.net.co;
 import java.io.IOException;
 import java.util.TimerTask;
 
-import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.cl.ClException;
 import no.ntnu.fp.net.cl.ClSocket;
 import no.ntnu.fp.net.cl.KtnDatagram;
@@ -23,8 +22,10 @@ import no.ntnu.fp.net.co.AbstractConnection;
 public class SendTimer extends TimerTask {
 
     private ClSocket socket;
+    private Link link;
     private KtnDatagram packet;
     private int tries;
+    private ConnectionMetrics metrics;
 
     /**
      * Simple constructor.
@@ -40,6 +41,22 @@ public class SendTimer extends TimerTask {
         tries = 0;
     }
 
+    /**
+     * Send for a connection on its link, counting each transmission in its
+     * metrics.
+     *
+     * @param link
+     *            - the link to send the datagram on if timeout
+     * @param metrics
+     *            - the connection's metrics
+     */
+    public SendTimer(Link link, KtnDatagram packet, ConnectionMetrics metrics) {
+        this.link = link;
+        this.packet = packet;
+        this.metrics = metrics;
+        tries = 0;
+    }
+
     /**
      * Perform a packet (re)send. The method will be called upon a timeout from
      * the assosiated timer. If called, it means that a correct ack is not
@@ -48,17 +65,23 @@ public class SendTimer extends TimerTask {
      */
     public void run() {
         try {
-            Log.writeToLog(packet, "Sending this datagram (try: " + ++tries + ")", "SendTimer");
+            tries++;
+            PacketLog.packet(LogLevel.INFO, "SendTimer", packet, "Sending this datagram (try: {})",
+                    tries);
             
-            socket.send(packet);
+            if (link != null) link.send(packet);
+            else socket.send(packet);
+            if (metrics != null) metrics.transmitted(packet.getSeq_nr());
         }
         catch (ClException e) {
-            Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
-                    + ":" + packet.getDest_port(), "SendTimer");
+            PacketLog.message(LogLevel.ERROR, "SendTimer",
+                    "ERROR: Could not establish a connection to {}:{}", packet.getDest_addr(),
+                    packet.getDest_port());
         }
         catch (IOException e) {
-            Log.writeToLog("ERROR: Could not establish a connection to " + packet.getDest_addr()
-                    + ":" + packet.getDest_port(), "SendTimer");
+            PacketLog.message(LogLevel.ERROR, "SendTimer",
+                    "ERROR: Could not establish a connection to {}:{}", packet.getDest_addr(),
+                    packet.getDest_port());
         }
     }
 }
@@ -15,6 +15,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 import no.ntnu.fp.net.co.Connection;
 
@@ -29,6 +31,8 @@ public class SimpleConnection implements Connection {
   private DataInputStream is;
   private boolean stop = true;
   private int myPort;
+  /** A binary message that didn't fit in the buffer given to receive(). */
+  private byte[] pending;
 
   public SimpleConnection(int myPort) {
     this.myPort = myPort;
@@ -102,6 +106,73 @@ public class SimpleConnection implements Connection {
     throw new IOException("Can't receive. The connection is not established!");
   }
 
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#send(byte[])
+   *
+   * A binary message is its length (int) and the bytes. Binary and text
+   * messages can't be told apart on the stream, so the receiver must know
+   * which one comes next.
+   */
+  public void send(byte[] data) throws ConnectException, IOException {
+    os.writeInt(data.length);
+    os.write(data);
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#send(java.nio.ByteBuffer)
+   */
+  public void send(ByteBuffer data) throws ConnectException, IOException {
+    if (data.hasArray()) {
+      os.writeInt(data.remaining());
+      os.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+      data.position(data.limit());
+    }
+    else {
+      byte[] bytes = new byte[data.remaining()];
+      data.get(bytes);
+      send(bytes);
+    }
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#receiveBytes()
+   */
+  public byte[] receiveBytes() throws ConnectException, IOException {
+    if (pending != null) {
+      byte[] data = pending;
+      pending = null;
+      return data;
+    }
+    if (stop) throw new IOException("Can't receive. The connection is not established!");
+    byte[] data = new byte[is.readInt()];
+    is.readFully(data);
+    return data;
+  }
+
+  /* (non-Javadoc)
+   * @see no.ntnu.fp.net.co.Connection#receive(java.nio.ByteBuffer)
+   */
+  public int receive(ByteBuffer dst) throws ConnectException, IOException {
+    if (pending == null && !stop && dst.hasArray()) {
+      // Read straight into the buffer's array when the message fits.
+      int length = is.readInt();
+      if (length <= dst.remaining()) {
+        is.readFully(dst.array(), dst.arrayOffset() + dst.position(), length);
+        dst.position(dst.position() + length);
+        return length;
+      }
+      pending = new byte[length];
+      is.readFully(pending);
+    }
+    byte[] data = receiveBytes();
+    if (data.length > dst.remaining()) {
+      pending = data;
+      throw new BufferOverflowException();
+    }
+    dst.put(data);
+    return data.length;
+  }
+
   /* (non-Javadoc)
    * @see no.ntnu.fp.net.co.Connection#close()
    */
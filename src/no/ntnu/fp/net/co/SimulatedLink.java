@@ -0,0 +1,311 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * An in-process network with configurable impairments, on a
+ * {@link VirtualClock}. Connections created with this link talk to each other
+ * by port number only; addresses are carried but not looked at.<br>
+ * <br>
+ * What happens to a datagram is decided by a Random seeded from the link's
+ * seed, the datagram's direction, sequence number, ack number and flag, and
+ * how many times that datagram has been sent before. The fate of a packet
+ * therefore doesn't depend on what other threads happen to send in between,
+ * and the same seed replays the same losses, duplicates, corruptions and
+ * delays.<br>
+ * <br>
+ * Impairments, applied in this order on each send:
+ * <ol>
+ * <li>loss - the datagram is dropped (the sender isn't told)
+ * <li>duplication - a second copy is sent
+ * <li>corruption - a payload byte or a checksum bit is flipped in a copy
+ * <li>latency - base delay plus uniform jitter
+ * <li>reordering - a copy is held back an extra delay, letting later
+ * datagrams pass it
+ * <li>bandwidth - copies between the same two ports queue behind each other
+ * for their transmission time
+ * </ol>
+ * Unlike {@link no.ntnu.fp.net.cl.ClSocket}, sending to a port nobody is
+ * receiving on doesn't fail: the datagram waits in the port's inbox for the
+ * next receive. Whether a thread is in receive() at the moment of a send
+ * depends on real thread timing, so refusing would make a seed's trace
+ * differ from run to run.
+ */
+public class SimulatedLink implements Link {
+
+    /** Bytes counted for the header when computing transmission time. */
+    static final int HEADER_BYTES = 40;
+
+    private final VirtualClock clock;
+    private final long seed;
+
+    private double loss = 0, duplicate = 0, corrupt = 0, reorder = 0;
+    private long latency = 1, jitter = 0, reorderDelay = 100;
+    private long bandwidth = 0;
+
+    // Guarded by the clock's monitor, which receivers wait on.
+    private final Map<Integer, LinkedList<KtnDatagram>> inboxes =
+            new HashMap<Integer, LinkedList<KtnDatagram>>();
+
+    private final Map<String, Integer> transmissions = new HashMap<String, Integer>();
+    /** Per sending port: the order it first sent in, and its first seq. */
+    private final Map<Integer, int[]> streams = new HashMap<Integer, int[]>();
+    private final Map<String, Long> busyUntil = new HashMap<String, Long>();
+
+    private final AtomicLong sent = new AtomicLong(), delivered = new AtomicLong(),
+            lost = new AtomicLong(), duplicated = new AtomicLong(),
+            corrupted = new AtomicLong(), reordered = new AtomicLong();
+
+    /** A perfect link with 1 ms latency, on a new clock. */
+    public SimulatedLink(long seed) {
+        this(seed, new VirtualClock());
+    }
+
+    public SimulatedLink(long seed, VirtualClock clock) {
+        this.seed = seed;
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public boolean keepsChecksum() {
+        return true;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /** Probability (0 to 1) that a datagram is lost. */
+    public SimulatedLink setLoss(double probability) {
+        loss = probability;
+        return this;
+    }
+
+    /** Probability that a datagram is delivered twice. */
+    public SimulatedLink setDuplicate(double probability) {
+        duplicate = probability;
+        return this;
+    }
+
+    /** Probability that a delivered copy is corrupted. */
+    public SimulatedLink setCorrupt(double probability) {
+        corrupt = probability;
+        return this;
+    }
+
+    /**
+     * Delay of every copy: base plus a uniformly random 0 to jitter millis.
+     */
+    public SimulatedLink setLatency(long base, long jitter) {
+        latency = base;
+        this.jitter = jitter;
+        return this;
+    }
+
+    /** Probability that a copy is held back an extra delay millis. */
+    public SimulatedLink setReorder(double probability, long delay) {
+        reorder = probability;
+        reorderDelay = delay;
+        return this;
+    }
+
+    /** Bytes per second between two ports, 0 for no limit. */
+    public SimulatedLink setBandwidth(long bytesPerSecond) {
+        bandwidth = bytesPerSecond;
+        return this;
+    }
+
+
+    public void send(KtnDatagram packet) throws IOException {
+        synchronized (clock) {
+            clock.touch();
+            int destPort = packet.getDest_port();
+            sent.incrementAndGet();
+            String identity = identity(packet);
+            int n = count(transmissions, identity);
+            transmissions.put(identity, n + 1);
+            Random random = new Random(mix(mix(seed) + identity.hashCode() * 31L + n));
+
+            if (random.nextDouble() < loss) {
+                lost.incrementAndGet();
+                return;
+            }
+            int copies = 1;
+            if (random.nextDouble() < duplicate) {
+                duplicated.incrementAndGet();
+                copies = 2;
+            }
+            long now = clock.currentTimeMillis();
+            for (int i = 0; i < copies; i++) {
+                KtnDatagram copy = copy(packet);
+                if (random.nextDouble() < corrupt) {
+                    corrupted.incrementAndGet();
+                    corrupt(copy, random);
+                }
+                long delay = latency + (jitter > 0 ? (long) (random.nextDouble() * (jitter + 1)) : 0);
+                if (random.nextDouble() < reorder) {
+                    reordered.incrementAndGet();
+                    delay += reorderDelay;
+                }
+                if (bandwidth > 0) {
+                    String direction = packet.getSrc_port() + ">" + destPort;
+                    Long busy = busyUntil.get(direction);
+                    long start = Math.max(now, busy == null ? 0 : busy.longValue());
+                    long done = start + size(copy) * 1000 / bandwidth;
+                    busyUntil.put(direction, done);
+                    delay += done - now;
+                }
+                deliverLater(copy, delay);
+            }
+        }
+    }
+
+    public KtnDatagram receive(int port, long timeout) throws IOException {
+        synchronized (clock) {
+            long deadline = timeout > 0 ? clock.currentTimeMillis() + timeout : Long.MAX_VALUE;
+            LinkedList<KtnDatagram> inbox = inbox(port);
+            while (inbox.isEmpty()) {
+                if (clock.currentTimeMillis() >= deadline) return null;
+                try {
+                    clock.await(deadline);
+                }
+                catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            clock.touch();
+            return inbox.removeFirst();
+        }
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    public long getReordered() {
+        return reordered.get();
+    }
+
+
+    public String toString() {
+        return "SimulatedLink(seed=" + seed + ", sent=" + sent + ", delivered=" + delivered
+                + ", lost=" + lost + ", duplicated=" + duplicated + ", corrupted=" + corrupted
+                + ", reordered=" + reordered + ")";
+    }
+
+    private void deliverLater(final KtnDatagram packet, long delay) {
+        clock.schedule(new Runnable() {
+            public void run() {
+                synchronized (clock) {
+                    inbox(packet.getDest_port()).add(packet);
+                    delivered.incrementAndGet();
+                    clock.touch();
+                    clock.notifyAll();
+                }
+            }
+        }, delay, 0);
+    }
+
+    /**
+     * The same for every run with the same sends: connections pick random
+     * initial sequence numbers and accept() takes the first free port, so
+     * ports are numbered in the order they first send, and numbers are
+     * relative to the first seq sent from a port. An ack that was never set
+     * stays -1.
+     */
+    private String identity(KtnDatagram packet) {
+        int[] src = streams.get(packet.getSrc_port());
+        if (src == null) {
+            src = new int[] { streams.size(), packet.getSeq_nr() };
+            streams.put(packet.getSrc_port(), src);
+        }
+        int[] dest = streams.get(packet.getDest_port());
+        int ack = packet.getAck();
+        if (dest != null && ack >= 0) ack -= dest[1];
+        return src[0] + ">" + (dest == null ? -1 : dest[0]) + "/" + (packet.getSeq_nr() - src[1])
+                + "/" + ack + "/" + packet.getFlag();
+    }
+
+    private LinkedList<KtnDatagram> inbox(int port) {
+        LinkedList<KtnDatagram> inbox = inboxes.get(port);
+        if (inbox == null) {
+            inbox = new LinkedList<KtnDatagram>();
+            inboxes.put(port, inbox);
+        }
+        return inbox;
+    }
+
+    private static <K> int count(Map<K, Integer> map, K key) {
+        Integer n = map.get(key);
+        return n == null ? 0 : n.intValue();
+    }
+
+    /** What the receiver would get from the connectionless layer. */
+    static KtnDatagram copy(KtnDatagram packet) {
+        KtnDatagram copy = new KtnDatagram();
+        copy.setSrc_addr(packet.getSrc_addr());
+        copy.setSrc_port(packet.getSrc_port());
+        copy.setDest_addr(packet.getDest_addr());
+        copy.setDest_port(packet.getDest_port());
+        // The setters turn negative numbers positive, but a new datagram's
+        // are -1, and stay -1 on the wire.
+        if (packet.getSeq_nr() >= 0) copy.setSeq_nr(packet.getSeq_nr());
+        if (packet.getAck() >= 0) copy.setAck(packet.getAck());
+        copy.setFlag(packet.getFlag());
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload != null) copy.setPayloadAsBytes(payload.clone());
+        copy.setChecksum(packet.getChecksum());
+        return copy;
+    }
+
+    private static void corrupt(KtnDatagram packet, Random random) {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload != null && payload.length > 0 && random.nextBoolean()) {
+            payload[random.nextInt(payload.length)] ^= (byte) (1 << random.nextInt(8));
+        }
+        else {
+            packet.setChecksum(packet.getChecksum() ^ (1L << random.nextInt(32)));
+        }
+    }
+
+    /**
+     * Scramble a seed. Random's first values for seeds that are close are
+     * close too, which would make the fates of consecutive packets alike.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long size(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        return HEADER_BYTES + (payload == null ? 0 : payload.length);
+    }
+}
@@ -0,0 +1,57 @@
+package no.ntnu.fp.net.co;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without fighting over one cache
+ * line. The count is spread over a few cells, picked by thread id, and summed
+ * when read. Reading is therefore slower than incrementing, which is the
+ * right trade for statistics that are written on every packet and read now
+ * and then.
+ */
+public final class StripedCounter {
+
+    /** Longs per cell, so two cells don't share a 64 byte cache line. */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    /** A counter with a cell per processor. */
+    public StripedCounter() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param stripes
+     *            number of cells, rounded up to a power of two (at most 64).
+     */
+    public StripedCounter(int stripes) {
+        int n = 1;
+        while (n < stripes && n < 64) {
+            n <<= 1;
+        }
+        cells = new AtomicLongArray(n * PAD);
+        mask = n - 1;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(((int) Thread.currentThread().getId() & mask) * PAD, delta);
+    }
+
+    /**
+     * The sum of the cells. Not a snapshot: increments made while summing may
+     * or may not be included.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PAD) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,59 @@
+package no.ntnu.fp.net.co;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * The real time, used with {@link ClSocketLink}. Each scheduled task gets its
+ * own {@link Timer}, as the connection layer has always done for
+ * retransmits.
+ */
+public final class SystemClock implements Clock {
+
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    private SystemClock() {
+    }
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    public void waitOn(Object monitor, long millis) throws InterruptedException {
+        monitor.wait(millis);
+    }
+
+    public Task schedule(final Runnable task, long delay, final long period) {
+        final Timer timer = new Timer();
+        TimerTask timerTask = new TimerTask() {
+            public void run() {
+                task.run();
+                // Let the timer's thread end.
+                if (period <= 0) timer.cancel();
+            }
+        };
+        if (period > 0) {
+            timer.scheduleAtFixedRate(timerTask, delay, period);
+        }
+        else {
+            timer.schedule(timerTask, delay);
+        }
+        return new Task() {
+            public void cancel() {
+                timer.cancel();
+            }
+        };
+    }
+
+    public void attend(Thread thread) {
+        // Real time doesn't wait.
+    }
+}
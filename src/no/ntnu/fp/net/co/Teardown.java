@@ -0,0 +1,136 @@
+package no.ntnu.fp.net.co;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The timer for connections being closed on a clock, see
+ * {@link ConnectionImpl#closeAsync(long)}: it aborts close handshakes that
+ * run past their deadline, and frees ports at the end of TIME_WAIT. One task
+ * every {@link #TICK} millis while anything is closing or waiting.<br>
+ * <br>
+ * A connection in TIME_WAIT is only its port, kept reserved so a new
+ * connection on it doesn't get the old one's late packets. The ports are
+ * kept in a ring with the time each is freed; as they all wait about as
+ * long, they are freed in the order they were added.
+ */
+final class Teardown implements Runnable {
+
+    /** Millis between checks. */
+    static final long TICK = 500;
+
+    private static final Map<Clock, Teardown> timers = new HashMap<Clock, Teardown>();
+
+    private final Clock clock;
+    /** Connections being closed, with their deadlines. */
+    private final Map<ConnectionImpl, Long> deadlines = new ConcurrentHashMap<ConnectionImpl, Long>();
+    /** Ports in TIME_WAIT and when they are freed, a ring from head. */
+    private int[] ports = new int[16];
+    private long[] frees = new long[16];
+    private int head, waiting;
+    private Clock.Task task;
+
+    private Teardown(Clock clock) {
+        this.clock = clock;
+    }
+
+    /** The timer for a clock, started if it isn't. Call holding timers. */
+    private static Teardown timer(Clock clock) {
+        Teardown timer = timers.get(clock);
+        if (timer == null) {
+            timer = new Teardown(clock);
+            timer.task = clock.schedule(timer, TICK, TICK);
+            timers.put(clock, timer);
+        }
+        return timer;
+    }
+
+    /** Abort the connection's close if it isn't done by the deadline. */
+    static void closeBy(ConnectionImpl connection, long deadline, Clock clock) {
+        synchronized (timers) {
+            Teardown timer = timer(clock);
+            Long earlier = timer.deadlines.get(connection);
+            if (earlier == null || deadline < earlier) {
+                timer.deadlines.put(connection, deadline);
+            }
+        }
+    }
+
+    /** The connection is closed, or its close aborted. */
+    static void remove(ConnectionImpl connection, Clock clock) {
+        synchronized (timers) {
+            Teardown timer = timers.get(clock);
+            if (timer == null || timer.deadlines.remove(connection) == null) return;
+            timer.stopIfIdle();
+        }
+    }
+
+    /** Keep a port in TIME_WAIT for the given time, then free it. */
+    static void timeWait(int port, long millis, Clock clock) {
+        synchronized (timers) {
+            timer(clock).add(port, clock.currentTimeMillis() + millis);
+        }
+    }
+
+    /** Ports in TIME_WAIT on all clocks. */
+    static int getTimeWaiting() {
+        int count = 0;
+        synchronized (timers) {
+            for (Teardown timer : timers.values()) {
+                count += timer.waiting;
+            }
+        }
+        return count;
+    }
+
+    /** Call holding timers. */
+    private void add(int port, long free) {
+        if (waiting == ports.length) {
+            int[] morePorts = new int[ports.length * 2];
+            long[] moreFrees = new long[frees.length * 2];
+            for (int i = 0; i < waiting; i++) {
+                morePorts[i] = ports[(head + i) % ports.length];
+                moreFrees[i] = frees[(head + i) % frees.length];
+            }
+            ports = morePorts;
+            frees = moreFrees;
+            head = 0;
+        }
+        int tail = (head + waiting) % ports.length;
+        ports[tail] = port;
+        frees[tail] = free;
+        waiting++;
+    }
+
+    /** Call holding timers. */
+    private void stopIfIdle() {
+        if (deadlines.isEmpty() && waiting == 0) {
+            task.cancel();
+            timers.remove(clock);
+        }
+    }
+
+    public void run() {
+        long now = clock.currentTimeMillis();
+        for (Map.Entry<ConnectionImpl, Long> entry : deadlines.entrySet()) {
+            if (now >= entry.getValue() && deadlines.remove(entry.getKey()) != null) {
+                try {
+                    entry.getKey().closeTimedOut();
+                }
+                catch (RuntimeException e) {
+                    // Don't let one connection stop the others' teardown.
+                    PacketLog.message(LogLevel.ERROR, "Teardown", "Abort failed: {}", e);
+                }
+            }
+        }
+        synchronized (timers) {
+            while (waiting > 0 && frees[head] <= now) {
+                ConnectionImpl.freePort(ports[head]);
+                head = (head + 1) % ports.length;
+                waiting--;
+            }
+            stopIfIdle();
+        }
+    }
+}
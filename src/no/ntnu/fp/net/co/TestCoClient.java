@@ -33,6 +33,7 @@ public class TestCoClient {
     // Set up log
     Log log = new Log();
     log.setLogName("Client");
+    PacketLog.configure("Client");
 
     // Connection object listening on 4001
     Connection conn = new ConnectionImpl(4001);
@@ -64,6 +65,7 @@ public class TestCoClient {
     }
 
     System.out.println("CLIENT TEST FINISHED");
+    System.out.println(TransportMetrics.snapshot());
     Log.writeToLog("CLIENT TEST FINISHED","TestApplication");
   }
 
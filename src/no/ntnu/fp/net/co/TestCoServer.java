@@ -34,6 +34,7 @@ public class TestCoServer {
     // Create log
     Log log = new Log();
     log.setLogName("Server");
+    PacketLog.configure("Server");
 
     // server connection instance, listen on port 5555
     Connection server = new ConnectionImpl(5555);
@@ -55,6 +56,7 @@ public class TestCoServer {
       }
 
       System.out.println("SERVER TEST FINISHED");
+      System.out.println(TransportMetrics.snapshot());
       Log.writeToLog("TEST SERVER FINISHED","TestServer");
     }
     catch (IOException e){
@@ -0,0 +1,124 @@
+package no.ntnu.fp.net.co;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * Writes log entries as text in the fixed column layout of the files in
+ * Log/, one line per entry.
+ */
+class TextEventWriter implements LogEventWriter {
+
+    private static final Flag[] FLAGS = Flag.values();
+    private static final int[] WIDTHS = { 17, 25, 25, 25, 8, 8, 8, 25, 12, 0 };
+
+    private final Writer out;
+    private final SimpleDateFormat timestamp;
+    private final StringBuilder line;
+
+    TextEventWriter(File file) throws IOException {
+        this(new BufferedWriter(new FileWriter(file)));
+    }
+
+    TextEventWriter(Writer out) throws IOException {
+        this.out = out;
+        timestamp = new SimpleDateFormat("HH:mm:ss.SSS");
+        line = new StringBuilder(256);
+        out.write(header());
+    }
+
+    public void write(LogEvent event) throws IOException {
+        out.write(format(event));
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /** The column headings, with rulers above and below. */
+    static String header() {
+        StringBuilder ruler = new StringBuilder();
+        for (int i = 0; i < 220; i++) {
+            ruler.append('-');
+        }
+        ruler.append('\n');
+        StringBuilder header = new StringBuilder();
+        header.append('\n').append(ruler);
+        appendLine(header, new String[] { "Timestamp", "Logging Entity", "Source", "Destination",
+                "Seq No", "Flag", "Ack No", "Start Payload", "Checksum", "Comment" });
+        header.append(ruler);
+        return header.toString();
+    }
+
+    /** Format one entry as a line of the log. */
+    String format(LogEvent event) {
+        String time = timestamp.format(new Date(event.time));
+        String[] columns;
+        if (event.isPacket()) {
+            columns = new String[] { time, event.component, event.srcAddr + ":" + event.srcPort,
+                    event.destAddr + ":" + event.destPort, String.valueOf(event.seq),
+                    flagName(event.flag), String.valueOf(event.ack),
+                    event.payloadText != null ? event.payloadText : payloadStart(event.payload),
+                    String.valueOf(event.checksum), event.comment };
+        }
+        else {
+            columns = new String[] { time, event.component, "", "", "", "", "", "", "",
+                    event.comment };
+        }
+        line.setLength(0);
+        appendLine(line, columns);
+        return line.toString();
+    }
+
+    static String flagName(int flag) {
+        return flag >= 0 && flag < FLAGS.length ? FLAGS[flag].toString() : "?";
+    }
+
+    /** The payload as the application sees it, if it is a String message. */
+    static String payloadStart(byte[] payload) {
+        if (payload == null) return "";
+        if (Payload.isBinary(payload)) return (payload.length - 1) + " bytes";
+        // Util.toObject() prints a stack trace for anything not serialized.
+        if (!Payload.isSerialized(payload)) {
+            return payload.length + " bytes";
+        }
+        try {
+            return String.valueOf(Util.toObject(payload));
+        }
+        catch (RuntimeException e) {
+            return payload.length + " bytes";
+        }
+    }
+
+    private static void appendLine(StringBuilder line, String[] columns) {
+        for (int i = 0; i < columns.length; i++) {
+            String column = columns[i] == null ? "" : columns[i].replace('\n', ' ');
+            int width = WIDTHS[i];
+            if (width == 0) {
+                line.append(column);
+            }
+            else {
+                if (column.length() >= width) {
+                    column = column.substring(0, width - 1);
+                }
+                line.append(column);
+                for (int j = column.length(); j < width; j++) {
+                    line.append(' ');
+                }
+            }
+        }
+        line.append('\n');
+    }
+}
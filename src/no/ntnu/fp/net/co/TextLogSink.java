@@ -0,0 +1,24 @@
+package no.ntnu.fp.net.co;
+
+import no.ntnu.fp.net.admin.Log;
+import no.ntnu.fp.net.cl.KtnDatagram;
+
+/**
+ * The default sink, writes every entry with {@link Log#writeToLog} on the
+ * calling thread. This is what the connection layer has always done: simple,
+ * but every entry takes the Log's monitor and a file write.
+ */
+public class TextLogSink implements LogSink {
+
+    public void packet(KtnDatagram packet, String comment, String component) {
+        Log.writeToLog(packet, comment, component);
+    }
+
+    public void message(String comment, String component) {
+        Log.writeToLog(comment, component);
+    }
+
+    public void close() {
+        // Log writes through, nothing to do.
+    }
+}
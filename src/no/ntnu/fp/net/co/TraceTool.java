@@ -0,0 +1,287 @@
+package no.ntnu.fp.net.co;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * Command line tool for binary traces written by {@link BinaryTraceWriter}
+ * (run with -Dktn.log=binary).
+ *
+ * <pre>
+ * java no.ntnu.fp.net.co.TraceTool [options] trace.ktnt
+ *   -o file        write to file instead of standard output
+ *   -port n        only packets from or to port n
+ *   -flag f        only packets with flag f (NONE, SYN, ACK, ...)
+ *   -seq a-b       only packets with sequence number a to b
+ *   -timeline      each connection's packets in order, with times
+ *   -summary       one summary line per connection
+ * </pre>
+ *
+ * Without -timeline or -summary the (filtered) trace is written in the text
+ * layout of the files in Log/. Comments without a packet are only shown when
+ * no packet filter is given.<br>
+ * <br>
+ * The trace only has the sending side of a packet: {@link SendTimer} logs
+ * every try of a data packet or FIN, and acks are logged as they are sent.
+ * A second try of the same sequence number is a retransmit, and an ack's
+ * time is measured from the first try of the packet it acks.
+ */
+public class TraceTool {
+
+    /** Component of the log entry for each try of a packet. */
+    private static final String SEND_COMPONENT = "SendTimer";
+
+    private int port = -1;
+    private int flag = -2;
+    private long seqFrom = Long.MIN_VALUE;
+    private long seqTo = Long.MAX_VALUE;
+
+    public static void main(String[] args) {
+        TraceTool tool = new TraceTool();
+        String input = null, output = null;
+        boolean timeline = false, summary = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-o")) {
+                    output = args[++i];
+                }
+                else if (args[i].equals("-port")) {
+                    tool.port = Integer.parseInt(args[++i]);
+                }
+                else if (args[i].equals("-flag")) {
+                    tool.flag = Flag.valueOf(args[++i].toUpperCase()).ordinal();
+                }
+                else if (args[i].equals("-seq")) {
+                    String[] range = args[++i].split("-");
+                    tool.seqFrom = Long.parseLong(range[0]);
+                    tool.seqTo = range.length > 1 ? Long.parseLong(range[1]) : tool.seqFrom;
+                }
+                else if (args[i].equals("-timeline")) {
+                    timeline = true;
+                }
+                else if (args[i].equals("-summary")) {
+                    summary = true;
+                }
+                else {
+                    input = args[i];
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            input = null;
+        }
+        if (input == null || (timeline && summary)) {
+            System.err.println("Usage: TraceTool [-o file] [-port n] [-flag f] [-seq a-b] "
+                    + "[-timeline | -summary] trace.ktnt");
+            System.exit(1);
+        }
+
+        try {
+            Writer out = output == null ? new BufferedWriter(new OutputStreamWriter(System.out))
+                    : new BufferedWriter(new FileWriter(output));
+            if (timeline) {
+                tool.timeline(input, out);
+            }
+            else if (summary) {
+                tool.summary(input, out);
+            }
+            else {
+                tool.convert(input, out);
+            }
+            out.close();
+        }
+        catch (IOException e) {
+            System.err.println("TraceTool: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Write the events that pass the filter in the text layout. */
+    void convert(String input, Writer out) throws IOException {
+        DataInputStream in = open(input);
+        try {
+            int payloadBytes = BinaryTraceWriter.readHeader(in);
+            TextEventWriter text = new TextEventWriter(out);
+            LogEvent event = new LogEvent();
+            while (BinaryTraceWriter.read(in, payloadBytes, event)) {
+                if (accept(event)) text.write(event);
+            }
+            text.flush();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the packets of each connection in order, with the millis since
+     * the connection's first packet and, for retransmits and acks, since the
+     * first try of the packet.
+     */
+    void timeline(String input, Writer out) throws IOException {
+        Map<String, Timeline> connections = connections(input, true);
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        for (Timeline t : connections.values()) {
+            out.write(t.key + ", from " + time.format(new Date(t.first)) + String.format("%n"));
+            out.write(String.format("%8s  %-14s %-10s %-7s %10s %10s %11s  %s%n", "Offset",
+                    "Ports", "Event", "Flag", "Seq", "Ack", "Since send", "Comment"));
+            for (String line : t.events) {
+                out.write(line);
+            }
+            out.write(String.format("%n"));
+        }
+        out.flush();
+    }
+
+    /** Write one summary line per connection. */
+    void summary(String input, Writer out) throws IOException {
+        Map<String, Timeline> connections = connections(input, false);
+        SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS");
+        out.write(String.format("%-46s %12s %8s %8s %8s %8s %8s %10s %10s%n", "Connection",
+                "Start", "Packets", "Data", "Retrans", "Acks", "Fins", "Handshake", "Duration"));
+        for (Timeline t : connections.values()) {
+            out.write(String.format("%-46s %12s %8d %8d %8d %8d %8d %10s %10d%n", t.key,
+                    time.format(new Date(t.first)), t.packets, t.data, t.retransmits, t.acks, t.fins,
+                    t.handshake() < 0 ? "-" : String.valueOf(t.handshake()), t.last - t.first));
+        }
+        out.flush();
+    }
+
+    /** The packets that pass the filter, by connection in order of appearance. */
+    private Map<String, Timeline> connections(String input, boolean keepEvents)
+            throws IOException {
+        Map<String, Timeline> connections = new LinkedHashMap<String, Timeline>();
+        DataInputStream in = open(input);
+        try {
+            int payloadBytes = BinaryTraceWriter.readHeader(in);
+            LogEvent event = new LogEvent();
+            while (BinaryTraceWriter.read(in, payloadBytes, event)) {
+                if (!event.isPacket() || !accept(event)) continue;
+                String key = connectionKey(event);
+                Timeline t = connections.get(key);
+                if (t == null) {
+                    t = new Timeline(key, event.time, keepEvents);
+                    connections.put(key, t);
+                }
+                t.add(event);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return connections;
+    }
+
+    private boolean accept(LogEvent event) {
+        boolean filtered = port >= 0 || flag != -2 || seqFrom != Long.MIN_VALUE;
+        if (!event.isPacket()) return !filtered;
+        if (port >= 0 && event.srcPort != port && event.destPort != port) return false;
+        if (flag != -2 && event.flag != flag) return false;
+        return event.seq >= seqFrom && event.seq <= seqTo;
+    }
+
+    /** The same key for both directions of a connection. */
+    private static String connectionKey(LogEvent event) {
+        String a = event.srcAddr + ":" + event.srcPort;
+        String b = event.destAddr + ":" + event.destPort;
+        return a.compareTo(b) < 0 ? a + " <-> " + b : b + " <-> " + a;
+    }
+
+    private static DataInputStream open(String file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+    }
+
+    /** What happened on one connection. */
+    private static class Timeline {
+        final String key;
+        final long first;
+        long last;
+        long syn = -1, synAck = -1;
+        int packets, data, retransmits, acks, fins;
+        /** Time of the first try of each port/seq sent. */
+        final Map<String, Long> firstTry = new HashMap<String, Long>();
+        /** Timeline lines, null when only summing up. */
+        final List<String> events;
+
+        Timeline(String key, long first, boolean keepEvents) {
+            this.key = key;
+            this.first = first;
+            last = first;
+            events = keepEvents ? new ArrayList<String>() : null;
+        }
+
+        void add(LogEvent event) {
+            last = event.time;
+            packets++;
+            Flag flag = event.flag >= 0 && event.flag < Flag.values().length
+                    ? Flag.values()[event.flag] : null;
+            String what;
+            long since = -1;
+            if (SEND_COMPONENT.equals(event.component)) {
+                String sent = event.srcPort + "/" + event.seq;
+                Long tried = firstTry.get(sent);
+                if (tried == null) {
+                    firstTry.put(sent, event.time);
+                    what = "send";
+                    if (flag == Flag.NONE) data++;
+                    if (flag == Flag.FIN) fins++;
+                }
+                else {
+                    what = "retransmit";
+                    retransmits++;
+                    since = event.time - tried;
+                }
+            }
+            else if (flag == Flag.ACK || flag == Flag.SYN_ACK) {
+                what = "ack";
+                Long tried = firstTry.get(event.destPort + "/" + event.ack);
+                if (tried != null) since = event.time - tried;
+            }
+            else {
+                what = "other";
+            }
+            if (events != null) {
+                String line = String.format("%8d  %-14s %-10s %-7s %10d %10d %11s",
+                        event.time - first, event.srcPort + " > " + event.destPort, what,
+                        flag == null ? String.valueOf(event.flag) : flag.name(), event.seq,
+                        event.ack, since < 0 ? "-" : String.valueOf(since));
+                if (what.equals("other")) line += "  " + event.comment;
+                events.add(line + String.format("%n"));
+            }
+            if (flag == null) return;
+            switch (flag) {
+                case SYN:
+                    if (syn < 0) syn = event.time;
+                    break;
+                case SYN_ACK:
+                    if (synAck < 0) synAck = event.time;
+                    break;
+                case ACK:
+                    acks++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /** Millis from SYN to SYN_ACK, -1 if not in the trace. */
+        long handshake() {
+            return syn >= 0 && synAck >= 0 ? synAck - syn : -1;
+        }
+    }
+}
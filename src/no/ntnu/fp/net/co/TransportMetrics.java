@@ -0,0 +1,129 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.fp.net.cl.FailureController;
+
+/**
+ * Totals for all connections in this JVM: counters, latency histograms and
+ * gauges. Connections count through their {@link ConnectionMetrics}; read
+ * everything at once with {@link #snapshot()}.<br>
+ * <br>
+ * Besides the gauges registered with {@link #registerGauge(String, Gauge)},
+ * a snapshot has the number of open connections, the packets waiting in
+ * their queues, and the counters {@link FailureController} keeps for the
+ * simulated network.
+ */
+public final class TransportMetrics {
+
+    static final StripedCounter packetsSent = new StripedCounter();
+    static final StripedCounter retransmits = new StripedCounter();
+    static final StripedCounter packetsReceived = new StripedCounter();
+    static final StripedCounter duplicatePackets = new StripedCounter();
+    static final StripedCounter acksSent = new StripedCounter();
+    static final StripedCounter acksReceived = new StripedCounter();
+    static final StripedCounter duplicateAcks = new StripedCounter();
+    static final StripedCounter checksumFailures = new StripedCounter();
+
+    static final LatencyHistogram sendToAck = new LatencyHistogram();
+    static final LatencyHistogram handshake = new LatencyHistogram();
+    static final LatencyHistogram close = new LatencyHistogram();
+
+    private static final Set<ConnectionMetrics> open =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    private TransportMetrics() {
+    }
+
+    /**
+     * Add a value to read in every snapshot. A gauge with the same name is
+     * replaced.
+     */
+    public static void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /** A connection is established. */
+    static void opened(ConnectionMetrics connection, long handshakeNanos) {
+        open.add(connection);
+        handshake.recordNanos(handshakeNanos);
+        TransportStats.opened(connection);
+    }
+
+    /** A connection is closed. */
+    static void closed(ConnectionMetrics connection, long closeNanos) {
+        open.remove(connection);
+        close.recordNanos(closeNanos);
+        TransportStats.closed(connection);
+    }
+
+    /** The connections that are established and not yet closed. */
+    public static List<ConnectionMetrics> getOpenConnections() {
+        return new ArrayList<ConnectionMetrics>(open);
+    }
+
+    /** {@link #snapshot()} as a source for {@link PrometheusExporter}. */
+    public static MetricsSource source() {
+        return new MetricsSource() {
+            public void collect(List<MetricsSnapshot> out) {
+                out.add(snapshot());
+            }
+        };
+    }
+
+    /** A snapshot of every open connection, as a source. */
+    public static MetricsSource connectionSource() {
+        return new MetricsSource() {
+            public void collect(List<MetricsSnapshot> out) {
+                for (ConnectionMetrics c : open) {
+                    out.add(c.snapshot());
+                }
+            }
+        };
+    }
+
+    public static MetricsSnapshot snapshot() {
+        MetricsSnapshot s = new MetricsSnapshot("transport");
+        s.put("packets.sent", packetsSent.get());
+        s.put("packets.retransmitted", retransmits.get());
+        s.put("packets.received", packetsReceived.get());
+        s.put("packets.duplicate", duplicatePackets.get());
+        s.put("acks.sent", acksSent.get());
+        s.put("acks.received", acksReceived.get());
+        s.put("acks.duplicate", duplicateAcks.get());
+        s.put("checksum.failures", checksumFailures.get());
+
+        int depth = 0;
+        for (ConnectionMetrics c : open) {
+            depth += c.getQueueDepth();
+        }
+        s.put("connections.open", open.size());
+        s.put("queue.depth", depth);
+        for (Map.Entry<String, Gauge> g : gauges.entrySet()) {
+            s.put(g.getKey(), g.getValue().value());
+        }
+
+        s.put("network.sent", FailureController.packetSentCount);
+        s.put("network.received", FailureController.packetReceivedCount);
+        s.put("network.lost", FailureController.packetLostCount);
+        s.put("network.delayed", FailureController.packetDelayedCount);
+        s.put("network.ghosts", FailureController.packetGhostCount);
+        s.put("network.payloadErrors", FailureController.packetPayloadCount);
+        s.put("network.headerErrors", FailureController.packetHeaderCount);
+
+        s.put("latency.sendToAck", sendToAck);
+        s.put("latency.handshake", handshake);
+        s.put("latency.close", close);
+        return s;
+    }
+}
@@ -0,0 +1,131 @@
+package no.ntnu.fp.net.co;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Makes {@link TransportMetrics} visible over JMX. After {@link #register()}
+ * the platform MBean server has the totals as
+ * <code>no.ntnu.fp.net.co:type=Transport</code>, and every open connection
+ * as <code>no.ntnu.fp.net.co:type=Connection,name="&lt;addresses&gt;"</code>
+ * until it is closed. Connect with JConsole or any JMX client to watch a
+ * running server.
+ */
+public final class TransportStats implements TransportStatsMBean {
+
+    public static final String DOMAIN = "no.ntnu.fp.net.co";
+
+    private static volatile boolean registered = false;
+    private static final ConcurrentHashMap<ConnectionMetrics, ObjectName> connections =
+            new ConcurrentHashMap<ConnectionMetrics, ObjectName>();
+
+    private TransportStats() {
+    }
+
+    /**
+     * Register the transport MBean, and from now on one per connection.
+     * Connections already open are registered too. Calling it again does
+     * nothing.
+     */
+    public static synchronized void register() {
+        if (registered) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new TransportStats(),
+                    new ObjectName(DOMAIN + ":type=Transport"));
+        }
+        catch (JMException e) {
+            System.err.println("TransportStats: Could not register MBean: " + e.getMessage());
+            return;
+        }
+        registered = true;
+        for (ConnectionMetrics c : TransportMetrics.getOpenConnections()) {
+            opened(c);
+        }
+    }
+
+    static void opened(ConnectionMetrics connection) {
+        if (!registered) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName(DOMAIN + ":type=Connection,name="
+                    + ObjectName.quote(connection.getName()));
+            if (connections.putIfAbsent(connection, name) == null && !server.isRegistered(name)) {
+                server.registerMBean(new ConnectionStats(connection), name);
+            }
+        }
+        catch (JMException e) {
+            System.err.println("TransportStats: Could not register connection: " + e.getMessage());
+        }
+    }
+
+    static void closed(ConnectionMetrics connection) {
+        ObjectName name = connections.remove(connection);
+        if (name == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException e) {
+            // Already gone.
+        }
+    }
+
+    public long getPacketsSent() {
+        return TransportMetrics.packetsSent.get();
+    }
+
+    public long getRetransmits() {
+        return TransportMetrics.retransmits.get();
+    }
+
+    public long getPacketsReceived() {
+        return TransportMetrics.packetsReceived.get();
+    }
+
+    public long getAcksSent() {
+        return TransportMetrics.acksSent.get();
+    }
+
+    public long getAcksReceived() {
+        return TransportMetrics.acksReceived.get();
+    }
+
+    public long getDuplicateAcks() {
+        return TransportMetrics.duplicateAcks.get();
+    }
+
+    public long getChecksumFailures() {
+        return TransportMetrics.checksumFailures.get();
+    }
+
+    public int getOpenConnections() {
+        return TransportMetrics.getOpenConnections().size();
+    }
+
+    public long getQueueDepth() {
+        long depth = 0;
+        for (ConnectionMetrics c : TransportMetrics.getOpenConnections()) {
+            depth += c.getQueueDepth();
+        }
+        return depth;
+    }
+
+    public long getSendToAckMean() {
+        return TransportMetrics.sendToAck.snapshot().getMean();
+    }
+
+    public long getSendToAckP99() {
+        return TransportMetrics.sendToAck.snapshot().getPercentile(99);
+    }
+
+    public long getHandshakeMean() {
+        return TransportMetrics.handshake.snapshot().getMean();
+    }
+
+    public long getCloseMean() {
+        return TransportMetrics.close.snapshot().getMean();
+    }
+}
@@ -0,0 +1,34 @@
+package no.ntnu.fp.net.co;
+
+/**
+ * The transport totals as seen in JConsole, see {@link TransportStats}.
+ * Latencies are in microseconds.
+ */
+public interface TransportStatsMBean {
+
+    public long getPacketsSent();
+
+    public long getRetransmits();
+
+    public long getPacketsReceived();
+
+    public long getAcksSent();
+
+    public long getAcksReceived();
+
+    public long getDuplicateAcks();
+
+    public long getChecksumFailures();
+
+    public int getOpenConnections();
+
+    public long getQueueDepth();
+
+    public long getSendToAckMean();
+
+    public long getSendToAckP99();
+
+    public long getHandshakeMean();
+
+    public long getCloseMean();
+}
@@ -0,0 +1,672 @@
+package no.ntnu.fp.net.co;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import no.ntnu.fp.net.admin.Settings;
+import no.ntnu.fp.net.cl.ClException;
+import no.ntnu.fp.net.cl.FailureController;
+import no.ntnu.fp.net.cl.KtnDatagram;
+import no.ntnu.fp.net.cl.KtnDatagram.Flag;
+
+/**
+ * A link over UDP: every datagram is one UDP datagram, sent and received with
+ * a {@link DatagramChannel}. {@link ClSocketLink} opens a TCP connection for
+ * each datagram instead, whose own handshake, retransmits and ordering sit
+ * under the connection layer's.<br>
+ * <br>
+ * A port's channel is bound the first time something is received on it, and
+ * stays bound until {@link #close()}, as ports are reused by later
+ * connections. Sends go out through one unbound channel; the port a datagram
+ * is from is in its header, not the UDP source port. Nobody receiving on a
+ * port can't be detected, so sends never fail with a ConnectException; the
+ * datagram is lost, and retransmitted like any other.<br>
+ * <br>
+ * Datagrams are handled in batches where Java allows it. A receive that
+ * finds its port's inbox empty reads every datagram waiting on the channel
+ * into it before returning one, so the next receives need no call into the
+ * kernel. Sends are queued in pooled buffers and written by whichever thread
+ * holds the send lock, so threads sending at once don't each wait for the
+ * channel. There is no sendmmsg/recvmmsg in Java: it is still one system
+ * call per datagram, but fewer selects, wakeups and lock handoffs. Control
+ * datagrams (acks, SYN, FIN) have a queue of their own that is sent first,
+ * so an ack never waits behind a batch of data.<br>
+ * <br>
+ * Impairments work like {@link FailureController}'s for ClSocket: for each
+ * datagram one kind is picked at random among the enabled ones, and applied
+ * with its probability:
+ * <ul>
+ * <li>loss - the datagram is not sent
+ * <li>delay - it is sent after a random 0 to max millis
+ * <li>duplicate - it is sent twice
+ * <li>corrupt - a payload bit is flipped (a header bit without payload)
+ * <li>corrupt header - a bit in the ports, sequence or ack number is flipped
+ * </ul>
+ * Acks are never impaired, nor anything but data with
+ * {@link #setOnlyData(boolean)}. {@link #fromSettings()} takes the settings
+ * from settings.xml. The checksum is sent as set, so header checksums work.<br>
+ * <br>
+ * Use it for one connection with {@link ConnectionImpl#ConnectionImpl(int, Link)},
+ * or for all with {@link AbstractConnection#setDefaultLink(Link)} or
+ * -Dktn.link=udp.
+ */
+public final class UdpLink implements Link {
+
+    /** Bytes before the payload; see {@link #encode(KtnDatagram, ByteBuffer)}. */
+    static final int HEADER_BYTES = 32;
+
+    /** Largest UDP payload. */
+    private static final int MAX_DATAGRAM = 65507;
+
+    /** Largest KtnDatagram payload that fits. */
+    public static final int MAX_PAYLOAD = MAX_DATAGRAM - HEADER_BYTES;
+
+    /** Socket receive buffer asked for, so bursts wait for the next drain. */
+    private static final int RECEIVE_BUFFER = 1 << 20;
+
+    /** Flag.values() makes a new array each call. */
+    private static final Flag[] FLAGS = Flag.values();
+
+    private static final short MAGIC = 0x4b54;
+    private static final byte VERSION = 1;
+
+    /** Size of pooled send buffers; larger datagrams get their own. */
+    private static final int POOLED_BYTES = 2048;
+
+    /** Batches that may be queued before senders wait for the channel. */
+    private static final int MAX_QUEUED_BATCHES = 4;
+
+    private static final int LOSS = 0, DELAY = 1, DUPLICATE = 2, CORRUPT = 3, HEADER = 4;
+
+    /** Datagrams read or written per wakeup, unless set otherwise. */
+    public static final int DEFAULT_BATCH = 32;
+
+    private final DatagramChannel sendChannel;
+    /**
+     * Encoded datagrams waiting to be sent, and buffers to encode into. As
+     * senders wait when too many are queued, there are about as many
+     * buffers as threads sending at once, plus the queue.
+     */
+    private final ConcurrentLinkedQueue<Outgoing> outgoing = new ConcurrentLinkedQueue<Outgoing>(),
+            spare = new ConcurrentLinkedQueue<Outgoing>();
+    /** Queued control datagrams, sent before any in {@link #outgoing}. */
+    private final ConcurrentLinkedQueue<Outgoing> control = new ConcurrentLinkedQueue<Outgoing>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final ReentrantLock sending = new ReentrantLock();
+    private volatile int sendBatch = DEFAULT_BATCH, receiveBatch = DEFAULT_BATCH;
+    private final ConcurrentMap<Integer, Port> ports = new ConcurrentHashMap<Integer, Port>();
+    private volatile Endpoint lastDestination;
+    private volatile boolean closed = false;
+
+    /** Guards itself and delayTimer. */
+    private final Random random;
+    private final double[] impairments = new double[5];
+    private volatile int maxDelay = 100;
+    private volatile boolean onlyData = false;
+    private Timer delayTimer;
+
+    private final AtomicLong sent = new AtomicLong(), received = new AtomicLong(),
+            lost = new AtomicLong(), delayed = new AtomicLong(),
+            duplicated = new AtomicLong(), corrupted = new AtomicLong(),
+            malformed = new AtomicLong(), sendErrors = new AtomicLong();
+
+    /** A link without impairments. */
+    public UdpLink() throws IOException {
+        this(System.nanoTime());
+    }
+
+    /**
+     * @param seed
+     *            seed for picking impairments.
+     */
+    public UdpLink(long seed) throws IOException {
+        random = new Random(seed);
+        sendChannel = DatagramChannel.open();
+    }
+
+    /**
+     * A link with the impairments of settings.xml in the working directory,
+     * read as ClSocket reads them: none unless errors is true, and onlydata
+     * for {@link #setOnlyData(boolean)}.
+     */
+    public static UdpLink fromSettings() throws IOException {
+        if (Settings.INSTANCE == null) new Settings();
+        UdpLink link = new UdpLink();
+        if (FailureController.isError()) {
+            link.setLoss(FailureController.getLoss_prob())
+                    .setDelay(FailureController.getDelay_prob(), FailureController.getMaxDelay())
+                    .setDuplicate(FailureController.getGhost_prob())
+                    .setCorrupt(FailureController.getPayload_error_prob())
+                    .setCorruptHeader(FailureController.getHeader_error_prob())
+                    .setOnlyData(FailureController.isOnlyDataError());
+        }
+        return link;
+    }
+
+    public Clock getClock() {
+        return SystemClock.INSTANCE;
+    }
+
+    public boolean keepsChecksum() {
+        return true;
+    }
+
+    /** Probability (0 to 1) that a datagram is lost, when loss is picked. */
+    public UdpLink setLoss(double probability) {
+        impairments[LOSS] = probability;
+        return this;
+    }
+
+    /** Probability that a datagram is sent up to maxMillis late. */
+    public UdpLink setDelay(double probability, int maxMillis) {
+        impairments[DELAY] = probability;
+        maxDelay = maxMillis;
+        return this;
+    }
+
+    /** Probability that a datagram is sent twice. */
+    public UdpLink setDuplicate(double probability) {
+        impairments[DUPLICATE] = probability;
+        return this;
+    }
+
+    /** Probability that a payload bit is flipped. */
+    public UdpLink setCorrupt(double probability) {
+        impairments[CORRUPT] = probability;
+        return this;
+    }
+
+    /** Probability that a bit in the header is flipped. */
+    public UdpLink setCorruptHeader(double probability) {
+        impairments[HEADER] = probability;
+        return this;
+    }
+
+    /** Impair only data packets, not SYN, FIN and so on. */
+    public UdpLink setOnlyData(boolean only) {
+        onlyData = only;
+        return this;
+    }
+
+    /**
+     * The datagram is encoded into a pooled buffer and queued. If no other
+     * thread is sending, this one sends what is queued, its own and any
+     * others', {@link #setSendBatch(int)} at a time; else the sending thread
+     * sends it. Errors from the channel are counted, see
+     * {@link #getSendErrors()}, and the datagram is lost like any other.
+     */
+    /**
+     * Max datagrams sent by one thread before it lets another send.
+     */
+    public UdpLink setSendBatch(int datagrams) {
+        if (datagrams < 1) throw new IllegalArgumentException("Batch must be at least 1.");
+        sendBatch = datagrams;
+        return this;
+    }
+
+    /** Max datagrams read from a port's channel in one go. */
+    public UdpLink setReceiveBatch(int datagrams) {
+        if (datagrams < 1) throw new IllegalArgumentException("Batch must be at least 1.");
+        receiveBatch = datagrams;
+        return this;
+    }
+
+    public void send(KtnDatagram packet) throws ClException, IOException {
+        if (closed) throw new IOException("UdpLink is closed.");
+        InetSocketAddress to = destination(packet).getSocketAddress();
+        Outgoing out = spare.poll();
+        if (out == null) out = new Outgoing();
+        ByteBuffer buffer = out.prepare(encodedSize(packet));
+        try {
+            encode(packet, buffer);
+        }
+        catch (IOException e) {
+            spare.offer(out);
+            throw e;
+        }
+        buffer.flip();
+        out.to = to;
+        out.copies = 1;
+        sent.incrementAndGet();
+        if (impaired(packet) && !impair(out)) {
+            spare.offer(out);
+            return;
+        }
+        (packet.getFlag() == Flag.NONE ? outgoing : control).offer(out);
+        if (queued.incrementAndGet() > MAX_QUEUED_BATCHES * sendBatch) {
+            // The sending thread is behind: help it rather than queue more.
+            sending.lock();
+            try {
+                sendQueued();
+            }
+            finally {
+                sending.unlock();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Waits with a {@link Selector}, so a timeout doesn't need another
+     * thread. Datagrams that aren't from a UdpLink are dropped.
+     *
+     * @return the datagram, or null if none arrived in time or the thread
+     *         was interrupted.
+     */
+    public KtnDatagram receive(int port, long timeout) throws IOException {
+        Port p = open(port);
+        try {
+            return receive(p, timeout);
+        }
+        catch (ClosedChannelException e) {
+            if (closed) return null;
+            throw e;
+        }
+        catch (ClosedSelectorException e) {
+            if (closed) return null;
+            throw e;
+        }
+    }
+
+    /**
+     * Takes the next datagram from the port's inbox. When it is empty, all
+     * datagrams waiting on the channel are read into it, at most
+     * {@link #setReceiveBatch(int)}, before waiting for more.
+     */
+    private KtnDatagram receive(Port p, long timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (p) {
+            while (true) {
+                KtnDatagram packet = p.inbox.poll();
+                if (packet != null) return packet;
+                drain(p);
+                if (!p.inbox.isEmpty()) continue;
+                long wait = 0;
+                if (timeout > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) return null;
+                }
+                p.selector.select(wait);
+                p.selector.selectedKeys().clear();
+                if (Thread.currentThread().isInterrupted() || closed) return null;
+            }
+        }
+    }
+
+    /** Read the datagrams waiting on a port into its inbox. */
+    private void drain(Port p) throws IOException {
+        int batch = receiveBatch;
+        for (int i = 0; i < batch; i++) {
+            p.buffer.clear();
+            SocketAddress from = p.channel.receive(p.buffer);
+            if (from == null) return;
+            p.buffer.flip();
+            KtnDatagram packet = decode(p.buffer, p.sourceAddress((InetSocketAddress) from));
+            if (packet == null) {
+                malformed.incrementAndGet();
+                continue;
+            }
+            received.incrementAndGet();
+            p.inbox.add(packet);
+        }
+    }
+
+    /**
+     * Send queued datagrams until the queue is empty, unless another thread
+     * is sending. The lock is let go after each batch, and the queue checked
+     * again after that, so a datagram queued while the sender is finishing is
+     * never left behind.
+     */
+    private void flush() {
+        while ((!control.isEmpty() || !outgoing.isEmpty()) && sending.tryLock()) {
+            try {
+                sendQueued();
+            }
+            finally {
+                sending.unlock();
+            }
+        }
+    }
+
+    /**
+     * Send up to a batch of queued datagrams, control ones first. Call with
+     * the send lock held.
+     */
+    private void sendQueued() {
+        int batch = sendBatch;
+        for (int i = 0; i < batch; i++) {
+            Outgoing out = control.poll();
+            if (out == null) out = outgoing.poll();
+            if (out == null) break;
+            queued.decrementAndGet();
+            write(out);
+            spare.offer(out);
+        }
+    }
+
+    private void write(Outgoing out) {
+        try {
+            for (int i = 0; i < out.copies; i++) {
+                out.current.rewind();
+                sendChannel.send(out.current, out.to);
+            }
+        }
+        catch (IOException e) {
+            sendErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Apply a picked impairment to a datagram about to be queued.
+     *
+     * @return false if it is not to be sent now: lost, or sent later.
+     */
+    private boolean impair(Outgoing out) {
+        synchronized (random) {
+            ByteBuffer buffer = out.current;
+            switch (pickImpairment()) {
+                case LOSS:
+                    lost.incrementAndGet();
+                    return false;
+                case DELAY:
+                    delayed.incrementAndGet();
+                    sendLater(buffer, out.to, random.nextInt(maxDelay + 1));
+                    return false;
+                case DUPLICATE:
+                    duplicated.incrementAndGet();
+                    out.copies = 2;
+                    break;
+                case CORRUPT:
+                    corrupted.incrementAndGet();
+                    int length = buffer.limit() - HEADER_BYTES;
+                    int index = length > 0 ? HEADER_BYTES + random.nextInt(length)
+                            : 4 + random.nextInt(16);
+                    flipBit(buffer, index, random.nextInt(8));
+                    break;
+                case HEADER:
+                    corrupted.incrementAndGet();
+                    flipBit(buffer, 4 + random.nextInt(16), random.nextInt(8));
+                    break;
+                default:
+                    break;
+            }
+            return true;
+        }
+    }
+
+    /** Close all channels. Receives in progress return null. */
+    public void close() {
+        closed = true;
+        synchronized (random) {
+            if (delayTimer != null) delayTimer.cancel();
+        }
+        for (Port p : ports.values()) {
+            p.close();
+        }
+        ports.clear();
+        try {
+            sendChannel.close();
+        }
+        catch (IOException e) {
+            System.err.println("UdpLink: Could not close channel: " + e.getMessage());
+        }
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    public long getLost() {
+        return lost.get();
+    }
+
+    public long getDelayed() {
+        return delayed.get();
+    }
+
+    public long getDuplicated() {
+        return duplicated.get();
+    }
+
+    public long getCorrupted() {
+        return corrupted.get();
+    }
+
+    /** Datagrams lost because the channel failed to send them. */
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    /** Datagrams received that were not from a UdpLink. */
+    public long getMalformed() {
+        return malformed.get();
+    }
+
+    public String toString() {
+        return "UdpLink(sent=" + sent + ", received=" + received + ", lost=" + lost
+                + ", delayed=" + delayed + ", duplicated=" + duplicated + ", corrupted="
+                + corrupted + ", malformed=" + malformed + ", sendErrors=" + sendErrors + ")";
+    }
+
+    /**
+     * The layout of a datagram: magic (2 bytes), version (1), flag ordinal or
+     * -1 (1), source port, destination port, sequence number, ack number (4
+     * each), checksum (8), payload length or -1 (4), and the payload.
+     * Addresses are not sent: the source address is the UDP sender's, and
+     * the destination address is this host's.
+     */
+    static void encode(KtnDatagram packet, ByteBuffer buffer) throws IOException {
+        byte[] payload = packet.getPayloadAsBytes();
+        if (payload != null && payload.length > MAX_PAYLOAD) {
+            throw new IOException("Payload too large for a UDP datagram: " + payload.length
+                    + " bytes, at most " + MAX_PAYLOAD);
+        }
+        Flag flag = packet.getFlag();
+        buffer.putShort(MAGIC);
+        buffer.put(VERSION);
+        buffer.put((byte) (flag == null ? -1 : flag.ordinal()));
+        buffer.putInt(packet.getSrc_port());
+        buffer.putInt(packet.getDest_port());
+        buffer.putInt(packet.getSeq_nr());
+        buffer.putInt(packet.getAck());
+        buffer.putLong(packet.getChecksum());
+        if (payload == null) {
+            buffer.putInt(-1);
+        }
+        else {
+            buffer.putInt(payload.length);
+            buffer.put(payload);
+        }
+    }
+
+    /** Bytes {@link #encode(KtnDatagram, ByteBuffer)} writes. */
+    static int encodedSize(KtnDatagram packet) {
+        byte[] payload = packet.getPayloadAsBytes();
+        return HEADER_BYTES + (payload == null ? 0 : Math.min(payload.length, MAX_PAYLOAD));
+    }
+
+    /** The datagram in the buffer, or null if it isn't one. */
+    static KtnDatagram decode(ByteBuffer buffer, String srcAddress) {
+        if (buffer.remaining() < HEADER_BYTES) return null;
+        if (buffer.getShort() != MAGIC || buffer.get() != VERSION) return null;
+        int flag = buffer.get();
+        if (flag < -1 || flag >= FLAGS.length) return null;
+        KtnDatagram packet = new KtnDatagram();
+        packet.setSrc_addr(srcAddress);
+        packet.setDest_addr(Endpoint.localAddress());
+        if (flag >= 0) packet.setFlag(FLAGS[flag]);
+        packet.setSrc_port(buffer.getInt());
+        packet.setDest_port(buffer.getInt());
+        // The setters turn negative numbers positive; -1 is none.
+        int seq = buffer.getInt();
+        if (seq >= 0) packet.setSeq_nr(seq);
+        int ack = buffer.getInt();
+        if (ack >= 0) packet.setAck(ack);
+        packet.setChecksum(buffer.getLong());
+        int length = buffer.getInt();
+        if (length != buffer.remaining() && !(length == -1 && buffer.remaining() == 0)) {
+            return null;
+        }
+        if (length >= 0) {
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            packet.setPayloadAsBytes(payload);
+        }
+        return packet;
+    }
+
+    private Endpoint destination(KtnDatagram packet) throws IOException {
+        Endpoint last = lastDestination;
+        if (last != null && last.getPort() == packet.getDest_port()
+                && last.getAddress().equals(packet.getDest_addr())) {
+            return last;
+        }
+        Endpoint destination = Endpoint.of(packet.getDest_addr(), packet.getDest_port());
+        lastDestination = destination;
+        return destination;
+    }
+
+    private boolean impaired(KtnDatagram packet) {
+        Flag flag = packet.getFlag();
+        if (flag == Flag.ACK) return false;
+        return !onlyData || flag == Flag.NONE;
+    }
+
+    /** An enabled impairment picked at random if it hits, else -1. */
+    private int pickImpairment() {
+        int enabled = 0;
+        for (double p : impairments) {
+            if (p > 0) enabled++;
+        }
+        if (enabled == 0) return -1;
+        int pick = random.nextInt(enabled);
+        for (int i = 0; i < impairments.length; i++) {
+            if (impairments[i] > 0 && pick-- == 0) {
+                return random.nextDouble() < impairments[i] ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void flipBit(ByteBuffer buffer, int index, int bit) {
+        buffer.put(index, (byte) (buffer.get(index) ^ (1 << bit)));
+    }
+
+    /** Called with the random lock held. */
+    private void sendLater(ByteBuffer datagram, final InetSocketAddress to, long delay) {
+        final ByteBuffer copy = ByteBuffer.allocate(datagram.remaining());
+        copy.put(datagram);
+        copy.flip();
+        if (delayTimer == null) delayTimer = new Timer("UdpLink delay", true);
+        delayTimer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    sendChannel.send(copy, to);
+                }
+                catch (IOException e) {
+                    // Lost, as it could have been anyway.
+                }
+            }
+        }, delay);
+    }
+
+    private Port open(int port) throws IOException {
+        if (closed) throw new IOException("UdpLink is closed.");
+        Port p = ports.get(port);
+        if (p == null) {
+            synchronized (ports) {
+                p = ports.get(port);
+                if (p == null) {
+                    p = new Port(port);
+                    ports.put(port, p);
+                }
+            }
+        }
+        return p;
+    }
+
+    /** An encoded datagram waiting to be sent. Pooled, see spare. */
+    private static final class Outgoing {
+        final ByteBuffer pooled = ByteBuffer.allocateDirect(POOLED_BYTES);
+        /** The pooled buffer, or one for a datagram too large for it. */
+        ByteBuffer current;
+        InetSocketAddress to;
+        int copies;
+
+        /** A cleared buffer for a datagram of the given size. */
+        ByteBuffer prepare(int size) {
+            current = size <= POOLED_BYTES ? pooled : ByteBuffer.allocate(size);
+            current.clear();
+            return current;
+        }
+    }
+
+    /** A bound channel, and what receiving on it needs. */
+    private static final class Port {
+        final DatagramChannel channel;
+        final Selector selector;
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        /** Datagrams read but not yet received; guarded by the Port. */
+        final ArrayDeque<KtnDatagram> inbox = new ArrayDeque<KtnDatagram>();
+        private InetAddress lastSource;
+        private String lastSourceAddress;
+
+        Port(int port) throws IOException {
+            channel = DatagramChannel.open();
+            try {
+                channel.socket().setReceiveBufferSize(RECEIVE_BUFFER);
+                channel.socket().bind(new InetSocketAddress(port));
+                channel.configureBlocking(false);
+                selector = Selector.open();
+                channel.register(selector, SelectionKey.OP_READ);
+            }
+            catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /** The sender's address as a string, made once per sender. */
+        String sourceAddress(InetSocketAddress from) {
+            InetAddress address = from.getAddress();
+            if (!address.equals(lastSource)) {
+                lastSource = address;
+                lastSourceAddress = address.getHostAddress();
+            }
+            return lastSourceAddress;
+        }
+
+        void close() {
+            try {
+                selector.wakeup();
+                selector.close();
+                channel.close();
+            }
+            catch (IOException e) {
+                System.err.println("UdpLink: Could not close channel: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package no.ntnu.fp.net.co;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated time for {@link SimulatedLink}. Time stands still while the
+ * threads using the clock are busy, and jumps straight to the next wakeup
+ * (a sleep, timeout, scheduled task or packet delivery) once they have all
+ * gone quiet. A one second sleep therefore takes about a millisecond, and
+ * the order things happen in depends on the simulated times, not on how
+ * long each step happens to take.<br>
+ * <br>
+ * "Quiet" means nothing has used the clock for {@link #getQuietPeriod()}
+ * nanos of real time, and none of the threads that have used it, or were
+ * announced with {@link #attend(Thread)}, is running or about to start;
+ * they are all waiting, sleeping or blocked. A thread that keeps running
+ * for more than {@link #MAX_STALL} real nanos without touching the clock is
+ * taken to be stuck, and time moves on without it. Scheduled tasks run on
+ * the clock's own thread, in time order and first scheduled first.
+ */
+public class VirtualClock implements Clock {
+
+    /** Default real nanos with no activity before time jumps. */
+    public static final long DEFAULT_QUIET_PERIOD = 1000000;
+
+    /** Real nanos time waits for a running thread. */
+    public static final long MAX_STALL = 2000000000L;
+
+    private long now;
+    private long sequence = 0;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+    private long lastActivity = System.nanoTime();
+    private volatile long quietPeriod = DEFAULT_QUIET_PERIOD;
+    private volatile boolean stopped = false;
+    private final Thread driver;
+    /** Threads that have used the clock; time waits for them. */
+    private final Set<Thread> participants = new HashSet<Thread>();
+
+    /** A clock starting at time 0. */
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long startMillis) {
+        now = startMillis;
+        driver = new Thread("VirtualClock") {
+            public void run() {
+                drive();
+            }
+        };
+        driver.setDaemon(true);
+        driver.start();
+    }
+
+    public synchronized long currentTimeMillis() {
+        participate();
+        return now;
+    }
+
+    public long nanoTime() {
+        return currentTimeMillis() * 1000000L;
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        synchronized (this) {
+            long until = now + Math.max(millis, 0);
+            while (now < until) {
+                await(until);
+            }
+            touch();
+        }
+    }
+
+    public void waitOn(Object monitor, long millis) throws InterruptedException {
+        if (millis <= 0) {
+            monitor.wait();
+            return;
+        }
+        // The monitor is not ours to wait on for long, so wait a real
+        // moment and let the caller check again. The entry tells the
+        // driver there is a timeout to jump to.
+        Entry deadline;
+        synchronized (this) {
+            participate();
+            deadline = add(now + millis, null, 0);
+        }
+        try {
+            monitor.wait(1);
+        }
+        finally {
+            synchronized (this) {
+                queue.remove(deadline);
+            }
+        }
+    }
+
+    public Task schedule(Runnable task, long delay, long period) {
+        synchronized (this) {
+            touch();
+            return add(now + Math.max(delay, 0), task, period);
+        }
+    }
+
+    /** Move time forward by hand, running what becomes due. */
+    public void advance(long millis) {
+        synchronized (this) {
+            now += millis;
+            notifyAll();
+        }
+        runDue();
+    }
+
+    /**
+     * Real nanos without activity before time jumps, so every jump costs at
+     * least this much real time. A thread that has just been notified looks
+     * like it is waiting until it gets to run, and only this pause covers
+     * it; with a much shorter one time may jump past such a thread, and a
+     * seed no longer replays the same.
+     */
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    public void setQuietPeriod(long nanos) {
+        quietPeriod = nanos;
+    }
+
+    public synchronized void attend(Thread thread) {
+        if (thread != driver) participants.add(thread);
+    }
+
+    /** Stop the clock's thread. Scheduled tasks will not run. */
+    public void stop() {
+        stopped = true;
+        LockSupport.unpark(driver);
+    }
+
+    /**
+     * Wait on this clock until the deadline or a notify, whichever comes
+     * first. The caller holds the clock's monitor; {@link SimulatedLink}
+     * shares it.
+     *
+     * @param deadline
+     *            time to wait until, Long.MAX_VALUE for no limit.
+     */
+    void await(long deadline) throws InterruptedException {
+        participate();
+        if (deadline == Long.MAX_VALUE) {
+            wait();
+            return;
+        }
+        Entry entry = add(deadline, null, 0);
+        try {
+            if (now < deadline) wait();
+        }
+        finally {
+            queue.remove(entry);
+        }
+    }
+
+    /** Something happened; don't jump yet. Caller holds the monitor. */
+    void touch() {
+        lastActivity = System.nanoTime();
+        participate();
+    }
+
+    /** Make time wait for the calling thread. Caller holds the monitor. */
+    private void participate() {
+        Thread t = Thread.currentThread();
+        if (t != driver) participants.add(t);
+    }
+
+    /** Whether a thread that uses the clock is running. Caller holds the monitor. */
+    private boolean busy() {
+        for (Iterator<Thread> i = participants.iterator(); i.hasNext();) {
+            Thread.State state = i.next().getState();
+            if (state == Thread.State.TERMINATED) i.remove();
+            else if (state == Thread.State.RUNNABLE || state == Thread.State.NEW) return true;
+        }
+        return false;
+    }
+
+    private Entry add(long time, Runnable task, long period) {
+        Entry e = new Entry(time, sequence++, task, period);
+        queue.add(e);
+        return e;
+    }
+
+    private void drive() {
+        while (!stopped) {
+            LockSupport.parkNanos(quietPeriod);
+            runDue();
+            synchronized (this) {
+                long quiet = System.nanoTime() - lastActivity;
+                if (queue.isEmpty() || quiet < quietPeriod) continue;
+                if (quiet < MAX_STALL && busy()) continue;
+                long next = queue.peek().time;
+                if (next > now) {
+                    now = next;
+                    touch();
+                    notifyAll();
+                }
+            }
+            runDue();
+        }
+    }
+
+    /** Run the tasks whose time has come, on the calling thread. */
+    private void runDue() {
+        List<Entry> due = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Iterator<Entry> i = queue.iterator(); i.hasNext();) {
+                Entry e = i.next();
+                if (e.task != null && e.time <= now) {
+                    i.remove();
+                    due.add(e);
+                }
+            }
+        }
+        if (due.isEmpty()) return;
+        Collections.sort(due);
+        for (Entry e : due) {
+            if (e.cancelled) continue;
+            e.task.run();
+            synchronized (this) {
+                touch();
+                if (e.period > 0 && !e.cancelled) {
+                    e.time += e.period;
+                    e.order = sequence++;
+                    queue.add(e);
+                }
+            }
+        }
+    }
+
+    private class Entry implements Comparable<Entry>, Task {
+        long time;
+        long order;
+        final Runnable task;
+        final long period;
+        volatile boolean cancelled = false;
+
+        Entry(long time, long order, Runnable task, long period) {
+            this.time = time;
+            this.order = order;
+            this.task = task;
+            this.period = period;
+        }
+
+        public int compareTo(Entry other) {
+            if (time != other.time) return time < other.time ? -1 : 1;
+            return order < other.order ? -1 : order == other.order ? 0 : 1;
+        }
+
+        public void cancel() {
+            cancelled = true;
+            synchronized (VirtualClock.this) {
+                queue.remove(this);
+            }
+        }
+    }
+}
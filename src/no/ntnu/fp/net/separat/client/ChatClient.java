@@ -4,6 +4,7 @@
  */
 package no.ntnu.fp.net.separat.client;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
@@ -16,7 +17,9 @@ import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.admin.Settings;
 import no.ntnu.fp.net.co.Connection;
 import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.PacketLog;
 import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.separat.common.ChatProtocol;
 
 /**
  * @author Geir Vevle
@@ -70,13 +73,38 @@ public class ChatClient {
                             .receive());
                 } catch (ConnectException e) {
                     e.printStackTrace();
+                } catch (EOFException e) {
+                    e.printStackTrace();
                 } catch (IOException e) {
                     e.printStackTrace();
+                    ChatClient.this.resume();
                 }
             }
         }
     }
 
+    /**
+     * Continue the session after the network failed, without connecting and
+     * logging in again. A message that failed to send is sent again.
+     * 
+     * @return true if the session was resumed.
+     * @see ConnectionImpl#resume()
+     */
+    private boolean resume() {
+        if (!(connection instanceof ConnectionImpl)) {
+            return false;
+        }
+        try {
+            ((ConnectionImpl) connection).resume();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (IllegalStateException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
     public void sendMessage(String message) {
         send(this.username + ": " + message);
     }
@@ -107,7 +135,31 @@ public class ChatClient {
             String[] list = message.substring(1, message.length() - 1).split(
                     ", ");
             gui.updateUserList(list);
+        } else if (message.startsWith(ChatProtocol.JOINED)) {
+            gui.userJoined(message.substring(ChatProtocol.JOINED.length()));
+        } else if (message.startsWith(ChatProtocol.LEFT)) {
+            gui.userLeft(message.substring(ChatProtocol.LEFT.length()));
+        } else if (message.startsWith(ChatProtocol.RENAMED)) {
+            String[] names = message.substring(ChatProtocol.RENAMED.length()).split(":", 2);
+            if (names.length == 2) {
+                if (names[0].equals(username)) {
+                    username = names[1];
+                }
+                gui.userRenamed(names[0], names[1]);
+            }
+        } else if (message.startsWith(ChatProtocol.HISTORY_BATCH)) {
+            // Catch-up from the room's history, one message per line
+            String[] lines = message.substring(ChatProtocol.HISTORY_BATCH.length()).split("\n");
+            for (int i = 0; i < lines.length; i++) {
+                showMessage(lines[i]);
+            }
         } else if (!message.substring(0, 1).equals("/")) {
+            showMessage(message);
+        }
+    }
+
+    private void showMessage(String message) {
+        if (message.indexOf(":") >= 0) {
             gui.addMessage(message.substring(message.indexOf(":")), message
                     .substring(0, message.indexOf(":")));
         }
@@ -122,6 +174,8 @@ public class ChatClient {
         } catch (IOException e) {
             // TODO Auto-generated catch block
             e.printStackTrace();
+            // The message is sent again if the session is resumed.
+            resume();
         }
     }
 
@@ -146,6 +200,7 @@ public class ChatClient {
         String address;
         int port;
         Log.setLogName("Klienten");
+        PacketLog.configure("Klienten");
         Settings settings = new Settings();
         address = settings.getServerAddress();
         port = settings.getServerPort();
@@ -15,6 +15,7 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.util.Arrays;
 import java.util.Vector;
 
 import javax.swing.AbstractAction;
@@ -43,6 +44,8 @@ public class Gui extends JFrame {
 
     private ChatClient target;
 
+    private Vector<String> users = new Vector<String>();
+
     public Gui(String title, ChatClient target) {
         super(title);
         this.setSize(500, 400);
@@ -95,6 +98,23 @@ public class Gui extends JFrame {
             }
         });
         menu.add(item);
+        MenuItem roomItem = new MenuItem("Join room");
+        roomItem.addActionListener(new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                String room = JOptionPane.showInputDialog(Gui.this,
+                        "Enter room (empty to leave):", "Join room",
+                        JOptionPane.PLAIN_MESSAGE);
+                if (room == null) {
+                    return;
+                }
+                if (room.trim().length() == 0) {
+                    Gui.this.target.send("/leave:");
+                } else {
+                    Gui.this.target.send("/join: " + room);
+                }
+            }
+        });
+        menu.add(roomItem);
         menubar.add(menu);
         this.setMenuBar(menubar);
     }
@@ -105,7 +125,52 @@ public class Gui extends JFrame {
      * @param liste
      */
     public void updateUserList(String[] liste) {
-        loggedOn.setListData(liste);
+        users = new Vector<String>(Arrays.asList(liste));
+        showUsers();
+    }
+
+    /**
+     * Legger til en bruker som har logget p, uten  sende hele listen.
+     * 
+     * @param name
+     */
+    public void userJoined(String name) {
+        if (!users.contains(name)) {
+            users.add(name);
+            showUsers();
+        }
+    }
+
+    /**
+     * Fjerner en bruker som har logget av.
+     * 
+     * @param name
+     */
+    public void userLeft(String name) {
+        if (users.remove(name)) {
+            showUsers();
+        }
+    }
+
+    /**
+     * Bytter navn p en bruker i listen.
+     * 
+     * @param oldName
+     * @param newName
+     */
+    public void userRenamed(String oldName, String newName) {
+        int index = users.indexOf(oldName);
+        if (index >= 0) {
+            users.set(index, newName);
+        } else if (!users.contains(newName)) {
+            users.add(newName);
+        }
+        showUsers();
+    }
+
+    /** Viser brukerlisten, som en kopi slik at listen kan endres etterp. */
+    private void showUsers() {
+        loggedOn.setListData(users.toArray());
     }
 
     /**
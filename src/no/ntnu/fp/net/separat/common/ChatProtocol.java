@@ -0,0 +1,21 @@
+package no.ntnu.fp.net.separat.common;
+
+/**
+ * The messages of the chat protocol that both server and client know,
+ * besides plain chat lines. They all start with '/', which older clients
+ * ignore.
+ */
+public final class ChatProtocol {
+
+    /** A user logged on: <code>/joined:name</code>. */
+    public static final String JOINED = "/joined:";
+    /** A user logged off: <code>/left:name</code>. */
+    public static final String LEFT = "/left:";
+    /** A user changed name: <code>/renamed:old:new</code>. */
+    public static final String RENAMED = "/renamed:";
+    /** Prefix of a catch-up batch sent to a client, one message per line. */
+    public static final String HISTORY_BATCH = "/history:";
+
+    private ChatProtocol() {
+    }
+}
@@ -4,24 +4,35 @@
  */
 package no.ntnu.fp.net.separat.server;
 
+import java.awt.GraphicsEnvironment;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 import no.ntnu.fp.net.admin.Log;
 import no.ntnu.fp.net.admin.Settings;
 import no.ntnu.fp.net.co.Connection;
 import no.ntnu.fp.net.co.ConnectionImpl;
+import no.ntnu.fp.net.co.DeadPeerListener;
+import no.ntnu.fp.net.co.PacketLog;
+import no.ntnu.fp.net.co.PrometheusExporter;
 import no.ntnu.fp.net.co.SimpleConnection;
+import no.ntnu.fp.net.co.TransportStats;
 import no.ntnu.fp.net.separat.client.ChatClient;
 
 /**
@@ -29,36 +40,160 @@ import no.ntnu.fp.net.separat.client.ChatClient;
  * 
  * This is a Chat srver made only as a experiment.
  */
-public class ChatServer extends JFrame {
+public class ChatServer {
 
     public static boolean SIMPLE_CONNECTION = false;
 
+    /**
+     * Run without the user list window, e.g. on a machine without a display
+     * or under a load test. Can be set with -Dchatserver.headless=true, and
+     * is implied when Java runs headless.
+     */
+    public static boolean HEADLESS = false;
+
+    /** Max number of messages queued for one user before the policy kicks in. */
+    public static int OUTBOX_CAPACITY = 128;
+
+    /** What to do with users that can not keep up with the broadcasts. */
+    public static SlowConsumerPolicy SLOW_CONSUMER_POLICY = SlowConsumerPolicy.COALESCE;
+
+    /**
+     * Milliseconds without hearing from a client before it is probed, 0 for
+     * no keep-alive. Can be set with -Dchatserver.keepalive=millis.
+     */
+    public static long KEEPALIVE_IDLE = 15000;
+
+    /**
+     * Milliseconds without hearing from a client before it is taken to be
+     * gone and evicted. Can be set with -Dchatserver.deadpeer=millis.
+     */
+    public static long DEAD_PEER_TIMEOUT = 60000;
+
+    /** Milliseconds between full user list snapshots, see {@link Presence}. */
+    public static long PRESENCE_SNAPSHOT_INTERVAL = 30000;
+
+    /** The room every user starts in. */
+    public static String DEFAULT_ROOM = "lobby";
+
+    /** Messages per room kept in memory, see {@link MessageHistory}. */
+    public static int HISTORY_SIZE = 200;
+
+    /** Messages a user is sent from a room's history when joining it. */
+    public static int HISTORY_CATCH_UP = 50;
+
+    /** Max messages per catch-up message. */
+    public static int HISTORY_BATCH = 10;
+
+    /** Max messages a user is sent for one /history command. */
+    public static int HISTORY_MAX = 1000;
+
+    /** Directory for history segment files, null to keep history in memory. */
+    public static String HISTORY_DIRECTORY = "History";
+
+    /**
+     * Directory for the message journal that restores history after a
+     * restart, null to run without. Can be set with -Dchatserver.journal=dir.
+     */
+    public static String JOURNAL_DIRECTORY = null;
+
+    /** Size in bytes of each journal segment file. */
+    public static int JOURNAL_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /** Number of journal segment files kept. */
+    public static int JOURNAL_SEGMENTS = 8;
+
+    /** Milliseconds between each time the journal is forced to disk. */
+    public static long JOURNAL_SYNC_INTERVAL = 200;
+
+    /**
+     * Port for the Prometheus metrics endpoint (/metrics), -1 for none. Can
+     * be set with -Dchatserver.metrics.port=port. The statistics are always
+     * available over JMX.
+     */
+    public static int METRICS_PORT = -1;
+
+    /**
+     * Milliseconds a shutdown may take, see {@link #shutdown(long)}. Can be
+     * set with -Dchatserver.shutdown=millis.
+     */
+    public static long SHUTDOWN_TIMEOUT = 10000;
+
+    /** Connections closed at once in a shutdown. */
+    public static int SHUTDOWN_THREADS = 32;
+
     private Connection server;
 
     private String addressServer = "localhost";
 
-    private ArrayList users;
+    private UserRegistry<User> users;
+
+    private RoomIndex<User> rooms;
+
+    private MessageHistory history;
+
+    private MessageJournal journal;
+
+    private Timer presenceTimer;
+
+    private PrometheusExporter exporter;
 
     private int listenPort = 4444;
 
-    private boolean run = true;
+    private volatile boolean run = true;
 
     private InetAddress localAddress;
 
     private JList userlist = new JList();
 
+    /** The window showing the user list, null when headless. */
+    private JFrame frame;
+
     private static boolean debug = true;
 
     //Lagrer info om hver og en bruker
     private class User {
-        public String name;
+        public volatile String name;
         private RecieveThread recieveThread;
+        private Outbox outbox;
         public Connection conn;
 
         public User(String name, Connection conn) {
             this.name = name;
             this.conn = conn;
+            outbox = new Outbox(conn, OUTBOX_CAPACITY, SLOW_CONSUMER_POLICY,
+                    new Outbox.Listener() {
+                        public void outboxFailed(Outbox outbox, String reason) {
+                            DBG("User.send(): Giving up on " + User.this.name + ": " + reason);
+                            // May be called from a broadcast, don't block it
+                            // with the close handshake.
+                            new Thread() {
+                                public void run() {
+                                    disconnect();
+                                }
+                            }.start();
+                        }
+                    }, name);
             recieveThread = new RecieveThread();
+            // A shutdown closes the connection; don't let a receive that
+            // never returns keep the JVM up.
+            recieveThread.setDaemon(true);
+            if (conn instanceof ConnectionImpl && KEEPALIVE_IDLE > 0) {
+                ConnectionImpl impl = (ConnectionImpl) conn;
+                impl.setDeadPeerListener(new DeadPeerListener() {
+                    public void peerDead(ConnectionImpl connection, long silentMillis) {
+                        DBG("User: " + User.this.name + " not heard from in " + silentMillis
+                                + " ms, evicting.");
+                        // The connection is closed already, so there is no
+                        // close handshake to block the keep-alive timer.
+                        disconnect();
+                    }
+                });
+                impl.setKeepAlive(KEEPALIVE_IDLE, DEAD_PEER_TIMEOUT);
+            }
+        }
+
+        /** Start receiving, once the user is registered. */
+        public void start() {
             recieveThread.start();
         }
 
@@ -75,19 +210,7 @@ public class ChatServer extends JFrame {
                     }
 		    catch (EOFException e) {
 		      DBG("User.run(): Disconnect was requested.");
-		      run = false;
-		      try { conn.close(); }
-		      catch (IOException ioe) {
-			System.err.println("Chat server: IOException while" +
-					   "closing connection: " +
-					   ioe.getMessage());
-		      }
-		      if (!ChatServer.this.users.remove(User.this))
-			DBG("User.run(): Unable to remove 'this' from list " +
-			    "of users - expect errors!");
-		      ChatServer.this.broadcast("***: " + User.this.name + " disconnected.");
-              ChatServer.this.
-			broadcast(ChatServer.this.getUsers().toString());
+		      disconnect();
 		    } catch (IOException e) {
 		      DBG("User.run(): Error: " + e.getMessage());
                     }
@@ -118,49 +241,172 @@ public class ChatServer extends JFrame {
 //                    e.printStackTrace();
 //                }
 		} else if (mess.substring(0, 1).equals("/")) {
-                if (mess.substring(1, 9).equals("newName:")) {
+                // Commands look like "/command: argument"
+                int colon = mess.indexOf(':');
+                String command = colon < 0 ? mess.substring(1) : mess.substring(1, colon);
+                String argument = colon < 0 ? "" : mess.substring(colon + 1).trim();
+                if (command.equals("join")) {
+                    joinRoom(argument);
+                } else if (command.equals("leave")) {
+                    leaveRoom();
+                } else if (command.equals("history")) {
+                    int count = HISTORY_CATCH_UP;
+                    try {
+                        count = Integer.parseInt(argument);
+                    } catch (NumberFormatException e) {
+                        // Use the default.
+                    }
+                    sendHistory(rooms.roomOf(this), Math.min(count, HISTORY_MAX));
+                } else if (command.equals("newName")) {
                     String oldName = name;
-                    name = mess.substring(10, mess.length());
-                    ChatServer.this.broadcast(ChatServer.this.getUsers()
-                            .toString());
+                    String newName = users.rename(this, argument);
+                    if (newName == null) return;
+                    name = newName;
+                    ChatServer.this.refreshUserList();
+                    ChatServer.this.broadcast(Presence.renamed(oldName, name));
                     ChatServer.this.broadcast("**: " + oldName + " changed nick to " + name + ".");
                 }
             } else {
-                ChatServer.this.broadcast(mess);
+                String room = rooms.roomOf(this);
+                if (room == null) {
+                    // Disconnected while this message was being handled.
+                    return;
+                }
+                history.append(room, mess);
+                if (journal != null) {
+                    journal.append(room, mess);
+                }
+                ChatServer.this.broadcastToRoom(room, new OutboundMessage(mess));
+            }
+        }
+
+        /** Queue the last messages of a room, a batch per message. */
+        private void sendHistory(String room, int count) {
+            if (room == null) return;
+            for (String batch : MessageHistory.toBatches(history.recent(room, count), HISTORY_BATCH)) {
+                send(new OutboundMessage(batch));
+            }
+        }
+
+        private void joinRoom(String room) {
+            if (room.length() == 0) {
+                send(new OutboundMessage("**: Usage: /join: <room>"));
+                return;
+            }
+            if (rooms.roomOf(this) == null) {
+                // Disconnected; joining would add the user back.
+                return;
+            }
+            String newRoom = RoomIndex.clean(room);
+            String oldRoom = rooms.join(this, newRoom);
+            if (newRoom.equals(oldRoom)) return;
+            announceMove(oldRoom, newRoom);
+        }
+
+        private void leaveRoom() {
+            String oldRoom = rooms.leave(this);
+            if (oldRoom == null) return;
+            announceMove(oldRoom, rooms.roomOf(this));
+        }
+
+        private void announceMove(String oldRoom, String newRoom) {
+            if (oldRoom != null) {
+                broadcastToRoom(oldRoom, new OutboundMessage("*: " + name + " left room " + oldRoom + "."));
             }
+            broadcastToRoom(newRoom, new OutboundMessage("*: " + name + " joined room " + newRoom + "."));
+            sendHistory(newRoom, HISTORY_CATCH_UP);
         }
 
-        private void send(String mess) {
+        /** Queue a message for this user, never blocks. */
+        private void send(OutboundMessage message) {
+            outbox.offer(message);
+        }
+
+        /**
+         * Send what is in the outbox and close the connection, by the
+         * deadline, see {@link ChatServer#shutdown(long)}. Nobody is told, as
+         * everybody is leaving.
+         */
+        private void shutdown(long deadline) {
+            recieveThread.run = false;
+            outbox.drain(Math.max(deadline - System.currentTimeMillis(), 0));
+            long left = deadline - System.currentTimeMillis();
             try {
-                conn.send(mess);
-            } catch (ConnectException e) {
-	      DBG("User.send(): ConnectException: '" + e.getMessage() +
-		  "' while sending message '" + mess + "'");
-	    } catch (EOFException exp) {
-	      DBG("User.send(): Disconnect requested.");
-	      this.recieveThread.run = false;
+                if (!(conn instanceof ConnectionImpl)) {
+                    conn.close();
+                } else if (left > 0) {
+                    ((ConnectionImpl) conn).close(left);
+                } else {
+                    ((ConnectionImpl) conn).abort();
+                }
             } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                DBG("User.shutdown(): " + name + " not closed cleanly: " + e.getMessage());
+            }
+            rooms.remove(this);
+            users.remove(conn);
+        }
+
+        /** Close at once, without the close handshake. */
+        private void abort() {
+            recieveThread.run = false;
+            outbox.close();
+            if (conn instanceof ConnectionImpl) {
+                ((ConnectionImpl) conn).abort();
             }
+            rooms.remove(this);
+            users.remove(conn);
+        }
+
+        /** Close the connection and tell everybody else the user is gone. */
+        private void disconnect() {
+            recieveThread.run = false;
+            outbox.close();
+            try { conn.close(); }
+            catch (IOException ioe) {
+                System.err.println("Chat server: IOException while" +
+                                   "closing connection: " +
+                                   ioe.getMessage());
+            }
+            rooms.remove(this);
+            if (!ChatServer.this.users.remove(conn)) {
+                DBG("User.disconnect(): " + name + " was already removed.");
+                return;
+            }
+            ChatServer.this.refreshUserList();
+            ChatServer.this.broadcast(Presence.left(User.this.name));
+            ChatServer.this.broadcast("***: " + User.this.name + " disconnected.");
         }
     }
 
-    private synchronized void broadcast(String mess) {
-        for (Iterator iter = users.iterator(); iter.hasNext();) {
-            User element = (User) iter.next();
-            element.send(mess);
+    private void broadcast(String mess) {
+        broadcast(new OutboundMessage(mess));
+    }
+
+    /**
+     * Hand the message to every user's outbox. The message is built once and
+     * shared, and no user's network latency is paid for here.
+     */
+    private void broadcast(OutboundMessage message) {
+        for (User element : users.all()) {
+            element.send(message);
+        }
+    }
+
+    /** Like {@link #broadcast(OutboundMessage)}, but only to one room. */
+    private void broadcastToRoom(String room, OutboundMessage message) {
+        for (User element : rooms.members(room)) {
+            element.send(message);
         }
     }
 
     public ChatServer(int port) {
         listenPort = port;
-        setTitle("Server");
-        setDefaultCloseOperation(EXIT_ON_CLOSE);
-        setSize(300, 300);
-        getContentPane().add(userlist);
-        setVisible(true);
-
+        if (HEADLESS || GraphicsEnvironment.isHeadless()) return;
+        frame = new JFrame("Server");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setSize(300, 300);
+        frame.getContentPane().add(userlist);
+        frame.setVisible(true);
     }
 
     public void startServer() {
@@ -169,7 +415,23 @@ public class ChatServer extends JFrame {
         } catch (UnknownHostException e1) {
             e1.printStackTrace();
         }
-        users = new ArrayList();
+        users = new UserRegistry<User>();
+        rooms = new RoomIndex<User>(DEFAULT_ROOM);
+        history = new MessageHistory(HISTORY_DIRECTORY == null ? null : new File(HISTORY_DIRECTORY),
+                HISTORY_SIZE);
+        if (JOURNAL_DIRECTORY != null) {
+            openJournal();
+        }
+        startMonitoring();
+
+        // Deltas keep the clients' user lists current, the snapshots repair
+        // whatever a dropped message may have broken.
+        presenceTimer = new Timer("PresenceSnapshot", true);
+        presenceTimer.schedule(new TimerTask() {
+            public void run() {
+                broadcast(Presence.snapshot(users.names()));
+            }
+        }, PRESENCE_SNAPSHOT_INTERVAL, PRESENCE_SNAPSHOT_INTERVAL);
 
         if (SIMPLE_CONNECTION)
             server = new SimpleConnection(listenPort);
@@ -183,61 +445,236 @@ public class ChatServer extends JFrame {
             private String message = "";
 
             public void run() {
-                while (true) {
+                while (run) {
                     try {
                         DBG("Server lytter p:" + listenPort);
                         newConn = server.accept();
+                        if (!run) {
+                            // Accepted while shutting down.
+                            newConn.close();
+                            break;
+                        }
                         message = newConn.receive();
 
                         if (message.substring(0, 6).equals("Hello:")) {
                             User newUser;
                             DBG("Fikk inn connection fra: "
                                     + message.substring(6, message.length()));
-                            users.add(newUser = new User(message.substring(6,
-                                    message.length()), newConn));
-                            broadcast("*: " + message.substring(6, message.length()) + " joined.");
-                            broadcast(getUsers().toString());
+                            String requested = message.substring(6, message.length());
+                            newUser = new User(requested, newConn);
+                            newUser.name = users.add(requested, newConn, newUser);
+                            rooms.join(newUser, rooms.getDefaultRoom());
+                            newUser.start();
+                            if (!newUser.name.equals(requested)) {
+                                // Taken or unsafe; tell the client which name
+                                // it got, before the list that holds it.
+                                newUser.send(Presence.renamed(requested, newUser.name));
+                            }
+                            // The new user gets the full list, everybody
+                            // else just the delta.
+                            refreshUserList();
+                            newUser.send(Presence.snapshot(users.names()));
+                            broadcast(Presence.joined(newUser.name));
+                            broadcast("*: " + newUser.name + " joined.");
+                            newUser.sendHistory(rooms.getDefaultRoom(), HISTORY_CATCH_UP);
                         }
                     } catch (SocketTimeoutException e) {
                     	DBG("startServer(): Noe gikk galt, forsk igjen.");
                     	e.printStackTrace();
                     } catch (IOException e) {
+                        if (!run) break;
                     	DBG("startServer(): Noe gikk galt, forsk igjen.");
                     	e.printStackTrace();
                     }
                 }
+                DBG("startServer(): Stopped listening.");
             }
         };
         listener.start();
     }
 
+    /**
+     * Stop the server, within about the given time. New users are no longer
+     * accepted. Then, {@link #SHUTDOWN_THREADS} users at a time, what is in
+     * a user's outbox is sent and the connection closed. Connections not
+     * closed by the deadline are aborted, without the close handshake. Last
+     * the history and journal are written and closed. Only what
+     * {@link #startServer()} has started is stopped, so it can be called
+     * before the server is started.
+     */
+    public void shutdown(long timeoutMillis) {
+        synchronized (this) {
+            if (!run) return;
+            run = false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        if (presenceTimer != null) {
+            presenceTimer.cancel();
+        }
+        if (server instanceof ConnectionImpl) {
+            ((ConnectionImpl) server).abort();
+        }
+        if (users != null) {
+            closeUsers(deadline);
+        }
+
+        if (history != null) {
+            history.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (exporter != null) {
+            exporter.stop();
+        }
+        if (frame != null) {
+            frame.dispose();
+        }
+    }
+
+    /** Close the users' connections, see {@link #shutdown(long)}. */
+    private void closeUsers(final long deadline) {
+        DBG("shutdown(): Closing " + users.size() + " connections.");
+        broadcast("***: Server shutting down.");
+
+        ExecutorService closer = Executors.newFixedThreadPool(SHUTDOWN_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Shutdown");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (final User user : users.all()) {
+            closer.execute(new Runnable() {
+                public void run() {
+                    user.shutdown(deadline);
+                }
+            });
+        }
+        closer.shutdown();
+        try {
+            closer.awaitTermination(Math.max(deadline - System.currentTimeMillis(), 0),
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Abort the rest now.
+        }
+        int aborted = 0;
+        for (User user : users.all()) {
+            user.abort();
+            aborted++;
+        }
+        closer.shutdownNow();
+        DBG("shutdown(): " + aborted + " connections aborted.");
+    }
+
     private void newMessage(String message, String from) {
         for (int i = 0; i < users.size(); i++) {
 
         }
     }
 
-    private ArrayList getUsers() {
-        ArrayList userList = new ArrayList();
-        for (int i = 0; i < users.size(); i++) {
-            userList.add(((User) users.get(i)).name);
+    /** Open the journal and put what it has into the history. */
+    private void openJournal() {
+        try {
+            journal = new MessageJournal(new File(JOURNAL_DIRECTORY), JOURNAL_SEGMENT_SIZE,
+                    JOURNAL_SEGMENTS, JOURNAL_SYNC_INTERVAL);
+        } catch (IOException e) {
+            DBG("openJournal(): Could not open journal, running without: " + e.getMessage());
+            return;
+        }
+        int recovered = journal.recover(new MessageJournal.RecoveryListener() {
+            public void recovered(long time, String room, String message) {
+                history.append(room, message);
+            }
+        });
+        DBG("openJournal(): Recovered " + recovered + " messages.");
+    }
+
+    /** Register the MBeans, and start the metrics endpoint if configured. */
+    private void startMonitoring() {
+        ChatServerStats stats = new ChatServerStats(this);
+        TransportStats.register();
+        stats.register();
+        if (METRICS_PORT < 0) return;
+        exporter = PrometheusExporter.forTransport();
+        exporter.register("chatserver", null, stats);
+        try {
+            exporter.start(METRICS_PORT);
+            DBG("startMonitoring(): Metrics on http://localhost:" + METRICS_PORT + "/metrics");
+        } catch (IOException e) {
+            DBG("startMonitoring(): Could not serve metrics: " + e.getMessage());
+            exporter = null;
+        }
+    }
+
+    int getUserCount() {
+        return users.size();
+    }
+
+    int getRoomCount() {
+        return rooms.roomNames().size();
+    }
+
+    /**
+     * @param max
+     *            true for the fullest outbox, false for the sum of all.
+     */
+    int getOutboxDepth(boolean max) {
+        int depth = 0;
+        for (User user : users.all()) {
+            int size = user.outbox.size();
+            depth = max ? Math.max(depth, size) : depth + size;
         }
-        userlist.setListData(userList.toArray());
-        return userList;
+        return depth;
+    }
+
+    long getDroppedMessages() {
+        long dropped = 0;
+        for (User user : users.all()) {
+            dropped += user.outbox.getDropped();
+        }
+        return dropped;
+    }
+
+    long getHistoryNotWritten() {
+        return history.getNotWritten();
+    }
+
+    /** Show the logged on users in the server window, on the event thread. */
+    private void refreshUserList() {
+        final Object[] names = users.names().toArray();
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                userlist.setListData(names);
+            }
+        });
     }
 
     public static void main(String[] args) {
         String address;
         int port;
         Log.setLogName("Server");
+        PacketLog.configure("Server");
         Settings settings = new Settings();
         port = settings.getServerPort();
         SIMPLE_CONNECTION = settings.useSimpleConnection();
         if (SIMPLE_CONNECTION){
             DBG("Using SimpleConnection");
         }
-        ChatServer server = new ChatServer(port);
+        HEADLESS = Boolean.getBoolean("chatserver.headless");
+        JOURNAL_DIRECTORY = System.getProperty("chatserver.journal", JOURNAL_DIRECTORY);
+        METRICS_PORT = Integer.getInteger("chatserver.metrics.port", METRICS_PORT);
+        KEEPALIVE_IDLE = Long.getLong("chatserver.keepalive", KEEPALIVE_IDLE);
+        DEAD_PEER_TIMEOUT = Long.getLong("chatserver.deadpeer", DEAD_PEER_TIMEOUT);
+        SHUTDOWN_TIMEOUT = Long.getLong("chatserver.shutdown", SHUTDOWN_TIMEOUT);
+        final ChatServer server = new ChatServer(port);
         server.startServer();
+        // Ctrl-C, kill and closing the window all end up here.
+        Runtime.getRuntime().addShutdownHook(new Thread("ChatServer shutdown") {
+            public void run() {
+                server.shutdown(SHUTDOWN_TIMEOUT);
+            }
+        });
     }
 
   /** Write debug message to stdout. */
@@ -0,0 +1,70 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import no.ntnu.fp.net.co.MetricsSnapshot;
+import no.ntnu.fp.net.co.MetricsSource;
+
+/**
+ * Statistics for a running {@link ChatServer}, as an MBean named
+ * <code>no.ntnu.fp.net.separat.server:type=ChatServer</code> and as a
+ * source for {@link no.ntnu.fp.net.co.PrometheusExporter}.
+ */
+public class ChatServerStats implements ChatServerStatsMBean, MetricsSource {
+
+    private final ChatServer server;
+
+    ChatServerStats(ChatServer server) {
+        this.server = server;
+    }
+
+    /** Register with the platform MBean server. */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("no.ntnu.fp.net.separat.server:type=ChatServer"));
+        }
+        catch (JMException e) {
+            System.err.println("ChatServerStats: Could not register MBean: " + e.getMessage());
+        }
+    }
+
+    public int getUserCount() {
+        return server.getUserCount();
+    }
+
+    public int getRoomCount() {
+        return server.getRoomCount();
+    }
+
+    public int getOutboxDepth() {
+        return server.getOutboxDepth(false);
+    }
+
+    public int getMaxOutboxDepth() {
+        return server.getOutboxDepth(true);
+    }
+
+    public long getDroppedMessages() {
+        return server.getDroppedMessages();
+    }
+
+    public long getHistoryNotWritten() {
+        return server.getHistoryNotWritten();
+    }
+
+    public void collect(List<MetricsSnapshot> out) {
+        MetricsSnapshot s = new MetricsSnapshot("chatserver");
+        s.put("users", getUserCount());
+        s.put("rooms", getRoomCount());
+        s.put("outbox.depth", getOutboxDepth());
+        s.put("outbox.maxDepth", getMaxOutboxDepth());
+        s.put("outbox.dropped", getDroppedMessages());
+        s.put("history.notWritten", getHistoryNotWritten());
+        out.add(s);
+    }
+}
@@ -0,0 +1,23 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * The chat server as seen in JConsole, see {@link ChatServerStats}.
+ */
+public interface ChatServerStatsMBean {
+
+    public int getUserCount();
+
+    public int getRoomCount();
+
+    /** Messages waiting in all the users' outboxes. */
+    public int getOutboxDepth();
+
+    /** Messages waiting in the fullest outbox, i.e. the slowest user. */
+    public int getMaxOutboxDepth();
+
+    /** Messages dropped or coalesced by the slow consumer policy. */
+    public long getDroppedMessages();
+
+    /** History messages that could not be written to disk. */
+    public long getHistoryNotWritten();
+}
@@ -0,0 +1,378 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.fp.net.separat.common.ChatProtocol;
+
+/**
+ * What has been said in each room. The most recent messages of a room are
+ * kept in a fixed size ring buffer, and every message is also appended to a
+ * segment file for the room, so older messages can be read back from disk.<br>
+ * <br>
+ * {@link #append(String, String)} only touches the ring buffer and hands the
+ * message to a background writer, it never waits for the disk. If the writer
+ * falls too far behind, messages are kept in memory only.<br>
+ * <br>
+ * Segment files are named &lt;timestamp&gt;_&lt;room&gt;.seg like the files
+ * in Log/, so every server run starts with empty history; those of earlier
+ * runs are deleted. Each record is the message's number in the room and the
+ * message, so messages that were never written don't shift the ones after
+ * them, and the file offset of every {@link #INDEX_INTERVAL}th message is
+ * kept so a read starts near the messages it wants.
+ */
+class MessageHistory {
+
+    /** Max number of messages waiting for the writer. */
+    private static final int WRITE_QUEUE_SIZE = 10000;
+
+    /** Messages between each file offset kept for reading a segment. */
+    static final int INDEX_INTERVAL = 256;
+
+    private static final String SUFFIX = ".seg";
+
+    private final int ringSize;
+    private final File directory;
+    private final String prefix;
+    private final ConcurrentMap<String, Room> rooms;
+    private final BlockingQueue<Entry> writeQueue;
+    private final Thread writer;
+    private volatile boolean closed;
+    private final AtomicLong notWritten;
+
+    /**
+     * @param directory
+     *            where to put the segment files, or null to keep history in
+     *            memory only.
+     * @param ringSize
+     *            number of recent messages kept in memory per room.
+     */
+    MessageHistory(File directory, int ringSize) {
+        if (ringSize < 1) throw new IllegalArgumentException("Ring size must be positive.");
+        this.ringSize = ringSize;
+        this.directory = directory;
+        prefix = System.currentTimeMillis() + "_";
+        rooms = new ConcurrentHashMap<String, Room>();
+        writeQueue = new ArrayBlockingQueue<Entry>(WRITE_QUEUE_SIZE);
+        closed = false;
+        notWritten = new AtomicLong();
+        if (directory != null) {
+            directory.mkdirs();
+            deleteOldSegments();
+            writer = new Thread("HistoryWriter") {
+                public void run() {
+                    write();
+                }
+            };
+            writer.setDaemon(true);
+            writer.start();
+        }
+        else {
+            writer = null;
+        }
+    }
+
+    /** Remember a message said in a room. Never blocks on I/O. */
+    void append(String room, String message) {
+        Room r = room(room);
+        synchronized (r) {
+            r.ring[(int) (r.total % ringSize)] = message;
+            // Queued holding the room, so its messages are written in order.
+            if (writer != null && !writeQueue.offer(new Entry(r, r.total, message))) {
+                notWritten.incrementAndGet();
+            }
+            r.total++;
+        }
+    }
+
+    /** Number of messages ever appended to a room. */
+    long size(String room) {
+        Room r = rooms.get(room);
+        if (r == null) return 0;
+        synchronized (r) {
+            return r.total;
+        }
+    }
+
+    /** Number of messages that only made it to memory. */
+    long getNotWritten() {
+        return notWritten.get();
+    }
+
+    /**
+     * The last messages said in a room, oldest first. Messages that are no
+     * longer in the ring buffer are read from the segment file.
+     *
+     * @param count
+     *            max number of messages to return.
+     */
+    List<String> recent(String room, int count) {
+        Room r = rooms.get(room);
+        List<String> result = new ArrayList<String>();
+        if (r == null || count <= 0) return result;
+
+        List<String> fromRing = new ArrayList<String>();
+        long first, ringFirst;
+        synchronized (r) {
+            first = Math.max(0, r.total - count);
+            ringFirst = Math.max(first, r.total - ringSize);
+            for (long i = ringFirst; i < r.total; i++) {
+                fromRing.add(r.ring[(int) (i % ringSize)]);
+            }
+        }
+        if (first < ringFirst && r.segment != null) {
+            result.addAll(readSegment(r, first, ringFirst));
+        }
+        result.addAll(fromRing);
+        return result;
+    }
+
+    /**
+     * Split messages into batches of at most batchSize messages, each
+     * formatted as one catch-up message for a client.
+     */
+    static List<String> toBatches(List<String> messages, int batchSize) {
+        List<String> batches = new ArrayList<String>();
+        StringBuilder batch = null;
+        int inBatch = 0;
+        for (String message : messages) {
+            if (batch == null) {
+                batch = new StringBuilder(ChatProtocol.HISTORY_BATCH);
+            }
+            else {
+                batch.append('\n');
+            }
+            batch.append(message);
+            if (++inBatch == batchSize) {
+                batches.add(batch.toString());
+                batch = null;
+                inBatch = 0;
+            }
+        }
+        if (batch != null) batches.add(batch.toString());
+        return batches;
+    }
+
+    /** Stop the writer after it has written what is queued. */
+    void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+            try {
+                writer.join(5000);
+            }
+            catch (InterruptedException e) { /* give up waiting */
+            }
+        }
+    }
+
+    private Room room(String name) {
+        Room r = rooms.get(name);
+        if (r == null) {
+            File segment = null;
+            if (directory != null) {
+                segment = new File(directory, prefix + fileName(name) + SUFFIX);
+            }
+            Room created = new Room(ringSize, segment);
+            r = rooms.putIfAbsent(name, created);
+            if (r == null) r = created;
+        }
+        return r;
+    }
+
+    /**
+     * Read messages [from, to) of a room from its segment file. Messages that
+     * were not written are left out.
+     */
+    private List<String> readSegment(Room r, long from, long to) {
+        List<String> result = new ArrayList<String>();
+        long offset = 0;
+        synchronized (r.segment) {
+            if (r.out != null) {
+                try {
+                    r.out.flush();
+                }
+                catch (IOException e) { /* read what is there */
+                }
+            }
+            Map.Entry<Long, Long> start = r.offsets.floorEntry(from);
+            if (start != null) offset = start.getValue();
+        }
+        DataInputStream in = null;
+        try {
+            FileInputStream file = new FileInputStream(r.segment);
+            file.getChannel().position(offset);
+            in = new DataInputStream(new BufferedInputStream(file));
+            while (true) {
+                long i = in.readLong();
+                String message = in.readUTF();
+                if (i >= to) break;
+                if (i >= from) result.add(message);
+            }
+        }
+        catch (EOFException e) {
+            // The writer has not caught up, return what is on disk.
+        }
+        catch (IOException e) {
+            System.err.println("MessageHistory: Could not read " + r.segment + ": " + e.getMessage());
+        }
+        finally {
+            if (in != null) {
+                try {
+                    in.close();
+                }
+                catch (IOException e) { /* ignore */
+                }
+            }
+        }
+        return result;
+    }
+
+    private void write() {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+        List<Entry> batch = new ArrayList<Entry>();
+        Map<Room, Boolean> touched = new HashMap<Room, Boolean>();
+        while (!closed || !writeQueue.isEmpty()) {
+            try {
+                batch.add(writeQueue.take());
+            }
+            catch (InterruptedException e) {
+                if (writeQueue.isEmpty()) continue;
+            }
+            writeQueue.drainTo(batch);
+            for (Entry entry : batch) {
+                Room r = entry.room;
+                try {
+                    synchronized (r.segment) {
+                        if (r.out == null) {
+                            r.out = new DataOutputStream(new BufferedOutputStream(
+                                    new FileOutputStream(r.segment, true)));
+                            r.written = r.segment.length();
+                        }
+                        // Into a buffer first, so a message writeUTF refuses
+                        // leaves no half record in the file.
+                        record.reset();
+                        recordOut.writeLong(entry.index);
+                        recordOut.writeUTF(entry.message);
+                        long bucket = entry.index / INDEX_INTERVAL;
+                        if (r.offsets.isEmpty() || r.offsets.lastKey() / INDEX_INTERVAL < bucket) {
+                            r.offsets.put(entry.index, r.written);
+                        }
+                        record.writeTo(r.out);
+                        r.written += record.size();
+                    }
+                    touched.put(r, Boolean.TRUE);
+                }
+                catch (IOException e) {
+                    notWritten.incrementAndGet();
+                }
+            }
+            for (Iterator<Room> iter = touched.keySet().iterator(); iter.hasNext();) {
+                Room r = iter.next();
+                synchronized (r.segment) {
+                    try {
+                        r.out.flush();
+                    }
+                    catch (IOException e) { /* try again next batch */
+                    }
+                }
+            }
+            batch.clear();
+            touched.clear();
+        }
+        for (Room r : rooms.values()) {
+            if (r.segment == null) continue;
+            synchronized (r.segment) {
+                if (r.out != null) {
+                    try {
+                        r.out.close();
+                    }
+                    catch (IOException e) { /* ignore */
+                    }
+                    r.out = null;
+                }
+            }
+        }
+    }
+
+    /** Delete the segment files of earlier server runs. */
+    private void deleteOldSegments() {
+        File[] old = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX) && !name.startsWith(prefix);
+            }
+        });
+        if (old == null) return;
+        for (File f : old) {
+            if (!f.delete()) {
+                System.err.println("MessageHistory: Could not delete " + f);
+            }
+        }
+    }
+
+    private static String fileName(String room) {
+        try {
+            return URLEncoder.encode(room, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Per room state. The ring is guarded by the Room, the file, its length
+     * and its offsets by segment.
+     */
+    private static class Room {
+        final String[] ring;
+        long total;
+        final File segment;
+        DataOutputStream out;
+        long written;
+        /** File offsets by message number, see {@link MessageHistory#INDEX_INTERVAL}. */
+        final TreeMap<Long, Long> offsets;
+
+        Room(int ringSize, File segment) {
+            ring = new String[ringSize];
+            total = 0;
+            this.segment = segment;
+            offsets = new TreeMap<Long, Long>();
+        }
+    }
+
+    private static class Entry {
+        final Room room;
+        /** The message's number in the room. */
+        final long index;
+        final String message;
+
+        Entry(Room room, long index, String message) {
+            this.room = room;
+            this.index = index;
+            this.message = message;
+        }
+    }
+}
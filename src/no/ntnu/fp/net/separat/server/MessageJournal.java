@@ -0,0 +1,308 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the messages said on a chat server, so history
+ * survives a restart.<br>
+ * <br>
+ * Messages are appended to memory-mapped segment files. An append is a copy
+ * into the mapped buffer, no system call, so it costs about as much as
+ * building the message. A background thread forces the written part of the
+ * current segment to disk every sync interval, committing all messages
+ * appended since the last sync in one go (group commit): a crash loses at
+ * most the last interval.<br>
+ * <br>
+ * The first segment is started by the first append, and when a segment is
+ * full a new one is started; only the newest maxSegments segments are kept,
+ * so a restart without messages doesn't push out older ones. Each record is
+ * <code>length, crc32, time, room, message</code>; a zero length marks the
+ * end of a segment, and a record with a bad checksum (a torn write) ends
+ * recovery of that segment.
+ */
+class MessageJournal {
+
+    /** Gets the journaled messages, oldest first, during recovery. */
+    interface RecoveryListener {
+        void recovered(long time, String room, String message);
+    }
+
+    private static final String SUFFIX = ".journal";
+    /** Bytes of length and checksum in front of each record. */
+    private static final int HEADER = 8;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final LinkedList<File> segments;
+    /** Segments written before this journal was opened. */
+    private final List<File> recoverable;
+    private final CRC32 crc;
+    private final Thread syncer;
+
+    private long nextSegmentNo;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private boolean dirty;
+    private volatile boolean closed;
+
+    /**
+     * Open the journal in a directory, creating it if needed. Existing
+     * segments are kept for {@link #recover(RecoveryListener)}, new messages
+     * go to a new segment once there are any.
+     *
+     * @param segmentSize
+     *            size in bytes of each segment file.
+     * @param maxSegments
+     *            number of segment files to keep.
+     * @param syncInterval
+     *            milliseconds between each forced write to disk.
+     * @throws IOException
+     *             if the directory can not be created.
+     */
+    MessageJournal(File directory, int segmentSize, int maxSegments, final long syncInterval)
+            throws IOException {
+        if (segmentSize < 1024) throw new IllegalArgumentException("Segment size too small.");
+        if (maxSegments < 1) throw new IllegalArgumentException("Must keep at least one segment.");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        directory.mkdirs();
+        if (!directory.isDirectory()) throw new IOException("Could not create " + directory);
+        segments = new LinkedList<File>(Arrays.asList(existingSegments()));
+        recoverable = new ArrayList<File>(segments);
+        nextSegmentNo = segments.isEmpty() ? 1 : segmentNo(segments.getLast()) + 1;
+        crc = new CRC32();
+        closed = false;
+
+        syncer = new Thread("JournalSync") {
+            public void run() {
+                while (!closed) {
+                    try {
+                        Thread.sleep(syncInterval);
+                    }
+                    catch (InterruptedException e) { /* sync now */
+                    }
+                    sync();
+                }
+            }
+        };
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Replay the messages of all segments written before this journal was
+     * opened, oldest first. Segments without any messages are deleted.
+     *
+     * @return number of messages recovered.
+     */
+    int recover(RecoveryListener listener) {
+        List<File> old;
+        synchronized (this) {
+            old = new ArrayList<File>(recoverable);
+            recoverable.clear();
+        }
+        int count = 0;
+        CRC32 check = new CRC32();
+        for (File segment : old) {
+            byte[] data;
+            try {
+                data = readFile(segment);
+            }
+            catch (IOException e) {
+                System.err.println("MessageJournal: Could not read " + segment + ": " + e.getMessage());
+                continue;
+            }
+            int pos = 0;
+            int before = count;
+            while (pos + HEADER <= data.length) {
+                int length = readInt(data, pos);
+                if (length <= 0 || pos + HEADER + length > data.length) break;
+                check.reset();
+                check.update(data, pos + HEADER, length);
+                if ((int) check.getValue() != readInt(data, pos + 4)) break;
+                try {
+                    DataInputStream in = new DataInputStream(new ByteArrayInputStream(data,
+                            pos + HEADER, length));
+                    listener.recovered(in.readLong(), in.readUTF(), in.readUTF());
+                    count++;
+                }
+                catch (IOException e) {
+                    break;
+                }
+                pos += HEADER + length;
+            }
+            if (count == before) {
+                // Left by a run that was stopped before any message.
+                synchronized (this) {
+                    segments.remove(segment);
+                }
+                if (!segment.delete()) {
+                    System.err.println("MessageJournal: Could not delete " + segment);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Append a message. Only copies it into the mapped segment, it is forced
+     * to disk by the next sync.
+     */
+    void append(String room, String message) {
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 2 * message.length());
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(room);
+            out.writeUTF(message);
+            record = bytes.toByteArray();
+        }
+        catch (IOException e) {
+            // Only thrown for messages too long for writeUTF.
+            System.err.println("MessageJournal: Message not journaled: " + e.getMessage());
+            return;
+        }
+        if (HEADER + record.length + 4 > segmentSize) {
+            System.err.println("MessageJournal: Message larger than a segment, not journaled.");
+            return;
+        }
+
+        synchronized (this) {
+            if (closed) return;
+            // Keep room for the zero length that ends the segment.
+            if (buffer == null || buffer.remaining() < HEADER + record.length + 4) {
+                try {
+                    roll();
+                }
+                catch (IOException e) {
+                    System.err.println("MessageJournal: Could not roll segment: " + e.getMessage());
+                    return;
+                }
+            }
+            crc.reset();
+            crc.update(record);
+            int start = buffer.position();
+            buffer.position(start + 4);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(record);
+            // Write the length last, so a torn record is never read as valid.
+            buffer.putInt(start, record.length);
+            dirty = true;
+        }
+    }
+
+    /** Force everything appended so far to disk. */
+    void sync() {
+        MappedByteBuffer toForce;
+        synchronized (this) {
+            if (!dirty || buffer == null) return;
+            dirty = false;
+            toForce = buffer;
+        }
+        // Forcing outside the lock lets appends continue meanwhile.
+        toForce.force();
+    }
+
+    /** Sync and stop the journal. */
+    void close() {
+        closed = true;
+        syncer.interrupt();
+        synchronized (this) {
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+            }
+            closeFile();
+        }
+    }
+
+    /** Start a new segment, and delete segments beyond maxSegments. */
+    private synchronized void roll() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        closeFile();
+
+        File segment = new File(directory, String.format("%010d", nextSegmentNo++) + SUFFIX);
+        file = new RandomAccessFile(segment, "rw");
+        channel = file.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        dirty = false;
+        segments.addLast(segment);
+
+        while (segments.size() > maxSegments) {
+            File oldest = segments.removeFirst();
+            if (!oldest.delete()) {
+                System.err.println("MessageJournal: Could not delete " + oldest);
+            }
+        }
+    }
+
+    private void closeFile() {
+        try {
+            if (channel != null) channel.close();
+            if (file != null) file.close();
+        }
+        catch (IOException e) { /* nothing to do */
+        }
+        channel = null;
+        file = null;
+    }
+
+    private File[] existingSegments() {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX) && segmentNo(f) > 0;
+            }
+        });
+        if (files == null) return new File[0];
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long segmentNo(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] readFile(File f) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(f, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+}
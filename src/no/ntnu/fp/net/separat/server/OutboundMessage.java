@@ -0,0 +1,59 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.Serializable;
+
+import no.ntnu.fp.net.cl.Util;
+
+/**
+ * An immutable message on its way to one or more users. A broadcast creates
+ * one OutboundMessage and puts the same instance in every recipient's
+ * {@link Outbox}, so the text is built once and the payload is serialized at
+ * most once, no matter how many users receive it.
+ */
+public final class OutboundMessage {
+
+    private final String text;
+    private final String coalesceKey;
+    private byte[] encoded;
+
+    /**
+     * @param text
+     *            the message as the client should receive it.
+     * @param coalesceKey
+     *            messages with the same non-null key supersede each other
+     *            under {@link SlowConsumerPolicy#COALESCE}, null if this
+     *            message must never be replaced.
+     */
+    public OutboundMessage(String text, String coalesceKey) {
+        if (text == null) throw new IllegalArgumentException("Text can not be null.");
+        this.text = text;
+        this.coalesceKey = coalesceKey;
+    }
+
+    public OutboundMessage(String text) {
+        this(text, null);
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getCoalesceKey() {
+        return coalesceKey;
+    }
+
+    /**
+     * The payload in the serialized form carried by a KtnDatagram. Computed
+     * the first time it is asked for and shared by all recipients.
+     */
+    public synchronized byte[] getEncoded() {
+        if (encoded == null) {
+            encoded = Util.toByteArray((Serializable) text);
+        }
+        return encoded;
+    }
+
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,209 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import no.ntnu.fp.net.co.Connection;
+import no.ntnu.fp.net.co.ConnectionImpl;
+
+/**
+ * A bounded queue of messages waiting to be sent to one user, drained by its
+ * own sender thread. {@link #offer(OutboundMessage)} never blocks, so a user
+ * whose acks are slow (or never come) only delays its own messages, not the
+ * messages to everybody else. What happens when the queue is full is decided
+ * by the {@link SlowConsumerPolicy}.
+ */
+class Outbox {
+
+    /**
+     * Gets told when the outbox gives up on its connection, either because
+     * the policy said so or because the remote side disconnected.
+     */
+    interface Listener {
+        void outboxFailed(Outbox outbox, String reason);
+    }
+
+    private final Connection conn;
+    private final int capacity;
+    private final SlowConsumerPolicy policy;
+    private final Listener listener;
+    private final LinkedList<OutboundMessage> queue;
+    private final Thread sender;
+    /** Whether the sender is sending a message it has taken off the queue. */
+    private boolean busy;
+    /** No more offers, see {@link #drain(long)}. */
+    private boolean draining;
+    private boolean closed;
+    private long dropped;
+
+    /**
+     * @param conn
+     *            established connection to the user.
+     * @param capacity
+     *            maximum number of queued messages.
+     * @param policy
+     *            what to do with offers when the queue is full.
+     * @param listener
+     *            told if the outbox gives up, can be null.
+     * @param name
+     *            name of the sender thread.
+     */
+    Outbox(Connection conn, int capacity, SlowConsumerPolicy policy, Listener listener, String name) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity must be positive.");
+        this.conn = conn;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.listener = listener;
+        queue = new LinkedList<OutboundMessage>();
+        closed = false;
+        dropped = 0;
+        sender = new Thread("Outbox-" + name) {
+            public void run() {
+                drain();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Queue a message for sending. Returns immediately.
+     *
+     * @return false if the message was not queued (dropped, or the outbox is
+     *         closed or draining).
+     */
+    boolean offer(OutboundMessage message) {
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed || draining) return false;
+
+            if (policy == SlowConsumerPolicy.COALESCE && message.getCoalesceKey() != null) {
+                for (Iterator<OutboundMessage> iter = queue.iterator(); iter.hasNext();) {
+                    if (message.getCoalesceKey().equals(iter.next().getCoalesceKey())) {
+                        iter.remove();
+                        dropped++;
+                        break;
+                    }
+                }
+            }
+
+            if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP:
+                        dropped++;
+                        return false;
+                    case COALESCE:
+                        queue.removeFirst();
+                        dropped++;
+                        break;
+                    case DISCONNECT:
+                        disconnect = true;
+                        break;
+                }
+            }
+
+            if (!disconnect) {
+                queue.addLast(message);
+                notifyAll();
+                return true;
+            }
+        }
+        fail("outbox full (" + capacity + " messages)");
+        return false;
+    }
+
+    /** Stop the sender and discard everything still queued. */
+    void close() {
+        shutdown();
+    }
+
+    /**
+     * Take no more messages, and wait until what is queued has been sent,
+     * at most the given time. Then close, discarding what is left.
+     *
+     * @return false if the time ran out first.
+     */
+    boolean drain(long timeoutMillis) {
+        boolean sent;
+        synchronized (this) {
+            draining = true;
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long left = timeoutMillis;
+            while ((!queue.isEmpty() || busy) && !closed && left > 0) {
+                try {
+                    wait(left);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+            sent = queue.isEmpty() && !busy;
+        }
+        close();
+        return sent;
+    }
+
+    /** @return false if the outbox was already closed. */
+    private boolean shutdown() {
+        synchronized (this) {
+            if (closed) return false;
+            closed = true;
+            queue.clear();
+            notifyAll();
+        }
+        if (Thread.currentThread() != sender) sender.interrupt();
+        return true;
+    }
+
+    synchronized int size() {
+        return queue.size();
+    }
+
+    synchronized long getDropped() {
+        return dropped;
+    }
+
+    private synchronized OutboundMessage take() {
+        // The last message is sent, tell drain().
+        busy = false;
+        notifyAll();
+        while (queue.isEmpty() && !closed) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) { /* check closed */
+            }
+        }
+        if (closed) return null;
+        busy = true;
+        return queue.removeFirst();
+    }
+
+    private void drain() {
+        OutboundMessage message;
+        while ((message = take()) != null) {
+            try {
+                if (conn instanceof ConnectionImpl) {
+                    ((ConnectionImpl) conn).sendEncoded(message.getEncoded());
+                }
+                else {
+                    conn.send(message.getText());
+                }
+            }
+            catch (EOFException e) {
+                fail("disconnect requested");
+            }
+            catch (IOException e) {
+                System.err.println("Outbox: IOException while sending '" + message + "': "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void fail(String reason) {
+        if (shutdown() && listener != null) listener.outboxFailed(this, reason);
+    }
+}
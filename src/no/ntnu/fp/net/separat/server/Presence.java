@@ -0,0 +1,38 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.List;
+
+import no.ntnu.fp.net.separat.common.ChatProtocol;
+
+/**
+ * The presence messages a chat server sends about its users. Instead of a
+ * full user list after every change, clients get a small delta per join,
+ * leave and rename, and a full snapshot now and then to repair any drift.
+ * The snapshot keeps the old "[name1, name2]" format, so clients that don't
+ * know the deltas (they ignore messages starting with '/') still see the
+ * list. The messages are in {@link ChatProtocol}.
+ */
+final class Presence {
+
+    /** Coalesce key for snapshots, only the newest one matters. */
+    static final String SNAPSHOT_KEY = "userlist";
+
+    private Presence() {
+    }
+
+    static OutboundMessage joined(String name) {
+        return new OutboundMessage(ChatProtocol.JOINED + name);
+    }
+
+    static OutboundMessage left(String name) {
+        return new OutboundMessage(ChatProtocol.LEFT + name);
+    }
+
+    static OutboundMessage renamed(String oldName, String newName) {
+        return new OutboundMessage(ChatProtocol.RENAMED + oldName + ":" + newName);
+    }
+
+    static OutboundMessage snapshot(List<String> names) {
+        return new OutboundMessage(names.toString(), SNAPSHOT_KEY);
+    }
+}
@@ -0,0 +1,124 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Which users are in which chat room. Every user is in exactly one room,
+ * starting in the default room. Messages are routed with
+ * {@link #members(String)}, which only touches the members of that room and
+ * can be iterated while users come and go. Rooms other than the default room
+ * disappear when the last member leaves.
+ *
+ * @param <U>
+ *            the type holding per user state.
+ */
+class RoomIndex<U> {
+
+    private final String defaultRoom;
+    private final ConcurrentMap<String, Set<U>> members;
+    private final ConcurrentMap<U, String> rooms;
+
+    /**
+     * @param defaultRoom
+     *            the room users are in when they have not joined any other.
+     */
+    RoomIndex(String defaultRoom) {
+        this.defaultRoom = clean(defaultRoom);
+        members = new ConcurrentHashMap<String, Set<U>>();
+        rooms = new ConcurrentHashMap<U, String>();
+        members.put(this.defaultRoom, newMemberSet());
+    }
+
+    String getDefaultRoom() {
+        return defaultRoom;
+    }
+
+    /**
+     * Move a user to a room, creating the room if needed. A user that is not
+     * in any room yet is added.
+     *
+     * @return the room the user was in before, or null if none.
+     */
+    synchronized String join(U user, String room) {
+        room = clean(room);
+        String oldRoom = removeFromRoom(user);
+        Set<U> set = members.get(room);
+        if (set == null) {
+            set = newMemberSet();
+            members.put(room, set);
+        }
+        set.add(user);
+        rooms.put(user, room);
+        return oldRoom;
+    }
+
+    /**
+     * Leave the current room and go back to the default room.
+     *
+     * @return the room the user left, or null if the user was already in the
+     *         default room.
+     */
+    synchronized String leave(U user) {
+        String room = rooms.get(user);
+        if (room == null || room.equals(defaultRoom)) return null;
+        join(user, defaultRoom);
+        return room;
+    }
+
+    /**
+     * Forget a user completely.
+     *
+     * @return the room the user was in, or null if none.
+     */
+    synchronized String remove(U user) {
+        return removeFromRoom(user);
+    }
+
+    /** @return the room the user is in, or null if the user is not known. */
+    String roomOf(U user) {
+        return rooms.get(user);
+    }
+
+    /** The members of a room, empty if the room doesn't exist or is null. */
+    Collection<U> members(String room) {
+        if (room == null) return Collections.emptySet();
+        Set<U> set = members.get(room);
+        if (set == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(set);
+    }
+
+    /** A sorted copy of the names of all rooms. */
+    List<String> roomNames() {
+        List<String> list = new ArrayList<String>(members.keySet());
+        Collections.sort(list);
+        return list;
+    }
+
+    /** Room names follow the same rules as user names. */
+    static String clean(String room) {
+        return UserRegistry.clean(room);
+    }
+
+    private String removeFromRoom(U user) {
+        String room = rooms.remove(user);
+        if (room == null) return null;
+        Set<U> set = members.get(room);
+        if (set != null) {
+            set.remove(user);
+            if (set.isEmpty() && !room.equals(defaultRoom)) {
+                members.remove(room);
+            }
+        }
+        return room;
+    }
+
+    private Set<U> newMemberSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<U, Boolean>());
+    }
+}
@@ -0,0 +1,25 @@
+package no.ntnu.fp.net.separat.server;
+
+/**
+ * What an {@link Outbox} does when a message is offered and its queue is
+ * already full, i.e. the user on the other end is not keeping up with the
+ * rest of the chat.
+ */
+public enum SlowConsumerPolicy {
+
+    /** Throw away the new message. The user misses it, nobody else waits. */
+    DROP,
+
+    /**
+     * Give up on the user: the outbox is shut down and the server removes
+     * the user as if it had disconnected.
+     */
+    DISCONNECT,
+
+    /**
+     * Replace a queued message with the same coalesce key (e.g. an older user
+     * list) with the new one. If there is nothing to coalesce with, the
+     * oldest queued message is dropped to make room.
+     */
+    COALESCE
+}
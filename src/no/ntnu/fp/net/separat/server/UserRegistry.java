@@ -0,0 +1,110 @@
+package no.ntnu.fp.net.separat.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import no.ntnu.fp.net.co.Connection;
+
+/**
+ * The logged on users of a chat server, indexed both by name and by
+ * connection. Lookups and iteration don't lock, so broadcasts never wait for
+ * a join or leave; changes are serialized on the registry so the two indexes
+ * always agree.<br>
+ * <br>
+ * Names are unique within the registry. Characters that have a meaning in the
+ * chat protocol (':' separates sender from message, ", " separates names in a
+ * user list) are replaced, and a taken name gets a number appended.
+ *
+ * @param <U>
+ *            the type holding per user state.
+ */
+class UserRegistry<U> {
+
+    private final ConcurrentMap<String, U> byName;
+    private final ConcurrentMap<Connection, U> byConnection;
+    private final ConcurrentMap<U, String> names;
+
+    UserRegistry() {
+        byName = new ConcurrentHashMap<String, U>();
+        byConnection = new ConcurrentHashMap<Connection, U>();
+        names = new ConcurrentHashMap<U, String>();
+    }
+
+    /**
+     * Register a user.
+     *
+     * @param wantedName
+     *            the name the user asked for.
+     * @return the name the user was registered with.
+     */
+    synchronized String add(String wantedName, Connection conn, U user) {
+        String name = uniqueName(wantedName);
+        byName.put(name, user);
+        byConnection.put(conn, user);
+        names.put(user, name);
+        return name;
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @return false if the user was not registered.
+     */
+    synchronized boolean remove(Connection conn) {
+        U user = byConnection.remove(conn);
+        if (user == null) return false;
+        byName.remove(names.remove(user));
+        return true;
+    }
+
+    /**
+     * Change the name of a registered user.
+     *
+     * @return the new name the user was registered with, or null if the user
+     *         is not registered.
+     */
+    synchronized String rename(U user, String wantedName) {
+        String oldName = names.get(user);
+        if (oldName == null) return null;
+        byName.remove(oldName);
+        String name = uniqueName(wantedName);
+        byName.put(name, user);
+        names.put(user, name);
+        return name;
+    }
+
+    /** A weakly consistent view of all users, safe to iterate concurrently. */
+    Collection<U> all() {
+        return Collections.unmodifiableCollection(byConnection.values());
+    }
+
+    int size() {
+        return byConnection.size();
+    }
+
+    /** A sorted copy of the registered names. */
+    List<String> names() {
+        List<String> list = new ArrayList<String>(byName.keySet());
+        Collections.sort(list);
+        return list;
+    }
+
+    /** Make a name safe for the chat protocol. */
+    static String clean(String name) {
+        String clean = name == null ? "" : name.trim().replace(':', '_').replace(',', '_');
+        return clean.length() == 0 ? "anonymous" : clean;
+    }
+
+    private String uniqueName(String wantedName) {
+        String base = clean(wantedName);
+        String name = base;
+        for (int i = 2; byName.containsKey(name); i++) {
+            name = base + i;
+        }
+        return name;
+    }
+}